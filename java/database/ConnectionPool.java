@@ -0,0 +1,259 @@
+package database;
+
+import java.sql.*;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pool kết nối JDBC có giới hạn
+ * - Tối đa maxSize kết nối vật lý, tạo dần khi cần
+ * - Mỗi kết nối giữ cache PreparedStatement theo chuỗi SQL (các câu SQL của
+ *   DatabaseManager là cố định nên chỉ prepare một lần cho mỗi kết nối)
+ * - Thống kê: số kết nối đang mượn/rảnh, thời gian chờ mượn
+ */
+public class ConnectionPool {
+    private static final long VALIDATE_AFTER_IDLE_MS = 30000; // Kiểm tra lại kết nối rảnh lâu hơn 30s
+    private static final int VALIDATE_TIMEOUT_SECONDS = 2;
+
+    private final String url;
+    private final String user;
+    private final String password;
+    private final int maxSize;
+    private final long borrowTimeoutMs;
+
+    private final Semaphore permits;
+    private final LinkedBlockingDeque<PooledConnection> idle = new LinkedBlockingDeque<>();
+    private volatile boolean closed = false;
+
+    // Thống kê
+    private final AtomicInteger active = new AtomicInteger();
+    private final AtomicInteger total = new AtomicInteger();
+    private final AtomicLong borrowCount = new AtomicLong();
+    private final AtomicLong totalWaitNanos = new AtomicLong();
+    private final AtomicLong maxWaitNanos = new AtomicLong();
+    private final AtomicLong timeoutCount = new AtomicLong();
+
+    public ConnectionPool(String url, String user, String password, int maxSize, long borrowTimeoutMs) {
+        this.url = url;
+        this.user = user;
+        this.password = password;
+        this.maxSize = Math.max(1, maxSize);
+        this.borrowTimeoutMs = borrowTimeoutMs;
+        this.permits = new Semaphore(this.maxSize, true);
+    }
+
+    /**
+     * Mượn một kết nối - phải close() để trả lại pool (dùng try-with-resources)
+     *
+     * @throws SQLTimeoutException nếu chờ quá borrowTimeoutMs
+     */
+    public PooledConnection borrow() throws SQLException {
+        if (closed)
+            throw new SQLException("Connection pool đã đóng");
+
+        long start = System.nanoTime();
+        try {
+            if (!permits.tryAcquire(borrowTimeoutMs, TimeUnit.MILLISECONDS)) {
+                timeoutCount.incrementAndGet();
+                throw new SQLTimeoutException("Hết thời gian chờ kết nối DB (" + borrowTimeoutMs + " ms, "
+                        + maxSize + " kết nối đang bận)");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Bị ngắt khi chờ kết nối DB");
+        }
+        recordWait(System.nanoTime() - start);
+
+        try {
+            PooledConnection conn = takeIdle();
+            if (conn == null) {
+                conn = new PooledConnection(DriverManager.getConnection(url, user, password));
+                conn.connection.setAutoCommit(true);
+                total.incrementAndGet();
+            }
+            conn.borrowed = true;
+            active.incrementAndGet();
+            return conn;
+        } catch (SQLException | RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Lấy kết nối rảnh gần nhất (LIFO giữ các kết nối "nóng"), bỏ kết nối đã chết
+     */
+    private PooledConnection takeIdle() {
+        PooledConnection conn;
+        while ((conn = idle.pollFirst()) != null) {
+            if (System.currentTimeMillis() - conn.lastUsed < VALIDATE_AFTER_IDLE_MS
+                    || conn.isValid(VALIDATE_TIMEOUT_SECONDS)) {
+                return conn;
+            }
+            discard(conn);
+        }
+        return null;
+    }
+
+    private void release(PooledConnection conn) {
+        active.decrementAndGet();
+        try {
+            if (closed || conn.connection.isClosed()) {
+                discard(conn);
+            } else {
+                conn.lastUsed = System.currentTimeMillis();
+                idle.offerFirst(conn);
+            }
+        } catch (SQLException e) {
+            discard(conn);
+        } finally {
+            permits.release();
+        }
+    }
+
+    private void discard(PooledConnection conn) {
+        total.decrementAndGet();
+        conn.closePhysical();
+    }
+
+    private void recordWait(long nanos) {
+        borrowCount.incrementAndGet();
+        totalWaitNanos.addAndGet(nanos);
+        maxWaitNanos.accumulateAndGet(nanos, Math::max);
+    }
+
+    /**
+     * Đóng pool: đóng kết nối rảnh, kết nối đang mượn sẽ bị đóng khi được trả
+     */
+    public void close() {
+        closed = true;
+        PooledConnection conn;
+        while ((conn = idle.pollFirst()) != null) {
+            discard(conn);
+        }
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    public Stats getStats() {
+        long borrows = borrowCount.get();
+        return new Stats(maxSize, active.get(), idle.size(), permits.getQueueLength(), borrows,
+                borrows == 0 ? 0 : totalWaitNanos.get() / borrows / 1000, maxWaitNanos.get() / 1000,
+                timeoutCount.get());
+    }
+
+    /**
+     * Ảnh chụp thống kê pool (để chọn kích thước pool)
+     */
+    public static class Stats {
+        public final int maxSize;
+        public final int active; // Đang được mượn
+        public final int idle; // Đã mở, đang rảnh
+        public final int waiting; // Thread đang chờ mượn
+        public final long borrowCount;
+        public final long avgWaitMicros;
+        public final long maxWaitMicros;
+        public final long timeouts;
+
+        Stats(int maxSize, int active, int idle, int waiting, long borrowCount, long avgWaitMicros,
+                long maxWaitMicros, long timeouts) {
+            this.maxSize = maxSize;
+            this.active = active;
+            this.idle = idle;
+            this.waiting = waiting;
+            this.borrowCount = borrowCount;
+            this.avgWaitMicros = avgWaitMicros;
+            this.maxWaitMicros = maxWaitMicros;
+            this.timeouts = timeouts;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("active=%d, idle=%d, max=%d, waiting=%d, borrows=%d, wait avg=%.2fms max=%.2fms, timeouts=%d",
+                    active, idle, maxSize, waiting, borrowCount, avgWaitMicros / 1000.0, maxWaitMicros / 1000.0,
+                    timeouts);
+        }
+    }
+
+    /**
+     * Kết nối mượn từ pool, kèm cache PreparedStatement
+     * Statement lấy từ prepare() thuộc về kết nối - người gọi KHÔNG close() statement
+     */
+    public class PooledConnection implements AutoCloseable {
+        private final Connection connection;
+        private final Map<String, PreparedStatement> statements = new HashMap<>();
+        private long lastUsed = System.currentTimeMillis();
+        private boolean borrowed; // Chỉ thread đang mượn đọc/ghi
+
+        private PooledConnection(Connection connection) {
+            this.connection = connection;
+        }
+
+        public PreparedStatement prepare(String sql) throws SQLException {
+            return prepare(sql, Statement.NO_GENERATED_KEYS);
+        }
+
+        public PreparedStatement prepare(String sql, int autoGeneratedKeys) throws SQLException {
+            String key = autoGeneratedKeys == Statement.RETURN_GENERATED_KEYS ? "K:" + sql : sql;
+            PreparedStatement stmt = statements.get(key);
+            if (stmt == null || stmt.isClosed()) {
+                stmt = connection.prepareStatement(sql, autoGeneratedKeys);
+                statements.put(key, stmt);
+            } else {
+                stmt.clearParameters();
+                stmt.clearBatch(); // Lần dùng trước lỗi giữa chừng thì batch cũ còn sót
+            }
+            return stmt;
+        }
+
+        /**
+         * Kết nối còn dùng được không (hỏi server, chờ tối đa timeoutSeconds)
+         */
+        public boolean isValid(int timeoutSeconds) {
+            try {
+                return connection.isValid(timeoutSeconds);
+            } catch (SQLException e) {
+                return false;
+            }
+        }
+
+        /**
+         * Statement không cache (DDL/migration)
+         */
+        public Statement createStatement() throws SQLException {
+            return connection.createStatement();
+        }
+
+        /**
+         * Trả kết nối về pool (gọi lần thứ hai không làm gì)
+         */
+        @Override
+        public void close() {
+            if (!borrowed)
+                return;
+            borrowed = false;
+            release(this);
+        }
+
+        private void closePhysical() {
+            for (PreparedStatement stmt : statements.values()) {
+                try {
+                    stmt.close();
+                } catch (SQLException e) {
+                }
+            }
+            statements.clear();
+            try {
+                connection.close();
+            } catch (SQLException e) {
+            }
+        }
+    }
+}
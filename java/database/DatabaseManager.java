@@ -1,6 +1,7 @@
 package database;
 
 import tracker.FileInfo;
+import utils.ChunkBitSet;
 import java.sql.*;
 import java.util.*;
 import com.google.gson.Gson;
@@ -12,7 +13,7 @@ import com.google.gson.reflect.TypeToken;
  */
 public class DatabaseManager {
     private static DatabaseManager instance;
-    private Connection connection;
+    private ConnectionPool pool;
     private final Gson gson = new Gson();
 
     // Cấu hình database - Laragon default
@@ -20,6 +21,12 @@ public class DatabaseManager {
     private static final String DB_USER = "root";
     private static final String DB_PASSWORD = ""; // Laragon mặc định không có password
 
+    // Cấu hình pool (ghi đè bằng -Ddb.poolSize=..., -Ddb.poolTimeoutMs=...)
+    private static final int DEFAULT_POOL_SIZE = 10;
+    private static final long DEFAULT_POOL_TIMEOUT_MS = 5000;
+    private static final int VALIDATE_TIMEOUT_SECONDS = 2;
+    private static final int ORPHAN_CLEANUP_BATCH = 500; // Số file mồ côi xóa mỗi câu lệnh khi quét toàn bảng
+
     private DatabaseManager() {
         connect();
     }
@@ -32,14 +39,18 @@ public class DatabaseManager {
     }
 
     private void connect() {
+        pool = new ConnectionPool(DB_URL, DB_USER, DB_PASSWORD,
+                Integer.getInteger("db.poolSize", DEFAULT_POOL_SIZE),
+                Long.getLong("db.poolTimeoutMs", DEFAULT_POOL_TIMEOUT_MS));
         try {
             Class.forName("com.mysql.cj.jdbc.Driver");
-            connection = DriverManager.getConnection(DB_URL, DB_USER, DB_PASSWORD);
-            connection.setAutoCommit(true);
-            System.out.println("[Database] ✅ Kết nối MySQL thành công!");
-            System.out.println("[Database] URL: " + DB_URL);
+            // Mở sẵn kết nối đầu tiên để báo lỗi cấu hình sớm - pool sẽ tự thử lại ở lần mượn sau
+            try (ConnectionPool.PooledConnection conn = pool.borrow()) {
+                System.out.println("[Database] ✅ Kết nối MySQL thành công!");
+                System.out.println("[Database] URL: " + DB_URL + " (pool tối đa " + pool.getMaxSize() + " kết nối)");
 
-            checkAndMigrateDatabase(); // Auto-migrate schema
+                checkAndMigrateDatabase(conn); // Auto-migrate schema
+            }
         } catch (ClassNotFoundException e) {
             System.err.println("[Database] ❌ Không tìm thấy MySQL Driver!");
             System.err.println("[Database] Hãy thêm mysql-connector-j-x.x.x.jar vào classpath");
@@ -49,37 +60,64 @@ public class DatabaseManager {
         }
     }
 
-    private void checkAndMigrateDatabase() {
-        // Check if is_shared column exists in peer_files
-        try (Statement stmt = connection.createStatement()) {
-            ResultSet rs = stmt.executeQuery("SHOW COLUMNS FROM peer_files LIKE 'is_shared'");
+    private void checkAndMigrateDatabase(ConnectionPool.PooledConnection conn) {
+        addColumnIfMissing(conn, "peer_files", "is_shared", "TINYINT(1) DEFAULT 1");
+        // File đã lưu trước khi có cột này đều được chia 64KB
+        addColumnIfMissing(conn, "files", "chunk_size", "INT NOT NULL DEFAULT " + FileInfo.DEFAULT_CHUNK_SIZE);
+        // Kiểm tra file mồ côi (NOT EXISTS theo file_id) cần index bắt đầu bằng file_id
+        addIndexIfMissing(conn, "peer_files", "idx_peer_files_file_id", "file_id");
+    }
+
+    private void addColumnIfMissing(ConnectionPool.PooledConnection conn, String table, String column,
+            String definition) {
+        try (Statement stmt = conn.createStatement()) {
+            ResultSet rs = stmt.executeQuery("SHOW COLUMNS FROM " + table + " LIKE '" + column + "'");
             if (!rs.next()) {
-                System.out.println("[Database] Chưa có cột 'is_shared', đang thêm...");
-                stmt.executeUpdate("ALTER TABLE peer_files ADD COLUMN is_shared TINYINT(1) DEFAULT 1");
-                System.out.println("[Database] Đã thêm cột 'is_shared' thành công!");
+                System.out.println("[Database] Chưa có cột '" + column + "', đang thêm...");
+                stmt.executeUpdate("ALTER TABLE " + table + " ADD COLUMN " + column + " " + definition);
+                System.out.println("[Database] Đã thêm cột '" + column + "' thành công!");
             }
         } catch (SQLException e) {
             System.err.println("[Database] Lỗi migration: " + e.getMessage());
         }
     }
 
-    public boolean isConnected() {
-        try {
-            return connection != null && !connection.isClosed() && connection.isValid(2);
+    private void addIndexIfMissing(ConnectionPool.PooledConnection conn, String table, String index,
+            String column) {
+        try (Statement stmt = conn.createStatement()) {
+            // Index bất kỳ (kể cả của khóa ngoại) bắt đầu bằng cột này là đủ
+            ResultSet rs = stmt.executeQuery("SHOW INDEX FROM " + table
+                    + " WHERE Column_name = '" + column + "' AND Seq_in_index = 1");
+            if (!rs.next()) {
+                System.out.println("[Database] Chưa có index trên " + table + "." + column + ", đang thêm...");
+                stmt.executeUpdate("CREATE INDEX " + index + " ON " + table + " (" + column + ")");
+                System.out.println("[Database] Đã thêm index '" + index + "' thành công!");
+            }
         } catch (SQLException e) {
-            return false;
+            System.err.println("[Database] Lỗi migration: " + e.getMessage());
         }
     }
 
-    public Connection getConnection() {
-        try {
-            if (connection == null || connection.isClosed()) {
-                connect();
-            }
+    public boolean isConnected() {
+        try (ConnectionPool.PooledConnection conn = pool.borrow()) {
+            return conn.isValid(VALIDATE_TIMEOUT_SECONDS);
         } catch (SQLException e) {
-            connect();
+            return false;
         }
-        return connection;
+    }
+
+    /**
+     * Thống kê pool kết nối (active, idle, thời gian chờ)
+     */
+    public ConnectionPool.Stats getPoolStats() {
+        return pool.getStats();
+    }
+
+    /**
+     * Số kết nối tối đa của pool (-Ddb.poolSize)
+     */
+    public int getPoolSize() {
+        return pool.getMaxSize();
     }
 
     // ==================== PEER OPERATIONS ====================
@@ -87,7 +125,8 @@ public class DatabaseManager {
     public int registerPeer(String peerId, String ip, int port) {
         String sql = "INSERT INTO peers (peer_id, ip_address, port, status) VALUES (?, ?, ?, 'online') " +
                 "ON DUPLICATE KEY UPDATE status = 'online', last_seen = CURRENT_TIMESTAMP";
-        try (PreparedStatement stmt = getConnection().prepareStatement(sql, Statement.RETURN_GENERATED_KEYS)) {
+        try (ConnectionPool.PooledConnection conn = pool.borrow()) {
+            PreparedStatement stmt = conn.prepare(sql, Statement.RETURN_GENERATED_KEYS);
             stmt.setString(1, peerId);
             stmt.setString(2, ip);
             stmt.setInt(3, port);
@@ -97,8 +136,8 @@ public class DatabaseManager {
             if (rs.next())
                 return rs.getInt(1);
 
-            // Nếu là UPDATE, lấy ID hiện có
-            return getPeerDbId(peerId);
+            // Nếu là UPDATE, lấy ID hiện có (cùng kết nối - không mượn thêm)
+            return getPeerDbId(conn, peerId);
         } catch (SQLException e) {
             e.printStackTrace();
             return -1;
@@ -107,7 +146,8 @@ public class DatabaseManager {
 
     public void unregisterPeer(String peerId) {
         String sql = "UPDATE peers SET status = 'offline' WHERE peer_id = ?";
-        try (PreparedStatement stmt = getConnection().prepareStatement(sql)) {
+        try (ConnectionPool.PooledConnection conn = pool.borrow()) {
+            PreparedStatement stmt = conn.prepare(sql);
             stmt.setString(1, peerId);
             stmt.executeUpdate();
         } catch (SQLException e) {
@@ -116,21 +156,27 @@ public class DatabaseManager {
     }
 
     public int getPeerDbId(String peerId) {
-        String sql = "SELECT id FROM peers WHERE peer_id = ?";
-        try (PreparedStatement stmt = getConnection().prepareStatement(sql)) {
-            stmt.setString(1, peerId);
-            ResultSet rs = stmt.executeQuery();
-            if (rs.next())
-                return rs.getInt("id");
+        try (ConnectionPool.PooledConnection conn = pool.borrow()) {
+            return getPeerDbId(conn, peerId);
         } catch (SQLException e) {
             e.printStackTrace();
         }
         return -1;
     }
 
+    private int getPeerDbId(ConnectionPool.PooledConnection conn, String peerId) throws SQLException {
+        PreparedStatement stmt = conn.prepare("SELECT id FROM peers WHERE peer_id = ?");
+        stmt.setString(1, peerId);
+        ResultSet rs = stmt.executeQuery();
+        if (rs.next())
+            return rs.getInt("id");
+        return -1;
+    }
+
     public void updatePeerHeartbeat(String peerId) {
         String sql = "UPDATE peers SET last_seen = CURRENT_TIMESTAMP WHERE peer_id = ?";
-        try (PreparedStatement stmt = getConnection().prepareStatement(sql)) {
+        try (ConnectionPool.PooledConnection conn = pool.borrow()) {
+            PreparedStatement stmt = conn.prepare(sql);
             stmt.setString(1, peerId);
             stmt.executeUpdate();
         } catch (SQLException e) {
@@ -140,10 +186,11 @@ public class DatabaseManager {
 
     // ==================== FILE OPERATIONS ====================
 
-    public int registerFile(String fileName, long fileSize, String fileHash, int totalChunks) {
+    public int registerFile(String fileName, long fileSize, String fileHash, int chunkSize, int totalChunks) {
         // Kiểm tra file đã tồn tại chưa
         String checkSql = "SELECT id FROM files WHERE file_hash = ?";
-        try (PreparedStatement checkStmt = getConnection().prepareStatement(checkSql)) {
+        try (ConnectionPool.PooledConnection conn = pool.borrow()) {
+            PreparedStatement checkStmt = conn.prepare(checkSql);
             checkStmt.setString(1, fileHash);
             ResultSet rs = checkStmt.executeQuery();
             if (rs.next())
@@ -153,12 +200,15 @@ public class DatabaseManager {
         }
 
         // Tạo mới
-        String sql = "INSERT INTO files (file_name, file_size, file_hash, total_chunks) VALUES (?, ?, ?, ?)";
-        try (PreparedStatement stmt = getConnection().prepareStatement(sql, Statement.RETURN_GENERATED_KEYS)) {
+        String sql = "INSERT INTO files (file_name, file_size, file_hash, chunk_size, total_chunks) "
+                + "VALUES (?, ?, ?, ?, ?)";
+        try (ConnectionPool.PooledConnection conn = pool.borrow()) {
+            PreparedStatement stmt = conn.prepare(sql, Statement.RETURN_GENERATED_KEYS);
             stmt.setString(1, fileName);
             stmt.setLong(2, fileSize);
             stmt.setString(3, fileHash);
-            stmt.setInt(4, totalChunks);
+            stmt.setInt(4, chunkSize);
+            stmt.setInt(5, totalChunks);
             stmt.executeUpdate();
 
             ResultSet rs = stmt.getGeneratedKeys();
@@ -170,13 +220,14 @@ public class DatabaseManager {
         return -1;
     }
 
-    public void linkPeerToFile(int peerDbId, int fileId, boolean isComplete, List<Integer> availableChunks) {
+    public void linkPeerToFile(int peerDbId, int fileId, boolean isComplete, ChunkBitSet availableChunks) {
         String sql = "INSERT INTO peer_files (peer_id, file_id, is_complete, available_chunks, is_shared) VALUES (?, ?, ?, ?, 1) "
                 +
                 "ON DUPLICATE KEY UPDATE is_complete = ?, available_chunks = ?"; // Removed 'is_shared = 1' to preserve
                                                                                  // hidden state
-        try (PreparedStatement stmt = getConnection().prepareStatement(sql)) {
-            String chunksJson = gson.toJson(availableChunks);
+        try (ConnectionPool.PooledConnection conn = pool.borrow()) {
+            PreparedStatement stmt = conn.prepare(sql);
+            String chunksJson = encodeChunks(availableChunks);
             stmt.setInt(1, peerDbId);
             stmt.setInt(2, fileId);
             stmt.setBoolean(3, isComplete);
@@ -196,7 +247,8 @@ public class DatabaseManager {
                 "JOIN peer_files pf ON f.id = pf.file_id " +
                 "JOIN peers p ON pf.peer_id = p.id " +
                 "WHERE p.status = 'online' AND pf.is_shared = 1 AND f.file_name LIKE ?";
-        try (PreparedStatement stmt = getConnection().prepareStatement(sql)) {
+        try (ConnectionPool.PooledConnection conn = pool.borrow()) {
+            PreparedStatement stmt = conn.prepare(sql);
             stmt.setString(1, "%" + keyword + "%");
             ResultSet rs = stmt.executeQuery();
             while (rs.next()) {
@@ -206,6 +258,7 @@ public class DatabaseManager {
                         rs.getString("ip_address"),
                         rs.getInt("port"));
                 info.setFileHash(rs.getString("file_hash"));
+                info.setChunkSize(rs.getInt("chunk_size"));
                 info.setTotalChunks(rs.getInt("total_chunks"));
                 info.setFileDbId(rs.getInt("id"));
                 results.add(info);
@@ -228,7 +281,8 @@ public class DatabaseManager {
                 "JOIN peer_files pf ON f.id = pf.file_id " +
                 "JOIN peers p ON pf.peer_id = p.id " +
                 "WHERE p.status = 'online' AND pf.is_shared = 1 AND f.file_hash = ?";
-        try (PreparedStatement stmt = getConnection().prepareStatement(sql)) {
+        try (ConnectionPool.PooledConnection conn = pool.borrow()) {
+            PreparedStatement stmt = conn.prepare(sql);
             stmt.setString(1, fileHash);
             ResultSet rs = stmt.executeQuery();
             while (rs.next()) {
@@ -238,16 +292,11 @@ public class DatabaseManager {
                         rs.getString("ip_address"),
                         rs.getInt("port"));
                 info.setFileHash(rs.getString("file_hash"));
+                info.setChunkSize(rs.getInt("chunk_size"));
                 info.setTotalChunks(rs.getInt("total_chunks"));
 
                 // Parse available chunks
-                String chunksJson = rs.getString("available_chunks");
-                if (chunksJson != null) {
-                    List<Integer> chunks = gson.fromJson(chunksJson,
-                            new TypeToken<List<Integer>>() {
-                            }.getType());
-                    info.setAvailableChunks(chunks);
-                }
+                info.setAvailableChunks(decodeChunks(rs.getString("available_chunks"), info.getTotalChunks()));
                 sources.add(info);
             }
         } catch (SQLException e) {
@@ -256,18 +305,79 @@ public class DatabaseManager {
         return sources;
     }
 
+    /**
+     * Đọc toàn bộ peers + liên kết peer-file (kể cả file đang ẩn) để tracker dựng index trong RAM
+     * Peer chưa chia sẻ file nào có một dòng với fileDbId = 0
+     */
+    public List<PeerFileRecord> loadPeerFiles() {
+        List<PeerFileRecord> records = new ArrayList<>();
+        String sql = "SELECT p.peer_id, p.ip_address, p.port, p.status, " +
+                "f.id AS file_id, f.file_name, f.file_size, f.file_hash, f.chunk_size, f.total_chunks, " +
+                "pf.available_chunks, pf.is_shared " +
+                "FROM peers p " +
+                "LEFT JOIN peer_files pf ON pf.peer_id = p.id " +
+                "LEFT JOIN files f ON pf.file_id = f.id";
+        try (ConnectionPool.PooledConnection conn = pool.borrow()) {
+            PreparedStatement stmt = conn.prepare(sql);
+            ResultSet rs = stmt.executeQuery();
+            while (rs.next()) {
+                PeerFileRecord r = new PeerFileRecord();
+                r.peerId = rs.getString("peer_id");
+                r.ip = rs.getString("ip_address");
+                r.port = rs.getInt("port");
+                r.online = "online".equals(rs.getString("status"));
+                r.fileDbId = rs.getInt("file_id");
+                if (r.fileDbId != 0) {
+                    r.fileName = rs.getString("file_name");
+                    r.fileSize = rs.getLong("file_size");
+                    r.fileHash = rs.getString("file_hash");
+                    r.chunkSize = rs.getInt("chunk_size");
+                    r.totalChunks = rs.getInt("total_chunks");
+                    r.shared = rs.getBoolean("is_shared");
+                    r.availableChunks = decodeChunks(rs.getString("available_chunks"), r.totalChunks);
+                }
+                records.add(r);
+            }
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+        return records;
+    }
+
     // ==================== DOWNLOAD OPERATIONS (Resume) ====================
 
-    public int createDownload(int fileId, String downloaderPeerId, String fileName,
+    /**
+     * Tạo lượt tải mới
+     *
+     * @param fileId   id trong bảng files, <= 0 nếu chưa biết (Tracker trả file trước khi ghi xong DB)
+     *                 - khi đó tìm theo fileHash
+     * @return id lượt tải, -1 nếu không tạo được
+     */
+    public int createDownload(int fileId, String fileHash, String downloaderPeerId, String fileName,
             long fileSize, int totalChunks) {
+        String findSql = "SELECT id FROM files WHERE file_hash = ?";
         String sql = "INSERT INTO downloads (file_id, downloader_peer_id, file_name, file_size, " +
-                "total_chunks, completed_chunks, status) VALUES (?, ?, ?, ?, ?, '[]', 'pending')";
-        try (PreparedStatement stmt = getConnection().prepareStatement(sql, Statement.RETURN_GENERATED_KEYS)) {
+                "total_chunks, completed_chunks, status) VALUES (?, ?, ?, ?, ?, ?, 'pending')";
+        try (ConnectionPool.PooledConnection conn = pool.borrow()) {
+            if (fileId <= 0 && fileHash != null) {
+                PreparedStatement find = conn.prepare(findSql);
+                find.setString(1, fileHash);
+                ResultSet found = find.executeQuery();
+                if (found.next())
+                    fileId = found.getInt("id");
+            }
+            if (fileId <= 0) {
+                System.err.println("[Database] Chưa có file " + fileName + " trong DB, không lưu được lượt tải");
+                return -1;
+            }
+
+            PreparedStatement stmt = conn.prepare(sql, Statement.RETURN_GENERATED_KEYS);
             stmt.setInt(1, fileId);
             stmt.setString(2, downloaderPeerId);
             stmt.setString(3, fileName);
             stmt.setLong(4, fileSize);
             stmt.setInt(5, totalChunks);
+            stmt.setString(6, encodeChunks(new ChunkBitSet(totalChunks)));
             stmt.executeUpdate();
 
             ResultSet rs = stmt.getGeneratedKeys();
@@ -284,7 +394,8 @@ public class DatabaseManager {
                 "JOIN files f ON d.file_id = f.id " +
                 "WHERE d.downloader_peer_id = ? AND f.file_hash = ? " +
                 "AND d.status IN ('pending', 'downloading', 'paused')";
-        try (PreparedStatement stmt = getConnection().prepareStatement(sql)) {
+        try (ConnectionPool.PooledConnection conn = pool.borrow()) {
+            PreparedStatement stmt = conn.prepare(sql);
             stmt.setString(1, downloaderPeerId);
             stmt.setString(2, fileHash);
             ResultSet rs = stmt.executeQuery();
@@ -298,12 +409,9 @@ public class DatabaseManager {
                 state.totalChunks = rs.getInt("total_chunks");
                 state.status = rs.getString("status");
 
-                String chunksJson = rs.getString("completed_chunks");
-                state.completedChunks = gson.fromJson(chunksJson,
-                        new TypeToken<Set<Integer>>() {
-                        }.getType());
+                state.completedChunks = decodeChunks(rs.getString("completed_chunks"), state.totalChunks);
                 if (state.completedChunks == null)
-                    state.completedChunks = new HashSet<>();
+                    state.completedChunks = new ChunkBitSet(state.totalChunks);
 
                 return state;
             }
@@ -313,11 +421,12 @@ public class DatabaseManager {
         return null;
     }
 
-    public void updateDownloadProgress(int downloadId, Set<Integer> completedChunks, long downloadedSize) {
+    public void updateDownloadProgress(int downloadId, ChunkBitSet completedChunks, long downloadedSize) {
         String sql = "UPDATE downloads SET completed_chunks = ?, downloaded_size = ?, " +
                 "status = 'downloading' WHERE id = ?";
-        try (PreparedStatement stmt = getConnection().prepareStatement(sql)) {
-            stmt.setString(1, gson.toJson(completedChunks));
+        try (ConnectionPool.PooledConnection conn = pool.borrow()) {
+            PreparedStatement stmt = conn.prepare(sql);
+            stmt.setString(1, encodeChunks(completedChunks));
             stmt.setLong(2, downloadedSize);
             stmt.setInt(3, downloadId);
             stmt.executeUpdate();
@@ -328,7 +437,8 @@ public class DatabaseManager {
 
     public void completeDownload(int downloadId) {
         String sql = "UPDATE downloads SET status = 'completed', completed_at = CURRENT_TIMESTAMP WHERE id = ?";
-        try (PreparedStatement stmt = getConnection().prepareStatement(sql)) {
+        try (ConnectionPool.PooledConnection conn = pool.borrow()) {
+            PreparedStatement stmt = conn.prepare(sql);
             stmt.setInt(1, downloadId);
             stmt.executeUpdate();
         } catch (SQLException e) {
@@ -338,7 +448,8 @@ public class DatabaseManager {
 
     public void pauseDownload(int downloadId) {
         String sql = "UPDATE downloads SET status = 'paused' WHERE id = ?";
-        try (PreparedStatement stmt = getConnection().prepareStatement(sql)) {
+        try (ConnectionPool.PooledConnection conn = pool.borrow()) {
+            PreparedStatement stmt = conn.prepare(sql);
             stmt.setInt(1, downloadId);
             stmt.executeUpdate();
         } catch (SQLException e) {
@@ -350,7 +461,8 @@ public class DatabaseManager {
 
     public void logActivity(String peerId, String action, String details) {
         String sql = "INSERT INTO activity_logs (peer_id, action, details) VALUES (?, ?, ?)";
-        try (PreparedStatement stmt = getConnection().prepareStatement(sql)) {
+        try (ConnectionPool.PooledConnection conn = pool.borrow()) {
+            PreparedStatement stmt = conn.prepare(sql);
             stmt.setString(1, peerId);
             stmt.setString(2, action);
             stmt.setString(3, details);
@@ -366,46 +478,105 @@ public class DatabaseManager {
      * Xóa liên kết peer-file (khi peer hủy chia sẻ file)
      */
     public void unlinkPeerFromFile(String peerId, String fileName) {
-        String sql = "DELETE pf FROM peer_files pf " +
+        unlinkPeerFromFiles(peerId, Collections.singletonList(fileName));
+    }
+
+    /**
+     * Gỡ nhiều file của một peer trong một lần mượn kết nối (JDBC batch), rồi xóa những file trong số đó
+     * không còn peer nào chia sẻ
+     *
+     * @return số liên kết peer-file đã xóa
+     */
+    public int unlinkPeerFromFiles(String peerId, Collection<String> fileNames) {
+        if (fileNames.isEmpty())
+            return 0;
+        String findSql = "SELECT pf.file_id FROM peer_files pf " +
                 "JOIN peers p ON pf.peer_id = p.id " +
                 "JOIN files f ON pf.file_id = f.id " +
                 "WHERE p.peer_id = ? AND f.file_name = ?";
-        try (PreparedStatement stmt = getConnection().prepareStatement(sql)) {
-            stmt.setString(1, peerId);
-            stmt.setString(2, fileName);
-            int deleted = stmt.executeUpdate();
-            System.out.println("[Database] Xóa liên kết peer-file: " + deleted + " records");
+        String deleteSql = "DELETE pf FROM peer_files pf " +
+                "JOIN peers p ON pf.peer_id = p.id " +
+                "JOIN files f ON pf.file_id = f.id " +
+                "WHERE p.peer_id = ? AND f.file_name = ?";
+        List<Integer> fileIds = new ArrayList<>();
+        int deleted = 0;
+        try (ConnectionPool.PooledConnection conn = pool.borrow()) {
+            PreparedStatement find = conn.prepare(findSql);
+            PreparedStatement delete = conn.prepare(deleteSql);
+            for (String fileName : fileNames) {
+                find.setString(1, peerId);
+                find.setString(2, fileName);
+                ResultSet rs = find.executeQuery();
+                boolean linked = false;
+                while (rs.next()) {
+                    fileIds.add(rs.getInt("file_id"));
+                    linked = true;
+                }
+                if (linked) {
+                    delete.setString(1, peerId);
+                    delete.setString(2, fileName);
+                    delete.addBatch();
+                }
+            }
+            if (!fileIds.isEmpty()) {
+                for (int count : delete.executeBatch()) {
+                    deleted += Math.max(0, count);
+                }
+            }
+            System.out.println("[Database] Xóa liên kết peer-file: " + deleted + " records (" + fileNames.size()
+                    + " files)");
         } catch (SQLException e) {
             e.printStackTrace();
         }
 
         // Xóa file nếu không còn peer nào chia sẻ
-        cleanupOrphanFiles();
+        deleteOrphanFiles(fileIds);
+        return deleted;
     }
 
     /**
-     * Xóa file không còn peer nào chia sẻ
+     * Xóa các file không còn peer nào chia sẻ (quét toàn bảng theo từng lô, không dùng cho đường nóng -
+     * unlinkPeerFromFiles/removeAllPeerFiles chỉ kiểm tra các file vừa gỡ)
      */
     public void cleanupOrphanFiles() {
-        String sql = "DELETE FROM files WHERE id NOT IN (SELECT DISTINCT file_id FROM peer_files)";
-        try (PreparedStatement stmt = getConnection().prepareStatement(sql)) {
-            int deleted = stmt.executeUpdate();
-            if (deleted > 0) {
-                System.out.println("[Database] Xóa " + deleted + " files không còn peer chia sẻ");
-            }
+        String sql = "DELETE FROM files WHERE NOT EXISTS " +
+                "(SELECT 1 FROM peer_files pf WHERE pf.file_id = files.id) LIMIT " + ORPHAN_CLEANUP_BATCH;
+        int total = 0;
+        try (ConnectionPool.PooledConnection conn = pool.borrow()) {
+            PreparedStatement stmt = conn.prepare(sql);
+            int deleted;
+            do {
+                deleted = stmt.executeUpdate();
+                total += deleted;
+            } while (deleted >= ORPHAN_CLEANUP_BATCH);
         } catch (SQLException e) {
             e.printStackTrace();
         }
+        if (total > 0) {
+            System.out.println("[Database] Xóa " + total + " files không còn peer chia sẻ");
+        }
     }
 
     /**
      * Xóa tất cả files của một peer (khi peer disconnect)
      */
     public void removeAllPeerFiles(String peerId) {
+        String findSql = "SELECT pf.file_id FROM peer_files pf " +
+                "JOIN peers p ON pf.peer_id = p.id " +
+                "WHERE p.peer_id = ?";
         String sql = "DELETE pf FROM peer_files pf " +
                 "JOIN peers p ON pf.peer_id = p.id " +
                 "WHERE p.peer_id = ?";
-        try (PreparedStatement stmt = getConnection().prepareStatement(sql)) {
+        List<Integer> fileIds = new ArrayList<>();
+        try (ConnectionPool.PooledConnection conn = pool.borrow()) {
+            PreparedStatement find = conn.prepare(findSql);
+            find.setString(1, peerId);
+            ResultSet rs = find.executeQuery();
+            while (rs.next()) {
+                fileIds.add(rs.getInt("file_id"));
+            }
+
+            PreparedStatement stmt = conn.prepare(sql);
             stmt.setString(1, peerId);
             int deleted = stmt.executeUpdate();
             System.out.println("[Database] Xóa " + deleted + " files của peer " + peerId);
@@ -413,7 +584,34 @@ public class DatabaseManager {
             e.printStackTrace();
         }
 
-        cleanupOrphanFiles();
+        deleteOrphanFiles(fileIds);
+    }
+
+    /**
+     * Xóa những file trong danh sách không còn peer nào chia sẻ - mỗi file một lần tra index
+     * peer_files.file_id thay vì quét toàn bảng
+     */
+    private void deleteOrphanFiles(List<Integer> fileIds) {
+        if (fileIds.isEmpty())
+            return;
+        String sql = "DELETE FROM files WHERE id = ? AND NOT EXISTS " +
+                "(SELECT 1 FROM peer_files pf WHERE pf.file_id = files.id)";
+        int deleted = 0;
+        try (ConnectionPool.PooledConnection conn = pool.borrow()) {
+            PreparedStatement stmt = conn.prepare(sql);
+            for (int fileId : new LinkedHashSet<>(fileIds)) {
+                stmt.setInt(1, fileId);
+                stmt.addBatch();
+            }
+            for (int count : stmt.executeBatch()) {
+                deleted += Math.max(0, count);
+            }
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+        if (deleted > 0) {
+            System.out.println("[Database] Xóa " + deleted + " files không còn peer chia sẻ");
+        }
     }
 
     /**
@@ -422,7 +620,8 @@ public class DatabaseManager {
     public void deleteDownload(int downloadId) {
         // Xóa sources trước
         String sqlSources = "DELETE FROM download_sources WHERE download_id = ?";
-        try (PreparedStatement stmt = getConnection().prepareStatement(sqlSources)) {
+        try (ConnectionPool.PooledConnection conn = pool.borrow()) {
+            PreparedStatement stmt = conn.prepare(sqlSources);
             stmt.setInt(1, downloadId);
             stmt.executeUpdate();
         } catch (SQLException e) {
@@ -431,7 +630,8 @@ public class DatabaseManager {
 
         // Xóa download
         String sql = "DELETE FROM downloads WHERE id = ?";
-        try (PreparedStatement stmt = getConnection().prepareStatement(sql)) {
+        try (ConnectionPool.PooledConnection conn = pool.borrow()) {
+            PreparedStatement stmt = conn.prepare(sql);
             stmt.setInt(1, downloadId);
             stmt.executeUpdate();
             System.out.println("[Database] Xóa download ID: " + downloadId);
@@ -445,7 +645,8 @@ public class DatabaseManager {
      */
     public int cleanupCompletedDownloads(String peerId) {
         String sql = "DELETE FROM downloads WHERE downloader_peer_id = ? AND status IN ('completed', 'failed')";
-        try (PreparedStatement stmt = getConnection().prepareStatement(sql)) {
+        try (ConnectionPool.PooledConnection conn = pool.borrow()) {
+            PreparedStatement stmt = conn.prepare(sql);
             stmt.setString(1, peerId);
             int deleted = stmt.executeUpdate();
             System.out.println("[Database] Xóa " + deleted + " downloads hoàn thành/lỗi");
@@ -469,7 +670,8 @@ public class DatabaseManager {
         System.out.println("Param 2 (peerId): " + peerId);
         System.out.println("Param 3 (fileName): " + fileName + " [Length: " + fileName.length() + "]");
 
-        try (PreparedStatement stmt = getConnection().prepareStatement(sql)) {
+        try (ConnectionPool.PooledConnection conn = pool.borrow()) {
+            PreparedStatement stmt = conn.prepare(sql);
             stmt.setBoolean(1, isShared);
             stmt.setString(2, peerId);
             stmt.setString(3, fileName);
@@ -481,32 +683,104 @@ public class DatabaseManager {
         }
     }
 
-    public boolean getShareStatus(String peerId, String fileName) {
+    /**
+     * Trạng thái ẩn/hiện của mọi file một peer đang chia sẻ (fileName -> is_shared)
+     *
+     * @return null nếu không đọc được DB
+     */
+    public Map<String, Boolean> getShareStatuses(String peerId) {
+        String sql = "SELECT f.file_name, pf.is_shared FROM peer_files pf " +
+                "JOIN peers p ON pf.peer_id = p.id " +
+                "JOIN files f ON pf.file_id = f.id " +
+                "WHERE p.peer_id = ?";
+        try (ConnectionPool.PooledConnection conn = pool.borrow()) {
+            PreparedStatement stmt = conn.prepare(sql);
+            stmt.setString(1, peerId);
+            ResultSet rs = stmt.executeQuery();
+            Map<String, Boolean> statuses = new HashMap<>();
+            while (rs.next()) {
+                statuses.put(rs.getString("file_name"), rs.getBoolean("is_shared"));
+            }
+            return statuses;
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+        return null;
+    }
+
+    /**
+     * Trạng thái ẩn/hiện của một file
+     *
+     * @return true nếu chưa có trong DB (file mới chia sẻ - mặc định hiện), null nếu không đọc được DB
+     */
+    public Boolean getShareStatus(String peerId, String fileName) {
         String sql = "SELECT pf.is_shared FROM peer_files pf " +
                 "JOIN peers p ON pf.peer_id = p.id " +
                 "JOIN files f ON pf.file_id = f.id " +
                 "WHERE p.peer_id = ? AND f.file_name = ?";
-        try (PreparedStatement stmt = getConnection().prepareStatement(sql)) {
+        try (ConnectionPool.PooledConnection conn = pool.borrow()) {
+            PreparedStatement stmt = conn.prepare(sql);
             stmt.setString(1, peerId);
             stmt.setString(2, fileName);
             ResultSet rs = stmt.executeQuery();
             if (rs.next()) {
                 return rs.getBoolean("is_shared");
             }
+            return true; // Chưa có dòng peer_files: file mới, mặc định hiện (như cột is_shared DEFAULT 1)
         } catch (SQLException e) {
             e.printStackTrace();
+            return null;
         }
-        return true; // Default to shared if checking fails or not found (safest assumption for
-                     // visibility, or logic can handle)
     }
 
     public void close() {
+        pool.close();
+    }
+
+    // Inner class cho một dòng peer-file (dựng index của tracker)
+    public static class PeerFileRecord {
+        public String peerId;
+        public String ip;
+        public int port;
+        public boolean online;
+        public int fileDbId; // 0 nếu peer chưa chia sẻ file nào
+        public String fileName;
+        public long fileSize;
+        public String fileHash;
+        public int chunkSize;
+        public int totalChunks;
+        public ChunkBitSet availableChunks;
+        public boolean shared;
+    }
+
+    // ==================== CHUNK ENCODING ====================
+
+    /**
+     * Giá trị cột chunk: chuỗi JSON chứa ChunkBitSet.encode() (cột có thể đang khai báo kiểu JSON)
+     */
+    private String encodeChunks(ChunkBitSet chunks) {
+        return gson.toJson(chunks != null ? chunks.encode() : null);
+    }
+
+    /**
+     * Đọc cột chunk: dạng gọn mới hoặc mảng JSON chỉ số chunk của bản cũ
+     *
+     * @return null nếu cột rỗng/không đọc được
+     */
+    private ChunkBitSet decodeChunks(String value, int totalChunks) {
+        if (value == null || value.trim().isEmpty())
+            return null;
         try {
-            if (connection != null && !connection.isClosed()) {
-                connection.close();
+            if (value.trim().startsWith("[")) {
+                List<Integer> chunks = gson.fromJson(value, new TypeToken<List<Integer>>() {
+                }.getType());
+                return chunks != null ? ChunkBitSet.of(chunks, totalChunks) : null;
             }
-        } catch (SQLException e) {
-            e.printStackTrace();
+            String encoded = gson.fromJson(value, String.class);
+            return encoded != null ? ChunkBitSet.decode(encoded) : null;
+        } catch (RuntimeException e) {
+            System.err.println("[Database] Không đọc được danh sách chunk: " + e.getMessage());
+            return null;
         }
     }
 
@@ -518,15 +792,13 @@ public class DatabaseManager {
         public long fileSize;
         public long downloadedSize;
         public int totalChunks;
-        public Set<Integer> completedChunks;
+        public ChunkBitSet completedChunks;
         public String status;
 
         public Set<Integer> getMissingChunks() {
             Set<Integer> missing = new HashSet<>();
-            for (int i = 0; i < totalChunks; i++) {
-                if (!completedChunks.contains(i)) {
-                    missing.add(i);
-                }
+            for (int i = completedChunks.nextClearBit(0); i < totalChunks; i = completedChunks.nextClearBit(i + 1)) {
+                missing.add(i);
             }
             return missing;
         }
@@ -10,8 +10,10 @@ import java.awt.*;
 import java.awt.event.*;
 import java.awt.geom.RoundRectangle2D;
 import java.io.File;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map; // Added for Map import
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Giao diện hiện đại cho P2P File Sharing
@@ -33,7 +35,7 @@ public class ModernPeerGUI extends JFrame {
     private static final Color BORDER_COLOR = new Color(75, 85, 99);
 
     private Peer peer;
-    private MultiSourceDownloader downloader;
+    private DownloadManager downloadManager;
 
     // Components
     private JTextField trackerField;
@@ -43,6 +45,9 @@ public class ModernPeerGUI extends JFrame {
     private JTextField searchField;
     private JTable fileTable;
     private DefaultTableModel tableModel;
+    private static final int FILE_LIST_BATCH_SIZE = 500; // Số file mỗi lô khi tải danh sách
+    private final AtomicInteger fileListGeneration = new AtomicInteger();
+    private final List<FileInfo> fileRows = new ArrayList<>(); // FileInfo (đã gộp theo hash) của từng dòng tableModel
     private JTable downloadTable;
     private DefaultTableModel downloadTableModel;
     private JTable sharedTable;
@@ -120,8 +125,8 @@ public class ModernPeerGUI extends JFrame {
                 if (peer != null && peer.isRunning()) {
                     peer.stop();
                 }
-                if (downloader != null) {
-                    downloader.shutdown();
+                if (downloadManager != null) {
+                    downloadManager.shutdown();
                 }
             }
         });
@@ -547,6 +552,7 @@ public class ModernPeerGUI extends JFrame {
             connectBtn.setBackground(PRIMARY);
             log("Đã ngắt kết nối");
             tableModel.setRowCount(0);
+            fileRows.clear();
             sharedTableModel.setRowCount(0);
         } else {
             try {
@@ -583,7 +589,8 @@ public class ModernPeerGUI extends JFrame {
                     peer.getFileManager().setDownloadFolder(currentDownloadFolder);
                 }
 
-                downloader = new MultiSourceDownloader(peer.getPeerID(), peer.getFileManager());
+                downloadManager = new DownloadManager(peer.getPeerID(), peer.getFileManager());
+                downloadManager.setSourceProvider(peer::getFileSources);
                 setupDownloaderCallback();
                 setupPeerCallback(); // Setup callback for single-source downloads
 
@@ -612,12 +619,18 @@ public class ModernPeerGUI extends JFrame {
     }
 
     private void setupDownloaderCallback() {
-        downloader.setCallback(new MultiSourceDownloader.DownloadCallback() {
+        downloadManager.setCallback(new MultiSourceDownloader.DownloadCallback() {
             @Override
             public void onDownloadStarted(String fileName, int totalSources) {
                 SwingUtilities.invokeLater(() -> {
-                    downloadTableModel
-                            .addRow(new Object[] { fileName, 0, "0 KB/s", totalSources + " nguon", "Dang tai" });
+                    int row = findDownloadRow(fileName);
+                    if (row >= 0) { // Tiếp tục lượt tải đã tạm dừng
+                        downloadTableModel.setValueAt(totalSources + " nguon", row, 3);
+                        downloadTableModel.setValueAt("Dang tai", row, 4);
+                    } else {
+                        downloadTableModel
+                                .addRow(new Object[] { fileName, 0, "0 KB/s", totalSources + " nguon", "Dang tai" });
+                    }
                     log("Bat dau tai " + fileName + " tu " + totalSources + " nguon");
                 });
             }
@@ -749,47 +762,88 @@ public class ModernPeerGUI extends JFrame {
     }
 
     private void updateDownloadRow(String fileName, int percent, String speed, String status) {
+        int i = findDownloadRow(fileName);
+        if (i >= 0) {
+            downloadTableModel.setValueAt(percent, i, 1);
+            downloadTableModel.setValueAt(speed, i, 2);
+            downloadTableModel.setValueAt(status, i, 4);
+        }
+    }
+
+    private int findDownloadRow(String fileName) {
         for (int i = 0; i < downloadTableModel.getRowCount(); i++) {
-            if (downloadTableModel.getValueAt(i, 0).equals(fileName)) {
-                downloadTableModel.setValueAt(percent, i, 1);
-                downloadTableModel.setValueAt(speed, i, 2);
-                downloadTableModel.setValueAt(status, i, 4);
-                return;
-            }
+            if (downloadTableModel.getValueAt(i, 0).equals(fileName))
+                return i;
         }
+        return -1;
     }
 
     private void searchFiles() {
         if (peer == null)
             return;
         String keyword = searchField.getText().trim();
-        List<FileInfo> results = keyword.isEmpty() ? peer.getAllAvailableFiles() : peer.search(keyword);
-        System.out.println("[GUI] searchFiles returned " + results.size() + " files from tracker/database");
-        updateFileTable(results);
-        log("🔍 Tìm thấy " + results.size() + " files" + (keyword.isEmpty() ? "" : " cho '" + keyword + "'"));
+        loadFileTable(keyword.isEmpty() ? null : keyword);
     }
 
     private void refreshFileList() {
         if (peer == null)
             return;
-        List<FileInfo> files = peer.getAllAvailableFiles();
-        System.out.println("[GUI] refreshFileList returned " + files.size() + " files from tracker/database");
-        updateFileTable(files);
-        log("🔄 Đã làm mới: " + files.size() + " files");
+        loadFileTable(null);
     }
 
-    private void updateFileTable(List<FileInfo> files) {
+    /**
+     * Tải danh sách file ở nền, thêm vào bảng theo từng lô khi nhận được
+     * (keyword = null: tất cả files). Lần tải mới hủy hiệu lực các lô của lần trước.
+     */
+    private void loadFileTable(String keyword) {
+        int generation = fileListGeneration.incrementAndGet();
         tableModel.setRowCount(0);
+        fileRows.clear();
+
+        new Thread(() -> {
+            int[] received = { 0, 0 }; // dòng, tổng số file
+            boolean ok = peer.streamFiles(keyword, FILE_LIST_BATCH_SIZE, page -> {
+                received[0] += page.getResults().size();
+                received[1] = page.getTotal();
+                SwingUtilities.invokeLater(() -> {
+                    if (generation == fileListGeneration.get()) {
+                        appendFileRows(page.getResults());
+                    }
+                });
+            });
+
+            System.out.println("[GUI] loadFileTable received " + received[0] + " rows from tracker");
+            SwingUtilities.invokeLater(() -> {
+                if (generation != fileListGeneration.get())
+                    return;
+                if (!ok) {
+                    log("❌ Không lấy được danh sách file từ Tracker");
+                } else if (keyword == null) {
+                    log("🔄 Đã làm mới: " + received[1] + " files");
+                } else {
+                    log("🔍 Tìm thấy " + received[1] + " files cho '" + keyword + "'");
+                }
+            });
+        }, "file-list-loader").start();
+    }
+
+    private void appendFileRows(List<FileInfo> files) {
         for (FileInfo f : files) {
             String hashDisplay = "N/A";
             if (f.getFileHash() != null && f.getFileHash().length() >= 8) {
                 hashDisplay = f.getFileHash().substring(0, 8) + "...";
             }
+            int seeds = f.getSeedCount() > 0 ? f.getSeedCount() : 1;
+            String source = f.getPeerIP() + ":" + f.getPeerPort();
+            if (seeds > 1) {
+                source += " (+" + (seeds - 1) + ")";
+            }
+            fileRows.add(f);
             tableModel.addRow(new Object[] {
                     f.getFileName(),
                     f.getFormattedSize(),
-                    f.getSeedCount() > 0 ? f.getSeedCount() : 1,
-                    f.getPeerIP() + ":" + f.getPeerPort(),
+                    seeds,
+                    source,
                     hashDisplay
             });
         }
@@ -821,32 +875,30 @@ public class ModernPeerGUI extends JFrame {
         }
 
         for (int row : selectedRows) {
-            String fileName = (String) tableModel.getValueAt(row, 0);
-            List<FileInfo> files = peer.search(fileName);
-            if (!files.isEmpty()) {
-                String finalSavePath = savePath;
-
-                // Check if file exists before downloading
-                File targetFile = peer.getFileManager().getTargetFile(fileName, finalSavePath);
-                if (targetFile.exists()) {
-                    int k = JOptionPane.showConfirmDialog(
-                            this,
-                            "File '" + fileName + "' da ton tai.\nBan co muon ghi de khong?",
-                            "Xac nhan ghi de",
-                            JOptionPane.YES_NO_OPTION,
-                            JOptionPane.WARNING_MESSAGE);
-                    if (k != JOptionPane.YES_OPTION) {
-                        continue; // Skip this file
-                    }
+            FileInfo selected = fileRows.get(row);
+            String fileName = selected.getFileName();
+            String finalSavePath = savePath;
+
+            // Check if file exists before downloading
+            File targetFile = peer.getFileManager().getTargetFile(fileName, finalSavePath);
+            if (targetFile.exists()) {
+                int k = JOptionPane.showConfirmDialog(
+                        this,
+                        "File '" + fileName + "' da ton tai.\nBan co muon ghi de khong?",
+                        "Xac nhan ghi de",
+                        JOptionPane.YES_NO_OPTION,
+                        JOptionPane.WARNING_MESSAGE);
+                if (k != JOptionPane.YES_OPTION) {
+                    continue; // Skip this file
                 }
-
-                new Thread(() -> peer.download(files.get(0), finalSavePath)).start();
             }
+
+            new Thread(() -> peer.download(selected, finalSavePath)).start();
         }
     }
 
     private void downloadMultiSource() {
-        if (peer == null || fileTable.getSelectedRow() < 0 || downloader == null)
+        if (peer == null || fileTable.getSelectedRow() < 0 || downloadManager == null)
             return;
 
         int[] selectedRows = fileTable.getSelectedRows();
@@ -869,11 +921,8 @@ public class ModernPeerGUI extends JFrame {
         }
 
         for (int row : selectedRows) {
-            String fileName = (String) tableModel.getValueAt(row, 0);
-            List<FileInfo> files = peer.search(fileName);
-            if (!files.isEmpty()) {
-                downloader.downloadFile(files.get(0), savePath);
-            }
+            // Danh sách nguồn đầy đủ được downloader lấy qua GET_FILE_SOURCES
+            downloadManager.download(fileRows.get(row), savePath);
         }
     }
 
@@ -986,18 +1035,39 @@ public class ModernPeerGUI extends JFrame {
     }
 
     private void pauseDownload() {
-        if (downloader != null)
-            downloader.pause();
+        DownloadManager.DownloadHandle handle = getSelectedDownload();
+        if (handle != null)
+            handle.pause();
     }
 
     private void resumeDownload() {
-        // TODO: Get selected file and resume
-        log("▶️ Chức năng resume - chọn file từ danh sách");
+        DownloadManager.DownloadHandle handle = getSelectedDownload();
+        if (handle == null)
+            return;
+        if (handle.getState() == DownloadManager.State.PAUSED) {
+            handle.resume();
+            downloadTableModel.setValueAt("Dang cho", downloadTable.getSelectedRow(), 4);
+        } else {
+            log("Chi tiep tuc duoc download dang tam dung: " + handle.getFileName());
+        }
     }
 
     private void cancelDownload() {
-        if (downloader != null)
-            downloader.cancel();
+        DownloadManager.DownloadHandle handle = getSelectedDownload();
+        if (handle != null && handle.isActive()) {
+            handle.cancel();
+            downloadTableModel.setValueAt("Da huy", downloadTable.getSelectedRow(), 4);
+        }
+    }
+
+    /**
+     * Lượt tải nhiều nguồn của dòng đang chọn trong bảng download (null nếu không có)
+     */
+    private DownloadManager.DownloadHandle getSelectedDownload() {
+        int selectedRow = downloadTable.getSelectedRow();
+        if (downloadManager == null || selectedRow < 0)
+            return null;
+        return downloadManager.getHandle((String) downloadTableModel.getValueAt(selectedRow, 0));
     }
 
     private void shareNewFile() {
@@ -1111,7 +1181,6 @@ public class ModernPeerGUI extends JFrame {
         }
 
         String fileName = (String) downloadTableModel.getValueAt(selectedRow, 0);
-        String status = (String) downloadTableModel.getValueAt(selectedRow, 4);
 
         // Xác nhận xóa
         int confirm = JOptionPane.showConfirmDialog(
@@ -1123,10 +1192,10 @@ public class ModernPeerGUI extends JFrame {
 
         if (confirm == JOptionPane.YES_OPTION) {
             // Hủy download nếu đang tải
-            if (status.contains("Đang tải")) {
-                if (downloader != null) {
-                    downloader.cancel();
-                }
+            if (downloadManager != null) {
+                DownloadManager.DownloadHandle handle = downloadManager.getHandle(fileName);
+                if (handle != null)
+                    handle.cancel();
             }
 
             // Xóa file tạm
@@ -0,0 +1,164 @@
+package peer;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * Danh sách hash của từng chunk trong một file (manifest)
+ * - Tính cùng lúc với MD5 của cả file khi publish, seeder gửi cho peer tải qua REQUEST_MANIFEST
+ * - Peer tải kiểm tra từng chunk ngay khi nhận, không cần băm lại cả file sau khi tải xong
+ * - Định dạng gửi đi: các digest MD5 (16 byte) của chunk 0, 1, 2... nối liền nhau
+ */
+public class ChunkManifest {
+    public static final String ALGORITHM = "MD5";
+    public static final int DIGEST_LENGTH = 16;
+    private static final int READ_BUFFER_SIZE = 1024 * 1024; // Đọc file theo khối 1MB (direct buffer)
+
+    private final int chunkSize;
+    private final long fileSize;
+    private final byte[] digests; // DIGEST_LENGTH byte cho mỗi chunk
+
+    // MD5 cả file khi manifest tính từ file cục bộ: dùng để biết manifest còn đúng với file không
+    // (null với manifest nhận từ mạng)
+    private final String fileHash;
+
+    private ChunkManifest(int chunkSize, long fileSize, byte[] digests, String fileHash) {
+        this.chunkSize = chunkSize;
+        this.fileSize = fileSize;
+        this.digests = digests;
+        this.fileHash = fileHash;
+    }
+
+    /**
+     * Đọc file một lượt: vừa tính MD5 của cả file vừa tính hash của từng chunk
+     * (đọc bằng FileChannel vào direct buffer lớn, mỗi khối chứa nguyên một số chunk)
+     */
+    public static ChunkManifest compute(File file, int chunkSize) throws IOException {
+        long fileSize = file.length();
+        int chunkCount = chunkCount(fileSize, chunkSize);
+
+        MessageDigest fileDigest = newDigest();
+        MessageDigest chunkDigest = newDigest();
+        byte[] digests = new byte[chunkCount * DIGEST_LENGTH];
+
+        int chunksPerRead = Math.max(1, READ_BUFFER_SIZE / chunkSize);
+        ByteBuffer buffer = ByteBuffer.allocateDirect(chunksPerRead * chunkSize);
+
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long position = 0;
+            int chunk = 0;
+            while (chunk < chunkCount) {
+                buffer.clear();
+                buffer.limit((int) Math.min(buffer.capacity(), fileSize - position));
+                while (buffer.hasRemaining()) {
+                    if (channel.read(buffer, position + buffer.position()) < 0)
+                        throw new EOFException("File bị thay đổi trong lúc tính hash");
+                }
+                buffer.flip();
+                position += buffer.limit();
+
+                fileDigest.update(buffer.duplicate());
+                while (buffer.hasRemaining()) {
+                    ByteBuffer slice = buffer.duplicate();
+                    slice.limit(Math.min(buffer.limit(), buffer.position() + chunkSize));
+                    buffer.position(slice.limit());
+                    chunkDigest.update(slice);
+                    System.arraycopy(chunkDigest.digest(), 0, digests, chunk * DIGEST_LENGTH, DIGEST_LENGTH);
+                    chunk++;
+                }
+            }
+        }
+
+        return new ChunkManifest(chunkSize, fileSize, digests, toHex(fileDigest.digest()));
+    }
+
+    /**
+     * Dựng manifest nhận được từ seeder
+     *
+     * @return null nếu dữ liệu không khớp kích thước file
+     */
+    public static ChunkManifest fromBytes(byte[] data, int chunkSize, long fileSize) {
+        if (data == null || chunkSize <= 0 || data.length != chunkCount(fileSize, chunkSize) * DIGEST_LENGTH) {
+            return null;
+        }
+        return new ChunkManifest(chunkSize, fileSize, data.clone(), null);
+    }
+
+    /**
+     * Dựng lại manifest của file cục bộ đã lưu (ManifestStore)
+     *
+     * @return null nếu dữ liệu không khớp kích thước file
+     */
+    static ChunkManifest restore(byte[] digests, int chunkSize, long fileSize, String fileHash) {
+        if (chunkSize <= 0 || digests.length != chunkCount(fileSize, chunkSize) * DIGEST_LENGTH)
+            return null;
+        return new ChunkManifest(chunkSize, fileSize, digests, fileHash);
+    }
+
+    public byte[] toBytes() {
+        return digests.clone();
+    }
+
+    /**
+     * Kiểm tra dữ liệu một chunk vừa nhận
+     */
+    public boolean verify(int chunkIndex, byte[] data) {
+        if (chunkIndex < 0 || chunkIndex >= getChunkCount() || data == null)
+            return false;
+        long expectedLength = Math.min(chunkSize, fileSize - (long) chunkIndex * chunkSize);
+        if (data.length != expectedLength)
+            return false;
+
+        byte[] actual = newDigest().digest(data);
+        int from = chunkIndex * DIGEST_LENGTH;
+        return Arrays.equals(actual, 0, DIGEST_LENGTH, digests, from, from + DIGEST_LENGTH);
+    }
+
+    public boolean sameDigests(ChunkManifest other) {
+        return other != null && chunkSize == other.chunkSize && Arrays.equals(digests, other.digests);
+    }
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    public long getFileSize() {
+        return fileSize;
+    }
+
+    public int getChunkCount() {
+        return digests.length / DIGEST_LENGTH;
+    }
+
+    /**
+     * MD5 của cả file (null với manifest nhận từ mạng)
+     */
+    public String getFileHash() {
+        return fileHash;
+    }
+
+    private static int chunkCount(long fileSize, int chunkSize) {
+        return (int) ((fileSize + chunkSize - 1) / chunkSize);
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance(ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String toHex(byte[] digest) {
+        StringBuilder sb = new StringBuilder();
+        for (byte b : digest) {
+            sb.append(String.format("%02x", b));
+        }
+        return sb.toString();
+    }
+}
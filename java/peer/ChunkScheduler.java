@@ -0,0 +1,348 @@
+package peer;
+
+import utils.ChunkBitSet;
+
+import java.util.*;
+
+/**
+ * Chọn chunk tiếp theo cho từng nguồn của một lượt tải nhiều nguồn
+ * - Chỉ giao cho nguồn những chunk nó có (availableChunks từ tracker/DB, rỗng = có đủ file)
+ *   và chưa từng gửi sai
+ * - Chiến lược chọn trong số chunk còn trống do lớp con quyết định: tuần tự hoặc hiếm nhất trước
+ * - Endgame (tùy chọn): khi chỉ còn vài chunk và chúng đều đang được tải, nguồn rảnh tải trùng
+ *   chunk của nguồn có điểm sức khỏe thấp nhất, bản nào về trước thì dùng
+ * - Nguồn kém hơn hẳn nguồn tốt nhất không nhận những chunk cuối cùng
+ *
+ * Mọi phương thức đều được gọi từ nhiều worker nên đồng bộ trên chính scheduler
+ */
+public abstract class ChunkScheduler {
+    private static final int ENDGAME_CHUNKS = 16; // Số chunk còn lại để bắt đầu endgame
+    private static final int MAX_COPIES = 2; // Số nguồn tối đa cùng tải một chunk trong endgame
+    private static final double SLOW_RATIO = 4.0; // Điểm kém nguồn tốt nhất 4 lần => nguồn chậm
+
+    protected final int totalChunks;
+    private final boolean endgame;
+
+    private final BitSet completed = new BitSet();
+    private final BitSet open = new BitSet(); // Chưa xong và chưa giao cho ai
+    private final int[] availability; // Số nguồn có từng chunk
+    private final Map<Integer, Set<String>> assigned = new HashMap<>(); // chunk đang tải -> các nguồn
+    private final Map<String, Source> sources = new HashMap<>();
+    private int partialSources; // Số nguồn chỉ có một phần file
+
+    /**
+     * Trạng thái một nguồn trong scheduler
+     */
+    protected static class Source {
+        final String id;
+        final BitSet has; // null = có đủ file
+        final BitSet refused = new BitSet(); // Chunk nguồn này đã gửi sai
+        double score; // Điểm sức khỏe do worker báo (SourceHealth), 0 = chưa có
+
+        Source(String id, BitSet has) {
+            this.id = id;
+            this.has = has;
+        }
+
+        boolean canServe(int chunk) {
+            return (has == null || has.get(chunk)) && !refused.get(chunk);
+        }
+    }
+
+    protected ChunkScheduler(int totalChunks, boolean endgame) {
+        this.totalChunks = totalChunks;
+        this.endgame = endgame;
+        this.availability = new int[totalChunks];
+        open.set(0, totalChunks);
+    }
+
+    /**
+     * Tải theo thứ tự chunk, không endgame (hành vi cũ)
+     */
+    public static ChunkScheduler sequential(int totalChunks) {
+        return new Sequential(totalChunks);
+    }
+
+    /**
+     * Chunk ít nguồn có nhất trước, có endgame
+     */
+    public static ChunkScheduler rarestFirst(int totalChunks) {
+        return new RarestFirst(totalChunks);
+    }
+
+    /**
+     * Chọn một chunk trong open cho nguồn
+     *
+     * @return -1 nếu không còn chunk trống nào nguồn này tải được
+     */
+    protected abstract int choose(Source source, BitSet open, int[] availability);
+
+    /**
+     * Mọi nguồn đều có đủ file (độ hiếm của các chunk như nhau)
+     */
+    protected boolean allSourcesComplete() {
+        return partialSources == 0;
+    }
+
+    /**
+     * Chunk trống có chỉ số nhỏ nhất mà nguồn tải được
+     */
+    protected static int firstServable(Source source, BitSet open) {
+        for (int i = open.nextSetBit(0); i >= 0; i = open.nextSetBit(i + 1)) {
+            if (source.canServe(i))
+                return i;
+        }
+        return -1;
+    }
+
+    // ==================== TRẠNG THÁI ====================
+
+    /**
+     * Đánh dấu các chunk đã có sẵn (tiếp tục tải)
+     */
+    public synchronized void markCompleted(ChunkBitSet chunks) {
+        for (int chunk = chunks.nextSetBit(0); chunk >= 0 && chunk < totalChunks;
+                chunk = chunks.nextSetBit(chunk + 1)) {
+            completed.set(chunk);
+            open.clear(chunk);
+        }
+    }
+
+    /**
+     * Thêm nguồn và các chunk nó có (null/rỗng = đủ file)
+     */
+    public synchronized void addSource(String sourceId, ChunkBitSet availableChunks) {
+        if (sources.containsKey(sourceId))
+            return;
+        BitSet has = null;
+        if (availableChunks != null && !availableChunks.isEmpty()) {
+            has = availableChunks.toBitSet();
+            has.clear(totalChunks, Math.max(totalChunks, has.length()));
+            if (has.cardinality() == totalChunks)
+                has = null; // Seed: danh sách đủ mọi chunk
+        }
+        for (int i = 0; i < totalChunks; i++) {
+            if (has == null || has.get(i))
+                availability[i]++;
+        }
+        if (has != null)
+            partialSources++;
+        sources.put(sourceId, new Source(sourceId, has));
+    }
+
+    /**
+     * Nguồn ngừng tải (kết thúc/lỗi/bị loại): trả các chunk đang giao cho nó
+     */
+    public synchronized void removeSource(String sourceId) {
+        Source source = sources.remove(sourceId);
+        if (source == null)
+            return;
+        for (int i = 0; i < totalChunks; i++) {
+            if (source.has == null || source.has.get(i))
+                availability[i]--;
+        }
+        if (source.has != null)
+            partialSources--;
+        for (Integer chunk : new ArrayList<>(assigned.keySet())) {
+            unassign(chunk, sourceId);
+        }
+    }
+
+    /**
+     * Chunk tiếp theo cho nguồn
+     *
+     * @return null nếu hiện chưa có chunk nào cho nguồn này (xem hasWorkFor)
+     */
+    public synchronized Integer next(String sourceId) {
+        Source source = sources.get(sourceId);
+        if (source == null)
+            return null;
+
+        int chunk = choose(source, open, availability);
+        if (chunk < 0 && endgame)
+            chunk = chooseEndgame(source);
+        if (chunk < 0)
+            return null;
+
+        if (open.cardinality() <= ENDGAME_CHUNKS && isSlow(source) && fastSourceCanServe(chunk))
+            return null; // Để những chunk cuối cho nguồn nhanh
+
+        open.clear(chunk);
+        assigned.computeIfAbsent(chunk, c -> new HashSet<>()).add(sourceId);
+        return chunk;
+    }
+
+    /**
+     * Chunk đã nhận và kiểm tra xong
+     *
+     * @return false nếu chunk đã hoàn thành từ trước (bản trùng của endgame) - bỏ qua dữ liệu
+     */
+    public synchronized boolean onReceived(String sourceId, int chunk, double score) {
+        Source source = sources.get(sourceId);
+        if (source != null && score > 0)
+            source.score = score;
+        assigned.remove(chunk);
+        if (completed.get(chunk))
+            return false;
+        completed.set(chunk);
+        open.clear(chunk);
+        return true;
+    }
+
+    /**
+     * Chunk đã nhận (onReceived) nhưng ghi vào file tạm lỗi - mở lại để tải lại
+     */
+    public synchronized void onWriteFailed(int chunk) {
+        completed.clear(chunk);
+        open.set(chunk);
+    }
+
+    /**
+     * Tải chunk thất bại (lỗi kết nối/timeout) - trả lại để giao tiếp
+     */
+    public synchronized void onFailed(String sourceId, int chunk) {
+        unassign(chunk, sourceId);
+    }
+
+    /**
+     * Nguồn gửi sai hash - không giao chunk này cho nguồn đó nữa
+     */
+    public synchronized void onRejected(String sourceId, int chunk) {
+        Source source = sources.get(sourceId);
+        if (source != null)
+            source.refused.set(chunk);
+        unassign(chunk, sourceId);
+    }
+
+    /**
+     * Còn chunk nào chưa xong mà nguồn này tải được không (kể cả chunk đang ở nguồn khác)
+     */
+    public synchronized boolean hasWorkFor(String sourceId) {
+        Source source = sources.get(sourceId);
+        if (source == null)
+            return false;
+        for (int i = completed.nextClearBit(0); i < totalChunks; i = completed.nextClearBit(i + 1)) {
+            if (source.canServe(i))
+                return true;
+        }
+        return false;
+    }
+
+    public synchronized int getSourceCount() {
+        return sources.size();
+    }
+
+    public synchronized boolean isDone() {
+        return completed.cardinality() == totalChunks;
+    }
+
+    public synchronized int getCompletedCount() {
+        return completed.cardinality();
+    }
+
+    // ==================== NỘI BỘ ====================
+
+    private void unassign(int chunk, String sourceId) {
+        Set<String> holders = assigned.get(chunk);
+        if (holders == null || !holders.remove(sourceId))
+            return;
+        if (holders.isEmpty()) {
+            assigned.remove(chunk);
+            if (!completed.get(chunk))
+                open.set(chunk);
+        }
+    }
+
+    /**
+     * Tải trùng một chunk đang ở nguồn khác - ưu tiên chunk của nguồn kém nhất
+     */
+    private int chooseEndgame(Source source) {
+        if (totalChunks - completed.cardinality() > ENDGAME_CHUNKS)
+            return -1;
+
+        int best = -1;
+        double lowestScore = Double.MAX_VALUE;
+        for (Map.Entry<Integer, Set<String>> e : assigned.entrySet()) {
+            int chunk = e.getKey();
+            Set<String> holders = e.getValue();
+            if (holders.contains(source.id) || holders.size() >= MAX_COPIES || !source.canServe(chunk))
+                continue;
+            double holderScore = 0;
+            for (String holder : holders) {
+                Source s = sources.get(holder);
+                holderScore = Math.max(holderScore, s != null ? s.score : 0);
+            }
+            if (holderScore < lowestScore || (holderScore == lowestScore && chunk < best)) {
+                best = chunk;
+                lowestScore = holderScore;
+            }
+        }
+        return best;
+    }
+
+    private boolean isSlow(Source source) {
+        if (source.score <= 0)
+            return false; // Chưa đo được
+        return source.score * SLOW_RATIO < bestScore();
+    }
+
+    private boolean fastSourceCanServe(int chunk) {
+        for (Source s : sources.values()) {
+            if (s.canServe(chunk) && !isSlow(s))
+                return true;
+        }
+        return false;
+    }
+
+    private double bestScore() {
+        double best = 0;
+        for (Source s : sources.values()) {
+            best = Math.max(best, s.score);
+        }
+        return best;
+    }
+
+    // ==================== CHIẾN LƯỢC ====================
+
+    /**
+     * Chunk có chỉ số nhỏ nhất mà nguồn tải được
+     */
+    private static class Sequential extends ChunkScheduler {
+        Sequential(int totalChunks) {
+            super(totalChunks, false);
+        }
+
+        @Override
+        protected int choose(Source source, BitSet open, int[] availability) {
+            return firstServable(source, open);
+        }
+    }
+
+    /**
+     * Chunk ít nguồn có nhất (bằng nhau thì chỉ số nhỏ nhất) - chunk hiếm được tải sớm
+     * trước khi nguồn duy nhất có nó rời mạng
+     */
+    private static class RarestFirst extends ChunkScheduler {
+        RarestFirst(int totalChunks) {
+            super(totalChunks, true);
+        }
+
+        @Override
+        protected int choose(Source source, BitSet open, int[] availability) {
+            if (allSourcesComplete())
+                return firstServable(source, open); // Không cần quét độ hiếm
+
+            int best = -1;
+            for (int i = open.nextSetBit(0); i >= 0; i = open.nextSetBit(i + 1)) {
+                if (!source.canServe(i))
+                    continue;
+                if (best < 0 || availability[i] < availability[best]) {
+                    best = i;
+                    if (availability[i] <= 1)
+                        break; // Không thể hiếm hơn
+                }
+            }
+            return best;
+        }
+    }
+}
@@ -0,0 +1,225 @@
+package peer;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Ghi các chunk tải song song vào file tạm
+ * - Mặc định: mỗi worker ghi thẳng bằng FileChannel.write(buffer, position), không khóa chung
+ *   (ghi theo vị trí không đụng con trỏ file nên các worker không phải chờ nhau)
+ * - Write-behind (tùy chọn): worker chỉ xếp chunk vào hàng đợi, một luồng ghi riêng gom các
+ *   chunk liền kề thành một lần ghi tuần tự lớn
+ * - Listener được gọi sau khi chunk đã nằm trong file, nên trạng thái resume không bao giờ
+ *   ghi nhận chunk còn trong hàng đợi
+ */
+public class ChunkWriter implements Closeable {
+    private static final int MAX_QUEUED_CHUNKS = 128; // Worker chờ nếu luồng ghi tụt lại quá xa
+    private static final int MAX_COALESCED_BYTES = 1024 * 1024; // Kích thước tối đa một lần ghi gộp
+
+    private final RandomAccessFile raf;
+    private final FileChannel channel;
+    private final WriteListener listener;
+
+    // Chỉ dùng khi bật write-behind
+    private final BlockingQueue<PendingChunk> queue;
+    private final Thread writerThread;
+    private volatile IOException writeError;
+    private volatile boolean closed;
+    private long coalescedWrites;
+    private long queuedChunks;
+
+    /**
+     * Nhận thông báo khi một chunk đã được ghi xong
+     */
+    public interface WriteListener {
+        void onWritten(int chunkIndex, int length);
+    }
+
+    private static class PendingChunk {
+        static final PendingChunk END = new PendingChunk(-1, -1, null);
+
+        final int chunkIndex;
+        final long offset;
+        final byte[] data;
+
+        PendingChunk(int chunkIndex, long offset, byte[] data) {
+            this.chunkIndex = chunkIndex;
+            this.offset = offset;
+            this.data = data;
+        }
+
+        long end() {
+            return offset + data.length;
+        }
+    }
+
+    /**
+     * Mở (hoặc tạo) file tạm và cấp sẵn đủ kích thước file
+     */
+    public ChunkWriter(File file, long fileSize, boolean writeBehind, WriteListener listener) throws IOException {
+        this.raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(fileSize);
+        } catch (IOException e) {
+            raf.close();
+            throw e;
+        }
+        this.channel = raf.getChannel();
+        this.listener = listener;
+
+        if (writeBehind) {
+            queue = new LinkedBlockingQueue<>(MAX_QUEUED_CHUNKS);
+            writerThread = new Thread(this::writeLoop, "chunk-writer-" + file.getName());
+            writerThread.setDaemon(true);
+            writerThread.start();
+        } else {
+            queue = null;
+            writerThread = null;
+        }
+    }
+
+    /**
+     * Ghi một chunk (write-behind: xếp vào hàng đợi, chờ nếu hàng đợi đầy)
+     */
+    public void write(int chunkIndex, long offset, byte[] data) throws IOException {
+        if (queue == null) {
+            writeFully(ByteBuffer.wrap(data), offset);
+            listener.onWritten(chunkIndex, data.length);
+            return;
+        }
+
+        checkError();
+        try {
+            queue.put(new PendingChunk(chunkIndex, offset, data));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Bị ngắt khi chờ ghi chunk " + chunkIndex);
+        }
+    }
+
+    /**
+     * Đẩy các chunk đã ghi xuống đĩa (fsync) - không làm gì nếu đã đóng (close() đã fsync)
+     */
+    public void force() throws IOException {
+        if (closed)
+            return;
+        try {
+            channel.force(false);
+        } catch (ClosedChannelException e) {
+            if (!closed)
+                throw e;
+        }
+    }
+
+    /**
+     * Ghi nốt hàng đợi, fsync rồi đóng file
+     *
+     * @throws IOException lỗi ghi của luồng write-behind (nếu có)
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            if (writerThread != null) {
+                boolean interrupted = false;
+                while (true) {
+                    try {
+                        queue.put(PendingChunk.END);
+                        writerThread.join();
+                        break;
+                    } catch (InterruptedException e) {
+                        interrupted = true; // Vẫn phải đợi ghi xong trước khi đóng file
+                    }
+                }
+                if (interrupted)
+                    Thread.currentThread().interrupt();
+                if (queuedChunks > 0) {
+                    System.out.println("[ChunkWriter] " + queuedChunks + " chunks ghi bằng " + coalescedWrites
+                            + " lần ghi");
+                }
+            }
+            channel.force(false);
+        } finally {
+            closed = true;
+            raf.close();
+        }
+        checkError();
+    }
+
+    // ==================== WRITE-BEHIND ====================
+
+    private void writeLoop() {
+        List<PendingChunk> batch = new ArrayList<>();
+        boolean running = true;
+        while (running) {
+            try {
+                batch.add(queue.take());
+            } catch (InterruptedException e) {
+                continue; // Chỉ dừng khi nhận END để không mất chunk đã xếp hàng
+            }
+            queue.drainTo(batch);
+
+            if (batch.remove(PendingChunk.END))
+                running = false;
+            batch.sort(Comparator.comparingLong(c -> c.offset));
+
+            int from = 0;
+            while (from < batch.size()) {
+                int to = from + 1;
+                long runBytes = batch.get(from).data.length;
+                while (to < batch.size() && batch.get(to).offset == batch.get(to - 1).end()
+                        && runBytes + batch.get(to).data.length <= MAX_COALESCED_BYTES) {
+                    runBytes += batch.get(to).data.length;
+                    to++;
+                }
+                writeRun(batch.subList(from, to));
+                from = to;
+            }
+            batch.clear();
+        }
+    }
+
+    /**
+     * Ghi một dãy chunk liền kề bằng một lần ghi gộp (chỉ luồng ghi dùng con trỏ file)
+     */
+    private void writeRun(List<PendingChunk> run) {
+        if (writeError != null)
+            return; // Đã lỗi: bỏ qua, các chunk này không được đánh dấu hoàn thành
+
+        ByteBuffer[] buffers = new ByteBuffer[run.size()];
+        for (int i = 0; i < buffers.length; i++) {
+            buffers[i] = ByteBuffer.wrap(run.get(i).data);
+        }
+        try {
+            channel.position(run.get(0).offset);
+            while (buffers[buffers.length - 1].hasRemaining()) {
+                channel.write(buffers);
+            }
+        } catch (IOException e) {
+            writeError = e;
+            System.err.println("[ChunkWriter] Lỗi ghi file: " + e.getMessage());
+            return;
+        }
+        coalescedWrites++;
+        queuedChunks += run.size();
+        for (PendingChunk chunk : run) {
+            listener.onWritten(chunk.chunkIndex, chunk.data.length);
+        }
+    }
+
+    private void writeFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    private void checkError() throws IOException {
+        IOException error = writeError;
+        if (error != null)
+            throw new IOException("Lỗi ghi file tạm: " + error.getMessage(), error);
+    }
+}
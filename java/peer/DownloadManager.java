@@ -0,0 +1,347 @@
+package peer;
+
+import tracker.FileInfo;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Quản lý mọi lượt tải nhiều nguồn của một peer
+ * - Một pool thread chung có giới hạn thay cho pool riêng của từng MultiSourceDownloader
+ * - Tối đa maxDownloads lượt tải chạy cùng lúc, các lượt còn lại xếp hàng theo độ ưu tiên
+ * - Tối đa maxConnections kết nối tới nguồn cho tất cả lượt tải, chia đều giữa các lượt đang chạy
+ * - Giới hạn băng thông (tùy chọn) chia đều cho các lượt đang chạy
+ * - Mỗi lượt tải có một DownloadHandle riêng để tạm dừng/tiếp tục/hủy/đổi ưu tiên
+ */
+public class DownloadManager {
+    public static final int DEFAULT_MAX_DOWNLOADS = 3;
+    public static final int DEFAULT_MAX_CONNECTIONS = 12;
+    private static final long SHUTDOWN_WAIT_MS = 5000;
+
+    private final String localPeerId;
+    private final FileManager fileManager;
+    private final int maxDownloads;
+    private final int maxConnections;
+    private final ExecutorService executor;
+    private final Semaphore connections;
+    private final Map<String, SourceHealth> sourceHealth = new ConcurrentHashMap<>();
+
+    private final List<DownloadHandle> queue = new ArrayList<>(); // Chờ chạy
+    private final List<DownloadHandle> running = new ArrayList<>();
+    private final Map<String, DownloadHandle> handles = new LinkedHashMap<>(); // fileName -> lượt tải gần nhất
+    private long nextSequence;
+    private boolean shutdown;
+
+    // Giới hạn băng thông tổng (bytes/giây), 0 = không giới hạn
+    private volatile long maxBandwidth = 0;
+
+    private MultiSourceDownloader.DownloadCallback callback;
+    private MultiSourceDownloader.SourceProvider sourceProvider;
+
+    public enum State {
+        QUEUED, RUNNING, PAUSED, COMPLETED, FAILED, CANCELLED
+    }
+
+    /**
+     * Một lượt tải do manager quản lý
+     */
+    public class DownloadHandle implements MultiSourceDownloader.TransferLimiter {
+        private final FileInfo fileInfo;
+        private final String savePath;
+        private final long sequence; // Cùng ưu tiên thì vào trước chạy trước
+        private final CompletableFuture<Boolean> result = new CompletableFuture<>();
+        private volatile int priority;
+        private volatile State state = State.QUEUED;
+        private MultiSourceDownloader downloader; // Lần chạy hiện tại (dưới khóa của manager)
+        private boolean pauseRequested;
+        private boolean cancelRequested;
+        private int connectionsHeld;
+        private long nextSendNanos; // Thời điểm sớm nhất được nhận byte tiếp theo (băng thông)
+
+        private DownloadHandle(FileInfo fileInfo, String savePath, int priority, long sequence) {
+            this.fileInfo = fileInfo;
+            this.savePath = savePath;
+            this.priority = priority;
+            this.sequence = sequence;
+        }
+
+        public String getFileName() {
+            return fileInfo.getFileName();
+        }
+
+        public State getState() {
+            return state;
+        }
+
+        /**
+         * Chưa kết thúc (đang chờ, đang tải hoặc tạm dừng)
+         */
+        public boolean isActive() {
+            State s = state;
+            return s == State.QUEUED || s == State.RUNNING || s == State.PAUSED;
+        }
+
+        public int getPriority() {
+            return priority;
+        }
+
+        /**
+         * Kết quả cuối cùng: true khi tải xong, false khi lỗi/bị hủy (tạm dừng không kết thúc lượt tải)
+         */
+        public CompletableFuture<Boolean> getResult() {
+            return result;
+        }
+
+        /**
+         * Đổi ưu tiên (số lớn chạy trước) - có tác dụng với lượt tải đang xếp hàng
+         */
+        public void setPriority(int priority) {
+            synchronized (DownloadManager.this) {
+                this.priority = priority;
+            }
+        }
+
+        public void pause() {
+            synchronized (DownloadManager.this) {
+                if (state == State.QUEUED) {
+                    queue.remove(this);
+                    state = State.PAUSED;
+                } else if (state == State.RUNNING) {
+                    pauseRequested = true;
+                    downloader.pause();
+                }
+            }
+        }
+
+        /**
+         * Xếp lại vào hàng đợi, lượt chạy mới tiếp tục từ tiến độ đã lưu
+         */
+        public void resume() {
+            synchronized (DownloadManager.this) {
+                if (state == State.PAUSED) {
+                    enqueue(this);
+                    dispatch();
+                }
+            }
+        }
+
+        public void cancel() {
+            synchronized (DownloadManager.this) {
+                if (state == State.RUNNING) {
+                    cancelRequested = true;
+                    downloader.cancel();
+                } else if (state == State.QUEUED || state == State.PAUSED) {
+                    queue.remove(this);
+                    state = State.CANCELLED;
+                    result.complete(false);
+                }
+            }
+        }
+
+        // ==================== GIỚI HẠN ====================
+
+        @Override
+        public int connectionShare() {
+            synchronized (DownloadManager.this) {
+                return Math.max(1, maxConnections / Math.max(1, running.size()));
+            }
+        }
+
+        @Override
+        public boolean tryAcquireConnection() {
+            synchronized (DownloadManager.this) {
+                if (connectionsHeld >= connectionShare() || !connections.tryAcquire())
+                    return false;
+                connectionsHeld++;
+                return true;
+            }
+        }
+
+        @Override
+        public void releaseConnection() {
+            synchronized (DownloadManager.this) {
+                if (connectionsHeld > 0) {
+                    connectionsHeld--;
+                    connections.release();
+                }
+            }
+        }
+
+        @Override
+        public void throttle(int bytes) throws InterruptedException {
+            long limit = maxBandwidth;
+            if (limit <= 0)
+                return;
+            int active;
+            synchronized (DownloadManager.this) {
+                active = Math.max(1, running.size());
+            }
+            long costNanos = (long) (bytes * 1_000_000_000.0 * active / limit);
+            long waitNanos;
+            synchronized (this) {
+                long now = System.nanoTime();
+                long start = Math.max(now, nextSendNanos);
+                nextSendNanos = start + costNanos;
+                waitNanos = start - now;
+            }
+            if (waitNanos > 0)
+                TimeUnit.NANOSECONDS.sleep(waitNanos);
+        }
+    }
+
+    public DownloadManager(String localPeerId, FileManager fileManager) {
+        this(localPeerId, fileManager, DEFAULT_MAX_DOWNLOADS, DEFAULT_MAX_CONNECTIONS);
+    }
+
+    /**
+     * @param maxDownloads   số lượt tải chạy cùng lúc
+     * @param maxConnections tổng số kết nối tới nguồn của mọi lượt tải
+     */
+    public DownloadManager(String localPeerId, FileManager fileManager, int maxDownloads, int maxConnections) {
+        this.localPeerId = localPeerId;
+        this.fileManager = fileManager;
+        this.maxDownloads = Math.max(1, maxDownloads);
+        this.maxConnections = Math.max(this.maxDownloads, maxConnections);
+        this.connections = new Semaphore(this.maxConnections);
+        // Mỗi lượt tải chạy: một thread điều phối + một thread báo tiến độ, mỗi kết nối một worker
+        this.executor = Executors.newFixedThreadPool(this.maxDownloads * 2 + this.maxConnections);
+    }
+
+    public void setCallback(MultiSourceDownloader.DownloadCallback callback) {
+        this.callback = callback;
+    }
+
+    public void setSourceProvider(MultiSourceDownloader.SourceProvider sourceProvider) {
+        this.sourceProvider = sourceProvider;
+    }
+
+    /**
+     * Giới hạn băng thông tải tổng (bytes/giây), 0 = không giới hạn
+     */
+    public void setMaxBandwidth(long bytesPerSecond) {
+        this.maxBandwidth = Math.max(0, bytesPerSecond);
+    }
+
+    public DownloadHandle download(FileInfo fileInfo, String savePath) {
+        return download(fileInfo, savePath, 0);
+    }
+
+    /**
+     * Xếp một lượt tải vào hàng đợi (file đang tải/đang chờ thì trả về lượt tải đó)
+     */
+    public synchronized DownloadHandle download(FileInfo fileInfo, String savePath, int priority) {
+        if (shutdown)
+            throw new IllegalStateException("DownloadManager đã dừng");
+        DownloadHandle existing = handles.get(fileInfo.getFileName());
+        if (existing != null && (existing.state == State.QUEUED || existing.state == State.RUNNING))
+            return existing;
+
+        DownloadHandle handle = new DownloadHandle(fileInfo, savePath, priority, nextSequence++);
+        handles.put(fileInfo.getFileName(), handle);
+        enqueue(handle);
+        dispatch();
+        return handle;
+    }
+
+    /**
+     * Lượt tải gần nhất của file (null nếu chưa từng tải)
+     */
+    public synchronized DownloadHandle getHandle(String fileName) {
+        return handles.get(fileName);
+    }
+
+    public synchronized List<DownloadHandle> getHandles() {
+        return new ArrayList<>(handles.values());
+    }
+
+    /**
+     * Tạm dừng các lượt đang tải (tiến độ được lưu để lần sau tải tiếp), bỏ các lượt đang chờ,
+     * rồi tắt pool thread
+     */
+    public void shutdown() {
+        List<DownloadHandle> stopping;
+        synchronized (this) {
+            shutdown = true;
+            for (DownloadHandle handle : new ArrayList<>(queue)) {
+                handle.cancel();
+            }
+            stopping = new ArrayList<>(running);
+            for (DownloadHandle handle : stopping) {
+                handle.pause();
+            }
+        }
+        // Chờ các lượt tải ghi xong journal/DB trước khi ngắt thread
+        long deadline = System.currentTimeMillis() + SHUTDOWN_WAIT_MS;
+        synchronized (this) {
+            while (!running.isEmpty() && System.currentTimeMillis() < deadline) {
+                try {
+                    wait(Math.max(1, deadline - System.currentTimeMillis()));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+        }
+        executor.shutdownNow();
+    }
+
+    // ==================== ĐIỀU PHỐI ====================
+
+    private void enqueue(DownloadHandle handle) {
+        handle.state = State.QUEUED;
+        handle.pauseRequested = false;
+        handle.cancelRequested = false;
+        queue.add(handle);
+    }
+
+    /**
+     * Chạy các lượt tải đang chờ cho tới khi đủ maxDownloads (ưu tiên cao trước, rồi tới trước)
+     */
+    private void dispatch() {
+        while (!shutdown && running.size() < maxDownloads && !queue.isEmpty()) {
+            DownloadHandle next = Collections.min(queue, Comparator
+                    .comparingInt((DownloadHandle h) -> -h.priority)
+                    .thenComparingLong(h -> h.sequence));
+            queue.remove(next);
+            start(next);
+        }
+    }
+
+    private void start(DownloadHandle handle) {
+        MultiSourceDownloader downloader = new MultiSourceDownloader(localPeerId, fileManager, executor,
+                sourceHealth);
+        downloader.setCallback(callback);
+        downloader.setSourceProvider(sourceProvider);
+        downloader.setTransferLimiter(handle);
+
+        handle.downloader = downloader;
+        handle.state = State.RUNNING;
+        running.add(handle);
+        System.out.println("[DownloadManager] Bắt đầu " + handle.getFileName() + " (" + running.size() + "/"
+                + maxDownloads + " đang tải, " + queue.size() + " đang chờ)");
+
+        downloader.downloadFile(handle.fileInfo, handle.savePath)
+                .whenComplete((ok, error) -> onFinished(handle, Boolean.TRUE.equals(ok)));
+    }
+
+    private synchronized void onFinished(DownloadHandle handle, boolean ok) {
+        running.remove(handle);
+        handle.downloader = null;
+        if (ok) {
+            handle.state = State.COMPLETED;
+            handle.result.complete(true);
+        } else if (handle.cancelRequested) {
+            handle.state = State.CANCELLED;
+            handle.result.complete(false);
+        } else if (handle.pauseRequested) {
+            handle.state = State.PAUSED;
+            if (shutdown)
+                handle.result.complete(false);
+        } else {
+            handle.state = State.FAILED; // Tải lại bằng download(), tiến độ đã lưu vẫn được dùng
+            handle.result.complete(false);
+        }
+        dispatch();
+        notifyAll();
+    }
+}
@@ -0,0 +1,145 @@
+package peer;
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Cache các FileChannel chỉ đọc của file đang chia sẻ (phía upload)
+ * - Giữ tối đa maxOpen file mở, bỏ file ít dùng nhất (LRU)
+ * - Đếm tham chiếu: handle bị loại khỏi cache trong lúc đang gửi chỉ được đóng khi người
+ *   dùng cuối cùng trả lại, nên eviction không làm hỏng transfer đang chạy
+ * - Mỗi lần mượn nhận một Handle riêng: close() hai lần chỉ trả lại một tham chiếu, không
+ *   bao giờ trừ vào phần của người mượn khác
+ * - FileChannel đọc theo vị trí (transferTo/read(buf, pos)) nên nhiều upload dùng chung được
+ */
+public class FileHandleCache {
+    private final int maxOpen;
+    private final LinkedHashMap<String, OpenFile> handles = new LinkedHashMap<>(16, 0.75f, true);
+
+    private long hits;
+    private long opens;
+
+    /**
+     * File đang mở, dùng chung giữa mọi lần mượn
+     */
+    private static class OpenFile {
+        final File file;
+        final FileChannel channel;
+        final long openedSize;
+        int refs; // Dưới khóa của cache
+        boolean evicted;
+
+        OpenFile(File file, FileChannel channel) throws IOException {
+            this.file = file;
+            this.channel = channel;
+            this.openedSize = channel.size();
+        }
+    }
+
+    /**
+     * Một lần mượn file - close() để trả lại (không đóng file nếu còn trong cache), gọi lại không làm gì
+     */
+    public class Handle implements Closeable {
+        private final OpenFile open;
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        private Handle(OpenFile open) {
+            this.open = open;
+        }
+
+        public FileChannel channel() {
+            return open.channel;
+        }
+
+        @Override
+        public void close() {
+            if (released.compareAndSet(false, true))
+                release(open);
+        }
+    }
+
+    public FileHandleCache(int maxOpen) {
+        this.maxOpen = maxOpen;
+    }
+
+    /**
+     * Mượn handle của file (mở nếu chưa có, mở lại nếu file đã bị thay thế/đổi kích thước)
+     */
+    public synchronized Handle acquire(String key, File file) throws IOException {
+        OpenFile open = handles.get(key);
+        if (open != null && (!open.file.equals(file) || open.openedSize != file.length())) {
+            discard(key);
+            open = null;
+        }
+        if (open == null) {
+            open = new OpenFile(file, FileChannel.open(file.toPath(), StandardOpenOption.READ));
+            handles.put(key, open);
+            opens++;
+            evictOverflow();
+        } else {
+            hits++;
+        }
+        open.refs++;
+        return new Handle(open);
+    }
+
+    /**
+     * Bỏ handle của một file (file bị gỡ/xóa/ghi đè)
+     */
+    public synchronized void invalidate(String key) {
+        discard(key);
+    }
+
+    public synchronized void invalidateAll() {
+        for (String key : new ArrayList<>(handles.keySet())) {
+            discard(key);
+        }
+    }
+
+    public synchronized int getOpenCount() {
+        return handles.size();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("open=%d/%d, hits=%d, opens=%d", handles.size(), maxOpen, hits, opens);
+    }
+
+    private synchronized void release(OpenFile open) {
+        open.refs--;
+        if (open.refs == 0 && open.evicted) {
+            closeQuietly(open.channel);
+        }
+    }
+
+    private void evictOverflow() {
+        Iterator<Map.Entry<String, OpenFile>> it = handles.entrySet().iterator();
+        while (handles.size() > maxOpen && it.hasNext()) {
+            OpenFile eldest = it.next().getValue();
+            it.remove();
+            retire(eldest);
+        }
+    }
+
+    private void discard(String key) {
+        OpenFile open = handles.remove(key);
+        if (open != null)
+            retire(open);
+    }
+
+    private static void retire(OpenFile open) {
+        open.evicted = true;
+        if (open.refs == 0)
+            closeQuietly(open.channel);
+    }
+
+    private static void closeQuietly(Closeable c) {
+        try {
+            c.close();
+        } catch (IOException e) {
+        }
+    }
+}
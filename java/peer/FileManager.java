@@ -2,21 +2,54 @@ package peer;
 
 import tracker.FileInfo;
 import java.io.*;
-import java.security.MessageDigest;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
 
 /**
  * Quản lý files cục bộ của peer
+ * - MD5 của file được lưu trong HashCache (file cạnh thư mục shared), file không đổi
+ *   thì không băm lại khi khởi động/refresh
+ * - File chưa có hash được băm song song trên các core ở nền
+ * - Manifest chunk tính cùng lúc với MD5 được lưu trong ManifestStore; REQUEST_MANIFEST chỉ đọc
+ *   manifest đã có, chưa có thì tính ở nền và trả lời "chưa sẵn sàng"
  */
 public class FileManager {
+    private static final int MAX_CACHED_MANIFESTS = 64; // Manifest giữ trong RAM (nạp lại từ ManifestStore)
+    private static final int MAX_OPEN_FILES = 64; // Số file upload giữ mở sẵn
+
     private String sharedFolder; // Thư mục chia sẻ
     private String downloadFolder; // Thư mục tải về
     private Map<String, File> sharedFiles;
 
+    // fileName -> manifest, LRU theo lần truy cập
+    private final Map<String, ChunkManifest> manifests = Collections.synchronizedMap(
+            new LinkedHashMap<String, ChunkManifest>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, ChunkManifest> eldest) {
+                    return size() > MAX_CACHED_MANIFESTS;
+                }
+            });
+    private final HashCache hashCache;
+    private final ManifestStore manifestStore;
+    private final Set<String> computingManifests = ConcurrentHashMap.newKeySet(); // "đường dẫn:chunkSize"
+    private final ExecutorService hashWorkers = newHashPool();
+    private final Set<String> hashing = ConcurrentHashMap.newKeySet(); // Đường dẫn đang chờ băm ở nền
+    private final FileHandleCache handles = new FileHandleCache(MAX_OPEN_FILES); // fileName -> FileChannel
+    private final ShareVisibility shareVisibility = new ShareVisibility(); // fileName -> ẩn/hiện
+
     public FileManager(String sharedFolder, String downloadFolder) {
         this.sharedFolder = sharedFolder;
         this.downloadFolder = downloadFolder;
-        this.sharedFiles = new HashMap<>();
+        this.sharedFiles = new ConcurrentHashMap<>(); // Đọc đồng thời từ các thread upload
+
+        File shared = new File(sharedFolder).getAbsoluteFile();
+        this.hashCache = new HashCache(new File(shared.getParentFile(), "." + shared.getName() + ".hashcache"));
+        this.manifestStore = new ManifestStore(new File(shared.getParentFile(), "." + shared.getName() + ".manifests"));
 
         // Tạo thư mục nếu chưa tồn tại
         new File(sharedFolder).mkdirs();
@@ -30,46 +63,133 @@ public class FileManager {
      * Quét thư mục shared để lấy danh sách files
      */
     public void scanSharedFolder() {
-        sharedFiles.clear();
+        Map<String, File> scanned = new HashMap<>();
         File folder = new File(sharedFolder);
         File[] files = folder.listFiles();
         if (files != null) {
             for (File file : files) {
                 if (file.isFile()) {
-                    sharedFiles.put(file.getName(), file);
+                    scanned.put(file.getName(), file);
                 }
             }
         }
+        // Thay nội dung tại chỗ: upload đang chạy không thấy danh sách rỗng giữa chừng
+        sharedFiles.keySet().retainAll(scanned.keySet());
+        sharedFiles.putAll(scanned);
+        handles.invalidateAll();
+
+        // Bỏ manifest đã lưu của nội dung không còn trong thư mục (file chưa băm chưa có manifest)
+        Set<String> hashes = new HashSet<>();
+        for (File file : scanned.values()) {
+            HashCache.Stamp stamp = HashCache.stamp(file);
+            String hash = stamp != null ? hashCache.lookup(file, stamp) : null;
+            if (hash != null)
+                hashes.add(hash);
+        }
+        manifestStore.retain(hashes);
         System.out.println("[FileManager] Đã scan " + sharedFiles.size() + " files trong thư mục shared");
     }
 
     /**
-     * Lấy danh sách FileInfo để publish lên tracker
+     * Lấy danh sách FileInfo để publish lên tracker (chờ băm xong các file chưa có trong cache)
      */
     public List<FileInfo> getSharedFileInfos(String peerIP, int peerPort) {
+        List<File> files = new ArrayList<>(sharedFiles.values());
+        List<Future<String>> hashes = new ArrayList<>();
+        for (File file : files) {
+            hashes.add(hashWorkers.submit(() -> hashOf(file)));
+        }
+
         List<FileInfo> list = new ArrayList<>();
-        for (File file : sharedFiles.values()) {
+        for (int i = 0; i < files.size(); i++) {
+            File file = files.get(i);
             FileInfo info = new FileInfo(file.getName(), file.length(), peerIP, peerPort);
-            // ⭐ QUAN TRỌNG: Tính MD5 hash cho mỗi file
-            String hash = calculateFileHash(file.getName());
+            try {
+                info.setFileHash(hashes.get(i).get());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            } catch (ExecutionException e) {
+                info.setFileHash(null);
+            }
+            list.add(info);
+        }
+        hashCache.save();
+        return list;
+    }
+
+    /**
+     * FileInfo của các file đã có hash trong cache (không đọc nội dung file)
+     *
+     * @param unhashed nhận các file chưa có hash - băm bằng hashInBackground()
+     */
+    public List<FileInfo> getCachedFileInfos(String peerIP, int peerPort, List<File> unhashed) {
+        List<FileInfo> list = new ArrayList<>();
+        for (File file : new ArrayList<>(sharedFiles.values())) {
+            HashCache.Stamp stamp = HashCache.stamp(file);
+            String hash = stamp != null ? hashCache.lookup(file, stamp) : null;
+            if (hash == null) {
+                unhashed.add(file);
+                continue;
+            }
+            FileInfo info = new FileInfo(file.getName(), stamp.size, peerIP, peerPort);
             info.setFileHash(hash);
             list.add(info);
         }
         return list;
     }
 
+    /**
+     * Băm song song các file ở nền, gọi onHashed (trên thread băm) cho từng file xong
+     * File đang chờ băm từ lần gọi trước hoặc đã bị gỡ khỏi danh sách chia sẻ thì bỏ qua
+     */
+    public void hashInBackground(List<File> files, String peerIP, int peerPort, Consumer<FileInfo> onHashed) {
+        List<File> queued = new ArrayList<>();
+        for (File file : files) {
+            if (hashing.add(file.getAbsolutePath()))
+                queued.add(file);
+        }
+        if (queued.isEmpty())
+            return;
+
+        System.out.println("[FileManager] Băm " + queued.size() + " files ở nền...");
+        long start = System.currentTimeMillis();
+        AtomicInteger remaining = new AtomicInteger(queued.size());
+        for (File file : queued) {
+            hashWorkers.execute(() -> {
+                try {
+                    if (!file.equals(sharedFiles.get(file.getName())))
+                        return;
+                    String hash = hashOf(file);
+                    if (hash != null) {
+                        FileInfo info = new FileInfo(file.getName(), file.length(), peerIP, peerPort);
+                        info.setFileHash(hash);
+                        onHashed.accept(info);
+                    }
+                } finally {
+                    hashing.remove(file.getAbsolutePath());
+                    if (remaining.decrementAndGet() == 0) {
+                        hashCache.save();
+                        System.out.println("[FileManager] Băm xong " + queued.size() + " files trong "
+                                + (System.currentTimeMillis() - start) + " ms");
+                    }
+                }
+            });
+        }
+    }
+
     /**
      * Kiểm tra file có tồn tại không
      */
     public boolean hasFile(String fileName) {
-        return sharedFiles.containsKey(fileName);
+        return fileName != null && sharedFiles.containsKey(fileName);
     }
 
     /**
      * Lấy File object
      */
     public File getFile(String fileName) {
-        return sharedFiles.get(fileName);
+        return fileName != null ? sharedFiles.get(fileName) : null;
     }
 
     /**
@@ -91,19 +211,40 @@ public class FileManager {
      * Đọc một phần file (cho download từng chunk)
      */
     public byte[] readFileChunk(String fileName, long offset, int chunkSize) throws IOException {
-        File file = sharedFiles.get(fileName);
-        if (file == null)
+        if (getFile(fileName) == null)
             return null;
 
-        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
-            raf.seek(offset);
-            int remaining = (int) Math.min(chunkSize, file.length() - offset);
-            byte[] chunk = new byte[remaining];
-            raf.readFully(chunk);
-            return chunk;
+        try (FileHandleCache.Handle handle = acquireFile(fileName)) {
+            FileChannel channel = handle.channel();
+            int remaining = (int) Math.min(chunkSize, channel.size() - offset);
+            ByteBuffer chunk = ByteBuffer.allocate(Math.max(0, remaining));
+            while (chunk.hasRemaining()) {
+                if (channel.read(chunk, offset + chunk.position()) < 0)
+                    throw new EOFException("File bị cắt ngắn: " + fileName);
+            }
+            return chunk.array();
         }
     }
 
+    /**
+     * Mượn FileChannel chỉ đọc của file đang chia sẻ từ cache handle (dùng để gửi chunk
+     * bằng transferTo) - close() handle sau khi gửi xong
+     */
+    public FileHandleCache.Handle acquireFile(String fileName) throws IOException {
+        File file = getFile(fileName);
+        if (file == null)
+            throw new FileNotFoundException("File không có trong danh sách chia sẻ: " + fileName);
+        return handles.acquire(fileName, file);
+    }
+
+    public ShareVisibility getShareVisibility() {
+        return shareVisibility;
+    }
+
+    public FileHandleCache getHandleCache() {
+        return handles;
+    }
+
     /**
      * Lưu file đã tải về
      */
@@ -139,6 +280,7 @@ public class FileManager {
 
             if (parentPath.equals(downloadPath) || parentPath.equals(sharedPath)) {
                 sharedFiles.put(fileName, file);
+                handles.invalidate(fileName);
                 System.out.println("[FileManager] Added to shared files: " + fileName);
             }
         }
@@ -168,20 +310,45 @@ public class FileManager {
     public void finalizeDownload(String fileName, String customPath) {
         File file = getTargetFile(fileName, customPath);
         if (file.exists()) {
-            if (file.getParent().equals(new File(downloadFolder).getAbsolutePath()) ||
-                    file.getParent().equals(new File(sharedFolder).getAbsolutePath())) {
+            String parentPath = file.getAbsoluteFile().getParent();
+            if (parentPath.equals(new File(downloadFolder).getAbsolutePath()) ||
+                    parentPath.equals(new File(sharedFolder).getAbsolutePath())) {
                 sharedFiles.put(fileName, file);
+                handles.invalidate(fileName);
             }
             System.out.println("[FileManager] File đã tải hoàn tất: " + file.getAbsolutePath());
         }
     }
 
+    /**
+     * Đưa file tạm đã tải xong vào vị trí đích (ghi đè file cũ)
+     * - Đổi tên nguyên tử nếu hệ thống file hỗ trợ, không ai thấy file đích dở dang
+     */
+    public void moveIntoPlace(File tempFile, File targetFile) throws IOException {
+        handles.invalidate(targetFile.getName()); // Đóng bản cũ đang mở để upload (Windows)
+        try {
+            Files.move(tempFile.toPath(), targetFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(tempFile.toPath(), targetFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Ghi nhận MD5 đã tính trong lúc tải, seed lại file vừa tải không phải băm lại
+     */
+    public void recordHash(File file, String fileHash) {
+        hashCache.put(file, HashCache.stamp(file), fileHash);
+        hashCache.save();
+    }
+
     /**
      * Thêm file đã tải vào danh sách chia sẻ
      */
     public void addDownloadedFile(File file) {
         if (file.exists()) {
             sharedFiles.put(file.getName(), file);
+            handles.invalidate(file.getName());
             System.out.println("[FileManager] Thêm file đã tải vào danh sách chia sẻ: " + file.getName());
         }
     }
@@ -203,6 +370,7 @@ public class FileManager {
         }
 
         sharedFiles.put(destFile.getName(), destFile);
+        handles.invalidate(destFile.getName());
 
         // ⭐ QUAN TRỌNG: Tính hash để đảm bảo file được nhận dạng đúng trên toàn hệ
         // thống
@@ -219,6 +387,9 @@ public class FileManager {
      */
     public void removeFromShare(String fileName) {
         sharedFiles.remove(fileName);
+        manifests.remove(fileName);
+        handles.invalidate(fileName);
+        shareVisibility.forget(fileName);
         System.out.println("[FileManager] Đã xóa khỏi danh sách chia sẻ: " + fileName);
     }
 
@@ -227,6 +398,9 @@ public class FileManager {
      */
     public boolean removeAndDeleteFile(String fileName) {
         File file = sharedFiles.remove(fileName);
+        manifests.remove(fileName);
+        handles.invalidate(fileName); // Đóng file trước khi xóa (Windows không xóa được file đang mở)
+        shareVisibility.forget(fileName);
         if (file != null && file.exists()) {
             boolean deleted = file.delete();
             System.out.println("[FileManager] Xóa file vật lý " + fileName + ": " + (deleted ? "OK" : "FAILED"));
@@ -266,31 +440,110 @@ public class FileManager {
     }
 
     /**
-     * Tính MD5 hash của file
+     * Tính MD5 hash của file (lấy từ cache nếu file chưa thay đổi)
      */
     public String calculateFileHash(String fileName) {
+        File file = sharedFiles.get(fileName);
+        if (file == null)
+            return null;
+        String hash = hashOf(file);
+        hashCache.save();
+        return hash;
+    }
+
+    /**
+     * MD5 của file: dùng cache nếu size/mtime/inode không đổi, ngược lại đọc file một lượt
+     * (tính luôn manifest chunk) và lưu vào cache
+     */
+    private String hashOf(File file) {
+        HashCache.Stamp stamp = HashCache.stamp(file);
+        if (stamp == null)
+            return null;
+        String cached = hashCache.lookup(file, stamp);
+        if (cached != null)
+            return cached;
+
         try {
-            File file = sharedFiles.get(fileName);
-            if (file == null)
-                return null;
-
-            MessageDigest md = MessageDigest.getInstance("MD5");
-            try (FileInputStream fis = new FileInputStream(file)) {
-                byte[] buffer = new byte[8192];
-                int bytesRead;
-                while ((bytesRead = fis.read(buffer)) != -1) {
-                    md.update(buffer, 0, bytesRead);
-                }
-            }
+            // Manifest theo kích thước chunk sẽ publish (FileInfo.chooseChunkSize)
+            ChunkManifest manifest = ChunkManifest.compute(file, FileInfo.chooseChunkSize(stamp.size));
+            manifests.put(file.getName(), manifest);
+            hashCache.put(file, stamp, manifest.getFileHash());
+            manifestStore.save(manifest);
+            return manifest.getFileHash();
+        } catch (IOException e) {
+            System.err.println("[FileManager] Lỗi tính hash " + file.getName() + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    private static ExecutorService newHashPool() {
+        int threads = Runtime.getRuntime().availableProcessors();
+        ThreadFactory factory = new ThreadFactory() {
+            private int count = 0;
 
-            byte[] digest = md.digest();
-            StringBuilder sb = new StringBuilder();
-            for (byte b : digest) {
-                sb.append(String.format("%02x", b));
+            @Override
+            public synchronized Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "file-hasher-" + (++count));
+                t.setDaemon(true);
+                return t;
             }
-            return sb.toString();
-        } catch (Exception e) {
+        };
+        return new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), factory);
+    }
+
+    /**
+     * Manifest hash từng chunk của file đang chia sẻ theo kích thước chunk peer tải yêu cầu
+     * - Lấy từ RAM hoặc ManifestStore khi HashCache xác nhận file chưa đổi
+     * - Chưa có thì tính ở nền (mỗi file/kích thước chunk chỉ một lượt) và trả null ngay:
+     *   thread upload không bao giờ phải đọc cả file
+     *
+     * @return null nếu file không có trong danh sách chia sẻ hoặc manifest chưa sẵn sàng
+     */
+    public ChunkManifest getManifest(String fileName, int chunkSize) {
+        File file = sharedFiles.get(fileName);
+        if (file == null)
+            return null;
+
+        HashCache.Stamp stamp = HashCache.stamp(file);
+        if (stamp == null)
             return null;
+        String hash = hashCache.lookup(file, stamp);
+        if (hash != null) {
+            ChunkManifest manifest = manifests.get(fileName);
+            if (manifest != null && hash.equals(manifest.getFileHash()) && manifest.getChunkSize() == chunkSize)
+                return manifest;
+            manifest = manifestStore.load(hash, chunkSize, stamp.size);
+            if (manifest != null) {
+                manifests.put(fileName, manifest);
+                return manifest;
+            }
+        }
+        computeManifestInBackground(file, chunkSize);
+        return null;
+    }
+
+    private void computeManifestInBackground(File file, int chunkSize) {
+        String key = file.getAbsolutePath() + ":" + chunkSize;
+        if (!computingManifests.add(key))
+            return; // Đang tính - các request khác chỉ chờ lượt sau
+        try {
+            hashWorkers.execute(() -> {
+                try {
+                    HashCache.Stamp stamp = HashCache.stamp(file);
+                    ChunkManifest manifest = ChunkManifest.compute(file, chunkSize);
+                    if (file.equals(sharedFiles.get(file.getName())))
+                        manifests.put(file.getName(), manifest);
+                    hashCache.put(file, stamp, manifest.getFileHash());
+                    hashCache.save();
+                    manifestStore.save(manifest);
+                } catch (IOException e) {
+                    System.err.println("[FileManager] Lỗi tính manifest " + file.getName() + ": " + e.getMessage());
+                } finally {
+                    computingManifests.remove(key);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            computingManifests.remove(key);
         }
     }
 
@@ -0,0 +1,161 @@
+package peer;
+
+import java.io.*;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Cache bền của MD5 file - file không đổi thì không phải băm lại giữa các lần khởi động
+ * - Khóa: đường dẫn tuyệt đối; chỉ hợp lệ khi size, mtime và fileKey (inode trên Unix) còn khớp
+ * - Lưu ở file nhị phân, ghi ra file tạm rồi đổi tên để không hỏng cache khi tắt đột ngột
+ */
+public class HashCache {
+    private static final int MAGIC = 0x50324843; // "P2HC"
+    private static final int VERSION = 1;
+
+    private final File storeFile;
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    private volatile boolean dirty;
+
+    /**
+     * Dấu vết của file tại một thời điểm (lấy trước khi băm để không lưu nhầm file đang bị sửa)
+     */
+    public static class Stamp {
+        final long size;
+        final long lastModified;
+        final String fileKey; // null nếu hệ điều hành không hỗ trợ (Windows)
+
+        Stamp(long size, long lastModified, String fileKey) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.fileKey = fileKey;
+        }
+
+        boolean matches(Stamp other) {
+            return other != null && size == other.size && lastModified == other.lastModified
+                    && (fileKey == null ? other.fileKey == null : fileKey.equals(other.fileKey));
+        }
+    }
+
+    private static class Entry {
+        final Stamp stamp;
+        final String fileHash;
+
+        Entry(Stamp stamp, String fileHash) {
+            this.stamp = stamp;
+            this.fileHash = fileHash;
+        }
+    }
+
+    public HashCache(File storeFile) {
+        this.storeFile = storeFile;
+        load();
+    }
+
+    /**
+     * Đọc size/mtime/inode của file
+     *
+     * @return null nếu không đọc được (file vừa bị xóa...)
+     */
+    public static Stamp stamp(File file) {
+        try {
+            BasicFileAttributes attrs = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+            Object key = attrs.fileKey();
+            return new Stamp(attrs.size(), attrs.lastModifiedTime().toMillis(), key != null ? key.toString() : null);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Hash đã lưu nếu file chưa thay đổi kể từ lần băm trước, ngược lại null
+     */
+    public String lookup(File file, Stamp stamp) {
+        Entry entry = entries.get(keyOf(file));
+        return entry != null && entry.stamp.matches(stamp) ? entry.fileHash : null;
+    }
+
+    public void put(File file, Stamp stamp, String fileHash) {
+        if (stamp == null || fileHash == null)
+            return;
+        entries.put(keyOf(file), new Entry(stamp, fileHash));
+        dirty = true;
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    // ==================== LƯU / NẠP ====================
+
+    private void load() {
+        if (!storeFile.isFile())
+            return;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(storeFile)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                System.out.println("[HashCache] Bỏ qua cache không đúng định dạng: " + storeFile);
+                return;
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String path = in.readUTF();
+                long size = in.readLong();
+                long lastModified = in.readLong();
+                String fileKey = in.readBoolean() ? in.readUTF() : null;
+                String fileHash = in.readUTF();
+                entries.put(path, new Entry(new Stamp(size, lastModified, fileKey), fileHash));
+            }
+            System.out.println("[HashCache] Đã nạp " + entries.size() + " hash từ " + storeFile);
+        } catch (IOException e) {
+            System.err.println("[HashCache] Lỗi đọc cache (sẽ băm lại): " + e.getMessage());
+            entries.clear();
+        }
+    }
+
+    /**
+     * Ghi cache nếu có thay đổi (bỏ các file không còn tồn tại)
+     */
+    public synchronized void save() {
+        if (!dirty)
+            return;
+        dirty = false;
+
+        File tempFile = new File(storeFile.getPath() + ".tmp");
+        try {
+            int count = 0;
+            try (DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(tempFile)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                Map<String, Entry> snapshot = new HashMap<>(entries);
+                snapshot.keySet().removeIf(path -> !new File(path).exists());
+                out.writeInt(snapshot.size());
+                for (Map.Entry<String, Entry> e : snapshot.entrySet()) {
+                    Stamp stamp = e.getValue().stamp;
+                    out.writeUTF(e.getKey());
+                    out.writeLong(stamp.size);
+                    out.writeLong(stamp.lastModified);
+                    out.writeBoolean(stamp.fileKey != null);
+                    if (stamp.fileKey != null)
+                        out.writeUTF(stamp.fileKey);
+                    out.writeUTF(e.getValue().fileHash);
+                    count++;
+                }
+            }
+            Files.move(tempFile.toPath(), storeFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+            System.out.println("[HashCache] Đã lưu " + count + " hash vào " + storeFile);
+        } catch (IOException e) {
+            dirty = true;
+            tempFile.delete();
+            System.err.println("[HashCache] Lỗi lưu cache: " + e.getMessage());
+        }
+    }
+
+    private static String keyOf(File file) {
+        return file.getAbsolutePath();
+    }
+}
@@ -0,0 +1,93 @@
+package peer;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.Set;
+
+/**
+ * Lưu manifest chunk xuống đĩa - khởi động lại không phải đọc lại cả file để trả REQUEST_MANIFEST
+ * - Mỗi manifest một file "<md5>-<chunkSize>.mf" trong thư mục cạnh thư mục shared
+ * - Khóa theo MD5 nội dung nên không bao giờ cũ: file đổi thì HashCache trả hash khác
+ * - Ghi ra file tạm rồi đổi tên như HashCache
+ */
+class ManifestStore {
+    private static final int MAGIC = 0x50324d46; // "P2MF"
+    private static final int VERSION = 1;
+    private static final String SUFFIX = ".mf";
+
+    private final File dir;
+
+    ManifestStore(File dir) {
+        this.dir = dir;
+    }
+
+    /**
+     * @return null nếu chưa lưu hoặc file lưu không khớp kích thước
+     */
+    ChunkManifest load(String fileHash, int chunkSize, long fileSize) {
+        File file = fileOf(fileHash, chunkSize);
+        if (!file.isFile())
+            return null;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION || in.readLong() != fileSize
+                    || in.readInt() != chunkSize) {
+                file.delete();
+                return null;
+            }
+            byte[] digests = new byte[in.readInt()];
+            in.readFully(digests);
+            ChunkManifest manifest = ChunkManifest.restore(digests, chunkSize, fileSize, fileHash);
+            if (manifest == null)
+                file.delete();
+            return manifest;
+        } catch (IOException e) {
+            System.err.println("[ManifestStore] Lỗi đọc " + file.getName() + " (sẽ tính lại): " + e.getMessage());
+            file.delete();
+            return null;
+        }
+    }
+
+    void save(ChunkManifest manifest) {
+        if (manifest.getFileHash() == null)
+            return;
+        dir.mkdirs();
+        File file = fileOf(manifest.getFileHash(), manifest.getChunkSize());
+        File tempFile = new File(file.getPath() + ".tmp");
+        try {
+            byte[] digests = manifest.toBytes();
+            try (DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(tempFile)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeLong(manifest.getFileSize());
+                out.writeInt(manifest.getChunkSize());
+                out.writeInt(digests.length);
+                out.write(digests);
+            }
+            Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            tempFile.delete();
+            System.err.println("[ManifestStore] Lỗi lưu manifest " + file.getName() + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Xóa manifest của các nội dung không còn được chia sẻ
+     */
+    void retain(Set<String> fileHashes) {
+        File[] files = dir.listFiles();
+        if (files == null)
+            return;
+        for (File file : files) {
+            String name = file.getName();
+            int dash = name.lastIndexOf('-');
+            if (dash < 0 || !fileHashes.contains(name.substring(0, dash)))
+                file.delete();
+        }
+    }
+
+    private File fileOf(String fileHash, int chunkSize) {
+        return new File(dir, fileHash + "-" + chunkSize + SUFFIX);
+    }
+}
@@ -0,0 +1,93 @@
+package peer;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Lazy cleanup ở nền: báo Tracker gỡ các file peer được hỏi nhưng không còn giữ
+ * - Thread upload chỉ xếp tên file vào hàng đợi (không kết nối Tracker/DB)
+ * - Mỗi tên chỉ nằm trong hàng đợi một lần; cả lô được gửi trong một UNPUBLISH sau FLUSH_DELAY_MS,
+ *   Tracker cập nhật index trong RAM rồi ghi DB ở nền
+ * - File vừa gỡ được nhớ trong REMEMBER_MS: leecher hỏi lại liên tục không sinh thêm request nào
+ * - Gửi lỗi (Tracker không kết nối được) thì không nhớ, lần hỏi sau sẽ báo lại
+ */
+class MissingFileCleaner {
+    private static final long FLUSH_DELAY_MS = 1000;
+    private static final long REMEMBER_MS = 60_000;
+    private static final int MAX_BATCH = 200;
+    private static final int MAX_PENDING = 10_000; // Bỏ qua báo cáo mới khi hàng đợi đầy (tên file rác)
+
+    private final PeerServer.Unpublisher unpublisher;
+    private final Set<String> pending = ConcurrentHashMap.newKeySet();
+    private final Map<String, Long> cleaned = new ConcurrentHashMap<>(); // fileName -> lúc gỡ
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    private final ScheduledExecutorService worker = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "peer-cleanup");
+        t.setDaemon(true);
+        return t;
+    });
+
+    MissingFileCleaner(PeerServer.Unpublisher unpublisher) {
+        this.unpublisher = unpublisher;
+    }
+
+    /**
+     * Peer không còn file này (gọi từ thread upload, không chặn)
+     */
+    void report(String fileName) {
+        Long cleanedAt = cleaned.get(fileName);
+        if (cleanedAt != null && System.currentTimeMillis() - cleanedAt < REMEMBER_MS)
+            return;
+        if (pending.size() < MAX_PENDING && pending.add(fileName))
+            schedule();
+    }
+
+    /**
+     * Dừng thread nền, bỏ các file còn chờ (peer tắt thì Tracker gỡ mọi file của peer khi hủy đăng ký)
+     */
+    void close() {
+        worker.shutdownNow();
+        pending.clear();
+    }
+
+    private void schedule() {
+        if (!scheduled.compareAndSet(false, true))
+            return;
+        try {
+            worker.schedule(this::flush, FLUSH_DELAY_MS, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            scheduled.set(false); // Đang dừng - close() gỡ nốt
+        }
+    }
+
+    private void flush() {
+        scheduled.set(false);
+        List<String> batch = new ArrayList<>();
+        for (Iterator<String> it = pending.iterator(); it.hasNext() && batch.size() < MAX_BATCH;) {
+            batch.add(it.next());
+            it.remove();
+        }
+        if (!pending.isEmpty())
+            schedule();
+        if (batch.isEmpty())
+            return;
+
+        boolean ok;
+        try {
+            ok = unpublisher.unpublish(batch);
+        } catch (RuntimeException e) {
+            System.err.println("[PeerServer] Lazy Cleanup lỗi: " + e.getMessage());
+            ok = false;
+        }
+        if (!ok)
+            return;
+        System.out.println("[PeerServer] Lazy Cleanup: Đã báo Tracker gỡ " + batch.size() + " files không còn");
+
+        long now = System.currentTimeMillis();
+        cleaned.values().removeIf(at -> now - at >= REMEMBER_MS);
+        for (String fileName : batch) {
+            cleaned.put(fileName, now);
+        }
+    }
+}
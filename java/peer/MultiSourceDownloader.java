@@ -4,29 +4,60 @@ import database.DatabaseManager;
 import database.DatabaseManager.DownloadState;
 import protocol.Message;
 import tracker.FileInfo;
+import utils.ChunkBitSet;
 
 import java.io.*;
-import java.net.Socket;
 import java.util.*;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
 
 /**
  * Multi-Source Downloader với Resume Support
  * - Tải song song từ nhiều Peer
  * - Hỗ trợ tiếp tục khi bị gián đoạn
  * - Phân phối chunks thông minh
+ * - Kiểm tra từng chunk theo manifest của seeder, chunk sai được tải lại từ nguồn khác
  */
 public class MultiSourceDownloader {
 
-    private static final int CHUNK_SIZE = 64 * 1024; // 64KB
     private static final int MAX_CONCURRENT_SOURCES = 5;
     private static final int MAX_RETRIES = 3;
+    private static final int INITIAL_IN_FLIGHT = 2; // Số request đang bay ban đầu cho mỗi source
+    private static final int DEFAULT_MAX_IN_FLIGHT = 16; // Giới hạn cửa sổ pipelining mặc định
+    private static final int MAX_BAD_CHUNKS = 3; // Số chunk sai tối đa trước khi loại một nguồn
+    private static final int MANIFEST_SOURCES = 3; // Số nguồn tối đa hỏi manifest để đối chiếu
+    private static final long IDLE_WAIT_MS = 50; // Worker rảnh chờ chunk được trả lại từ nguồn khác
+    private static final long SOURCE_REFRESH_MS = 15_000; // Chu kỳ hỏi lại danh sách nguồn khi đang tải
+    private static final long DEFAULT_MIN_SOURCE_THROUGHPUT = 32 * 1024; // bytes/giây, chậm hơn => loại nguồn
+    private static final int RETIRE_MIN_CHUNKS = 8; // Số chunk tối thiểu trước khi xét loại nguồn chậm
+    private static final long RETIRE_GRACE_MS = 10_000; // Thời gian tối thiểu trước khi xét loại nguồn chậm
+    private static final int LEGACY_REQUEST_ID = -1; // Khóa inFlight của request đồng bộ (peer cũ)
+    private static final int DEFAULT_RESUME_SPOT_CHECK = 8; // Số chunk kiểm tra ngẫu nhiên khi tiếp tục tải
 
     private final String localPeerId;
     private final FileManager fileManager;
     private final DatabaseManager db;
     private final ExecutorService executor;
+    private final boolean ownsExecutor; // false = pool dùng chung của DownloadManager, không tự tắt
+
+    // Số REQUEST_CHUNK tối đa đang bay trên mỗi source
+    private volatile int maxInFlight = DEFAULT_MAX_IN_FLIGHT;
+
+    // Ghi chunk qua luồng write-behind (gộp chunk liền kề) thay vì ghi thẳng từ worker
+    private volatile boolean writeBehind = false;
+
+    // Số chunk có sẵn trong file tạm được kiểm tra lại theo manifest khi tiếp tục tải
+    private volatile int resumeSpotCheck = DEFAULT_RESUME_SPOT_CHECK;
+
+    // Nguồn có tốc độ dưới ngưỡng này bị ngừng giao việc nếu còn nguồn khác
+    private volatile long minSourceThroughput = DEFAULT_MIN_SOURCE_THROUGHPUT;
+
+    // Sức khỏe từng nguồn (ip:port), giữ qua các lượt tải để chọn nguồn tốt trước
+    private final Map<String, SourceHealth> sourceHealth;
+
+    // Giới hạn kết nối/băng thông dùng chung với các lượt tải khác (DownloadManager)
+    private volatile TransferLimiter limiter = TransferLimiter.UNLIMITED;
 
     // Download state
     private volatile boolean isPaused = false;
@@ -34,6 +65,8 @@ public class MultiSourceDownloader {
 
     // Callbacks
     private DownloadCallback callback;
+    private SourceProvider sourceProvider;
+    private SchedulerFactory schedulerFactory = ChunkScheduler::rarestFirst;
 
     public interface DownloadCallback {
         void onDownloadStarted(String fileName, int totalSources);
@@ -51,17 +84,132 @@ public class MultiSourceDownloader {
         void onResumed(String fileName, int percent);
     }
 
+    /**
+     * Nguồn danh sách peer có file (thường là GET_FILE_SOURCES tới tracker)
+     */
+    public interface SourceProvider {
+        List<FileInfo> getSources(String fileHash);
+    }
+
+    /**
+     * Tạo chiến lược chọn chunk cho mỗi lượt tải (ChunkScheduler::sequential, ChunkScheduler::rarestFirst...)
+     */
+    public interface SchedulerFactory {
+        ChunkScheduler create(int totalChunks);
+    }
+
+    /**
+     * Giới hạn tài nguyên một lượt tải được dùng, do DownloadManager chia giữa các lượt tải
+     */
+    public interface TransferLimiter {
+        TransferLimiter UNLIMITED = new TransferLimiter() {
+            @Override
+            public int connectionShare() {
+                return MAX_CONCURRENT_SOURCES;
+            }
+
+            @Override
+            public boolean tryAcquireConnection() {
+                return true;
+            }
+
+            @Override
+            public void releaseConnection() {
+            }
+
+            @Override
+            public void throttle(int bytes) {
+            }
+        };
+
+        /**
+         * Số kết nối tới nguồn lượt tải này nên mở lúc này
+         */
+        int connectionShare();
+
+        /**
+         * Xin một kết nối (false = đã hết, thử lại sau)
+         */
+        boolean tryAcquireConnection();
+
+        void releaseConnection();
+
+        /**
+         * Chờ nếu lượt tải đã dùng quá phần băng thông của nó
+         */
+        void throttle(int bytes) throws InterruptedException;
+    }
+
     public MultiSourceDownloader(String localPeerId, FileManager fileManager) {
+        this(localPeerId, fileManager, Executors.newFixedThreadPool(MAX_CONCURRENT_SOURCES + 2), true,
+                new ConcurrentHashMap<>());
+    }
+
+    /**
+     * Dùng pool thread và bảng sức khỏe nguồn chung (DownloadManager)
+     */
+    MultiSourceDownloader(String localPeerId, FileManager fileManager, ExecutorService executor,
+            Map<String, SourceHealth> sourceHealth) {
+        this(localPeerId, fileManager, executor, false, sourceHealth);
+    }
+
+    private MultiSourceDownloader(String localPeerId, FileManager fileManager, ExecutorService executor,
+            boolean ownsExecutor, Map<String, SourceHealth> sourceHealth) {
         this.localPeerId = localPeerId;
         this.fileManager = fileManager;
         this.db = DatabaseManager.getInstance();
-        this.executor = Executors.newFixedThreadPool(MAX_CONCURRENT_SOURCES + 2);
+        this.executor = executor;
+        this.ownsExecutor = ownsExecutor;
+        this.sourceHealth = sourceHealth;
     }
 
     public void setCallback(DownloadCallback callback) {
         this.callback = callback;
     }
 
+    public void setSourceProvider(SourceProvider sourceProvider) {
+        this.sourceProvider = sourceProvider;
+    }
+
+    /**
+     * Đổi chiến lược chọn chunk (mặc định: hiếm nhất trước + endgame)
+     */
+    public void setSchedulerFactory(SchedulerFactory schedulerFactory) {
+        this.schedulerFactory = schedulerFactory;
+    }
+
+    /**
+     * Cấu hình số request tối đa đang bay trên mỗi source (1 = stop-and-wait)
+     */
+    public void setMaxInFlight(int maxInFlight) {
+        this.maxInFlight = Math.max(1, maxInFlight);
+    }
+
+    /**
+     * Bật/tắt luồng ghi riêng gộp các chunk liền kề thành lần ghi lớn (mặc định: worker ghi thẳng)
+     */
+    public void setWriteBehind(boolean writeBehind) {
+        this.writeBehind = writeBehind;
+    }
+
+    public void setTransferLimiter(TransferLimiter limiter) {
+        this.limiter = limiter != null ? limiter : TransferLimiter.UNLIMITED;
+    }
+
+    /**
+     * Cấu hình tốc độ tối thiểu (bytes/giây) của một nguồn, 0 = không bao giờ loại nguồn chậm
+     */
+    public void setMinSourceThroughput(long minSourceThroughput) {
+        this.minSourceThroughput = Math.max(0, minSourceThroughput);
+    }
+
+    /**
+     * Cấu hình số chunk có sẵn được kiểm tra ngẫu nhiên khi tiếp tục tải, 0 = tin tiến độ đã lưu
+     */
+    public void setResumeSpotCheck(int chunks) {
+        this.resumeSpotCheck = Math.max(0, chunks);
+    }
+
     /**
      * Tải file từ nhiều nguồn với hỗ trợ resume
      */
@@ -86,32 +234,73 @@ public class MultiSourceDownloader {
         String fileName = fileInfo.getFileName();
         String fileHash = fileInfo.getFileHash();
         long fileSize = fileInfo.getFileSize();
-        int totalChunks = (int) Math.ceil((double) fileSize / CHUNK_SIZE);
+        int chunkSize = fileInfo.getChunkSize(); // Do người publish chọn, mọi nguồn chia giống nhau
+        int totalChunks = FileInfo.chunkCount(fileSize, chunkSize);
 
-        // Kiểm tra download state cũ (resume)
-        DownloadState state = db.getDownloadState(localPeerId, fileHash);
-        Set<Integer> completedChunks;
-        int downloadId;
+        // Tạo file tạm
+        File targetFile = fileManager.getTargetFile(fileName, savePath);
+        // Lưu file tạm cùng thư mục với target file để dễ rename
+        File tempFile = new File(targetFile.getParent(), fileName + ".tmp");
+
+        // Đảm bảo thư mục cha tồn tại
+        if (!tempFile.getParentFile().exists()) {
+            tempFile.getParentFile().mkdirs();
+        }
 
-        if (state != null && state.status.equals("paused")) {
-            // Resume download
+        // Journal cạnh file tạm là nguồn tiến độ chính: mới hơn DB (DB chỉ được cập nhật thưa),
+        // còn cả khi chương trình bị tắt ngang và đọc được khi DB chậm/không kết nối được
+        File journalFile = ProgressCheckpointer.journalFor(tempFile);
+        ProgressCheckpointer.ResumeState journaled = tempFile.exists()
+                ? ProgressCheckpointer.readJournal(journalFile, fileSize, chunkSize, totalChunks, fileHash)
+                : null;
+
+        // Chỉ hỏi DB khi không có journal (lượt tải cũ) hoặc journal chưa gắn với lượt tải nào trong DB
+        DownloadState state = null;
+        if (journaled == null || journaled.downloadId <= 0) {
+            state = db.getDownloadState(localPeerId, fileHash);
+            if (state != null && (state.totalChunks != totalChunks || state.completedChunks.size() != totalChunks)) {
+                // Tiến độ cũ chia theo kích thước chunk khác - không dùng lại được
+                System.out.println("[Download] Bỏ tiến độ cũ của " + fileName + " (" + state.totalChunks
+                        + " chunks, nay là " + totalChunks + ")");
+                state = null;
+            }
+        }
+
+        int downloadId;
+        if (journaled != null && journaled.downloadId > 0) {
+            downloadId = journaled.downloadId;
+        } else if (state != null) {
             downloadId = state.downloadId;
-            completedChunks = new ConcurrentSkipListSet<>(state.completedChunks);
+        } else {
+            // New download
+            downloadId = db.createDownload(fileInfo.getFileDbId(), fileHash, localPeerId,
+                    fileName, fileSize, totalChunks);
+            if (downloadId <= 0)
+                System.out.println("[Download] " + fileName + " chưa lưu được vào DB, tiến độ chỉ nằm trong journal"
+                        + " (lần tiếp tục sau sẽ tạo lại)");
+        }
+
+        ChunkBitSet resumedChunks;
+        if (journaled != null) {
+            resumedChunks = journaled.completedChunks;
+        } else if (state != null && tempFile.exists()) {
+            resumedChunks = state.completedChunks; // Lượt tải trước khi có journal
+        } else {
+            if (state != null && !state.completedChunks.isEmpty())
+                System.out.println("[Download] Không còn file tạm của " + fileName + ", tải lại từ đầu");
+            resumedChunks = new ChunkBitSet(totalChunks);
+        }
+        if (!resumedChunks.isEmpty()) {
             System.out.println("[Download] Tiếp tục tải " + fileName + " từ " +
-                    completedChunks.size() + "/" + totalChunks + " chunks");
+                    resumedChunks.cardinality() + "/" + totalChunks + " chunks");
             if (callback != null) {
-                int percent = (int) (completedChunks.size() * 100 / totalChunks);
+                int percent = (int) (resumedChunks.cardinality() * 100 / totalChunks);
                 callback.onResumed(fileName, percent);
             }
-        } else {
-            // New download
-            downloadId = db.createDownload(fileInfo.getFileDbId(), localPeerId,
-                    fileName, fileSize, totalChunks);
-            completedChunks = new ConcurrentSkipListSet<>();
         }
 
-        // Lấy danh sách tất cả peer có file này
-        List<FileInfo> sources = db.getPeersHavingFile(fileHash);
+        // Lấy danh sách tất cả peer có file này (tracker trước, không được thì hỏi DB)
+        List<FileInfo> sources = querySources(fileHash);
         if (sources.isEmpty()) {
             // Fallback: sử dụng source ban đầu
             sources = new ArrayList<>();
@@ -122,56 +311,50 @@ public class MultiSourceDownloader {
         if (callback != null)
             callback.onDownloadStarted(fileName, sources.size());
 
-        // Tạo file tạm
-        File targetFile = fileManager.getTargetFile(fileName, savePath);
-        // Lưu file tạm cùng thư mục với target file để dễ rename
-        File tempFile = new File(targetFile.getParent(), fileName + ".tmp");
-
-        // Đảm bảo thư mục cha tồn tại
-        if (!tempFile.getParentFile().exists()) {
-            tempFile.getParentFile().mkdirs();
-        }
-
-        RandomAccessFile raf = new RandomAccessFile(tempFile, "rw");
-        raf.setLength(fileSize);
+        ChunkManifest manifest = fetchManifest(sources, fileName, fileSize, chunkSize, totalChunks);
+        // Nhiều nguồn chỉ trả manifest đã được hai nguồn xác nhận; manifest của nguồn duy nhất
+        // (hoặc không có manifest) phải đối chiếu MD5 cả file với hash đã publish khi tải xong
+        boolean manifestConfirmed = manifest != null && sources.size() > 1;
+        ChunkVerifier verifier = new ChunkVerifier(manifest);
+        ChunkBitSet completedChunks = spotCheck(tempFile, resumedChunks, manifest, fileSize, chunkSize, fileName);
 
         // Tracking
-        AtomicLong downloadedBytes = new AtomicLong(completedChunks.size() * CHUNK_SIZE);
-        long startTime = System.currentTimeMillis();
-
-        // Tạo queue chunks cần tải
-        Queue<Integer> pendingChunks = new ConcurrentLinkedQueue<>();
-        for (int i = 0; i < totalChunks; i++) {
-            if (!completedChunks.contains(i)) {
-                pendingChunks.add(i);
-            }
-        }
+        AtomicLong downloadedBytes = new AtomicLong((long) completedChunks.cardinality() * chunkSize);
 
-        // Tạo các worker cho mỗi source
-        int numSources = Math.min(sources.size(), MAX_CONCURRENT_SOURCES);
-        CountDownLatch latch = new CountDownLatch(numSources);
-        List<Future<?>> workers = new ArrayList<>();
+        // Tiến độ được lưu ở nền (journal + DB), worker không chờ I/O lưu trạng thái
+        ProgressCheckpointer checkpointer = new ProgressCheckpointer(downloadId, journalFile, fileSize, chunkSize,
+                fileHash, completedChunks, downloadedBytes.get());
 
-        for (int i = 0; i < numSources; i++) {
-            FileInfo source = sources.get(i % sources.size());
-            Future<?> worker = executor.submit(() -> {
-                try {
-                    downloadWorker(source, fileName, fileSize, totalChunks,
-                            pendingChunks, completedChunks, raf,
-                            downloadedBytes, downloadId);
-                } finally {
-                    latch.countDown();
+        // Chunk chỉ được tính là xong khi đã ghi vào file tạm
+        ChunkWriter writer;
+        try {
+            writer = new ChunkWriter(tempFile, fileSize, writeBehind, (chunkIndex, length) -> {
+                if (completedChunks.set(chunkIndex)) {
+                    downloadedBytes.addAndGet(length);
+                    checkpointer.onChunkWritten(chunkIndex);
                 }
             });
-            workers.add(worker);
+        } catch (IOException e) {
+            checkpointer.close();
+            throw e;
         }
+        checkpointer.start(writer);
+        long startTime = System.currentTimeMillis();
+
+        // Scheduler chia chunk cho các nguồn theo chunk mỗi nguồn có
+        ChunkScheduler scheduler = schedulerFactory.create(totalChunks);
+        scheduler.markCompleted(completedChunks);
+        SourcePool pool = new SourcePool(scheduler, source -> downloadWorker(source, fileName, fileSize,
+                chunkSize, scheduler, writer, verifier));
+        pool.merge(sources);
+        pool.refill();
 
         // Progress reporter
         executor.submit(() -> {
-            while (!pendingChunks.isEmpty() && !isCancelled && !isPaused) {
+            while (!pool.isStopped() && !scheduler.isDone() && !isCancelled && !isPaused) {
                 try {
                     Thread.sleep(500);
-                    int percent = (int) (completedChunks.size() * 100 / totalChunks);
+                    int percent = (int) (completedChunks.cardinality() * 100 / totalChunks);
                     long elapsed = System.currentTimeMillis() - startTime;
                     double speed = elapsed > 0 ? downloadedBytes.get() * 1000.0 / elapsed : 0;
 
@@ -184,36 +367,92 @@ public class MultiSourceDownloader {
             }
         });
 
-        // Đợi hoàn thành
+        // Đợi hoàn thành, định kỳ hỏi lại nguồn mới và thay worker đã dừng
+        long lastRefresh = System.currentTimeMillis();
         try {
-            latch.await();
+            while (!scheduler.isDone() && !isCancelled && !isPaused) {
+                pool.awaitChange(1000);
+                if (scheduler.isDone() || isCancelled || isPaused)
+                    break;
+
+                long now = System.currentTimeMillis();
+                if (pool.activeCount() == 0 || now - lastRefresh >= SOURCE_REFRESH_MS) {
+                    lastRefresh = now;
+                    int added = pool.merge(querySources(fileHash));
+                    if (added > 0)
+                        System.out.println("[Download] " + fileName + ": thêm " + added + " nguồn mới");
+                }
+                pool.refill();
+                if (pool.activeCount() == 0 && !pool.isWaitingForConnection()) {
+                    System.out.println("[Download] " + fileName + ": không còn nguồn nào tải được");
+                    break;
+                }
+            }
+            pool.awaitIdle();
         } catch (InterruptedException e) {
             Thread.currentThread().interrupt();
+        } finally {
+            pool.stop();
         }
 
-        raf.close();
+        try {
+            writer.close();
+        } catch (IOException e) {
+            System.err.println("[Download] " + fileName + ": " + e.getMessage());
+        }
+
+        if (verifier.getBadChunks() > 0) {
+            System.out.println("[Download] " + fileName + ": đã loại " + verifier.getBadChunks()
+                    + " chunk sai hash, nguồn bị loại: " + verifier.getBannedSources());
+        }
 
         // Kiểm tra kết quả
         if (isCancelled) {
+            checkpointer.discard();
             tempFile.delete();
             return false;
         }
 
         if (isPaused) {
+            checkpointer.close();
             db.pauseDownload(downloadId);
             if (callback != null) {
-                int percent = (int) (completedChunks.size() * 100 / totalChunks);
+                int percent = (int) (completedChunks.cardinality() * 100 / totalChunks);
                 callback.onPaused(fileName, percent);
             }
             return false;
         }
 
-        if (completedChunks.size() == totalChunks) {
-            // Hoàn thành - đổi tên file
+        if (completedChunks.cardinality() == totalChunks) {
+            String verifiedHash = null;
+            if (!manifestConfirmed && fileHash != null) {
+                verifiedHash = hashOf(tempFile, chunkSize);
+                if (!fileHash.equalsIgnoreCase(verifiedHash)) {
+                    // Không biết chunk nào sai - bỏ cả file tạm và journal, lần sau tải lại từ đầu
+                    String error = "Sai hash file (nhận " + verifiedHash + ", mong đợi " + fileHash + ")";
+                    System.err.println("[Download] " + fileName + ": " + error);
+                    checkpointer.discard();
+                    tempFile.delete();
+                    if (callback != null)
+                        callback.onFailed(fileName, error);
+                    return false;
+                }
+            }
+
+            // Hoàn thành - đưa file vào vị trí đích, journal chỉ bị xóa khi đã đổi tên xong
             File finalFile = fileManager.getTargetFile(fileName, savePath);
-            if (finalFile.exists())
-                finalFile.delete();
-            tempFile.renameTo(finalFile);
+            try {
+                fileManager.moveIntoPlace(tempFile, finalFile);
+            } catch (IOException e) {
+                System.err.println("[Download] Không lưu được " + finalFile.getAbsolutePath() + ": " + e.getMessage());
+                checkpointer.close();
+                if (callback != null)
+                    callback.onFailed(fileName, "Không lưu được file: " + e.getMessage());
+                return false;
+            }
+            checkpointer.discard();
+            if (verifiedHash != null)
+                fileManager.recordHash(finalFile, verifiedHash); // Seed lại không phải băm lần nữa
 
             // Cập nhật database
             db.completeDownload(downloadId);
@@ -226,112 +465,527 @@ public class MultiSourceDownloader {
                 callback.onCompleted(fileName);
             return true;
         } else {
-            // Chưa hoàn thành - có thể retry
-            db.updateDownloadProgress(downloadId, completedChunks, downloadedBytes.get());
+            // Chưa hoàn thành - có thể retry (tiến độ đã ghi vào journal và DB)
+            checkpointer.close();
             if (callback != null) {
-                callback.onFailed(fileName, "Chỉ tải được " + completedChunks.size() + "/" + totalChunks + " chunks");
+                callback.onFailed(fileName, "Chỉ tải được " + completedChunks.cardinality() + "/" + totalChunks + " chunks");
             }
             return false;
         }
     }
 
+    /**
+     * Danh sách nguồn hiện có file (tracker trước, không được thì hỏi DB)
+     */
+    private List<FileInfo> querySources(String fileHash) {
+        List<FileInfo> sources = sourceProvider != null ? sourceProvider.getSources(fileHash) : null;
+        if (sources == null || sources.isEmpty()) {
+            sources = db.getPeersHavingFile(fileHash);
+        }
+        return sources != null ? sources : new ArrayList<>();
+    }
+
+    /**
+     * Kiểm tra ngẫu nhiên vài chunk có sẵn trong file tạm theo manifest trước khi tiếp tục tải
+     * - Có chunk sai (file tạm bị sửa/hỏng ngoài chương trình) thì kiểm tra toàn bộ, chỉ giữ chunk đúng
+     * - Không có manifest thì tin tiến độ đã lưu (cả file được đối chiếu MD5 khi tải xong)
+     */
+    private ChunkBitSet spotCheck(File tempFile, ChunkBitSet chunks, ChunkManifest manifest, long fileSize,
+            int chunkSize, String fileName) {
+        int samples = resumeSpotCheck;
+        if (manifest == null || samples <= 0 || chunks.isEmpty())
+            return chunks;
+
+        try (RandomAccessFile raf = new RandomAccessFile(tempFile, "r")) {
+            Random random = new Random();
+            boolean ok = true;
+            for (int i = 0; i < samples && ok; i++) {
+                int chunk = chunks.nextSetBit(random.nextInt(chunks.size()));
+                if (chunk < 0)
+                    chunk = chunks.nextSetBit(0);
+                ok = checkStoredChunk(raf, chunk, manifest, fileSize, chunkSize);
+            }
+            if (ok)
+                return chunks;
+
+            System.out.println("[Download] File tạm của " + fileName + " có chunk sai, kiểm tra lại toàn bộ");
+            ChunkBitSet good = new ChunkBitSet(chunks.size());
+            for (int chunk = chunks.nextSetBit(0); chunk >= 0; chunk = chunks.nextSetBit(chunk + 1)) {
+                if (checkStoredChunk(raf, chunk, manifest, fileSize, chunkSize))
+                    good.set(chunk);
+            }
+            System.out.println("[Download] Giữ lại " + good.cardinality() + "/" + chunks.cardinality()
+                    + " chunks của " + fileName);
+            return good;
+        } catch (IOException e) {
+            System.err.println("[Download] Không đọc được file tạm " + tempFile.getName() + ": " + e.getMessage());
+            return new ChunkBitSet(chunks.size());
+        }
+    }
+
+    /**
+     * MD5 của cả file tạm (null nếu không đọc được - coi như sai hash)
+     */
+    private static String hashOf(File file, int chunkSize) {
+        try {
+            return ChunkManifest.compute(file, chunkSize).getFileHash();
+        } catch (IOException e) {
+            System.err.println("[Download] Không đọc được " + file.getName() + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    private static boolean checkStoredChunk(RandomAccessFile raf, int chunk, ChunkManifest manifest, long fileSize,
+            int chunkSize) throws IOException {
+        long offset = (long) chunk * chunkSize;
+        int length = (int) Math.min(chunkSize, fileSize - offset);
+        if (raf.length() < offset + length)
+            return false;
+        byte[] data = new byte[length];
+        raf.seek(offset);
+        raf.readFully(data);
+        return manifest.verify(chunk, data);
+    }
+
+    /**
+     * Lấy manifest từ các nguồn (tối đa MANIFEST_SOURCES), dừng khi hai nguồn trả về giống nhau
+     * - Chỉ có một nguồn thì tin manifest của nguồn đó
+     * - Nhiều nguồn mà không có hai bản nào khớp thì không dùng manifest: một nguồn gửi manifest giả
+     *   không thể khiến các nguồn đúng bị ban
+     *
+     * @return null nếu không có manifest đáng tin - khi đó tải không kiểm tra từng chunk,
+     *         cả file được đối chiếu MD5 với hash đã publish khi tải xong
+     */
+    private ChunkManifest fetchManifest(List<FileInfo> sources, String fileName, long fileSize,
+            int chunkSize, int totalChunks) {
+        List<ChunkManifest> received = new ArrayList<>();
+        int asked = 0;
+        for (FileInfo source : sources) {
+            if (asked >= MANIFEST_SOURCES)
+                break;
+            asked++;
+            ChunkManifest manifest = PeerConnection.requestManifest(source.getPeerIP(), source.getPeerPort(),
+                    fileName, fileSize, chunkSize);
+            if (manifest == null || manifest.getChunkSize() != chunkSize
+                    || manifest.getChunkCount() != totalChunks) {
+                continue;
+            }
+            for (ChunkManifest other : received) {
+                if (other.sameDigests(manifest)) {
+                    System.out.println("[Download] Manifest " + fileName + " khớp giữa " + (received.size() + 1)
+                            + " nguồn");
+                    return manifest;
+                }
+            }
+            received.add(manifest);
+        }
+
+        if (received.isEmpty()) {
+            System.out.println("[Download] Không nguồn nào gửi manifest cho " + fileName
+                    + " - tải không kiểm tra từng chunk");
+            return null;
+        }
+        if (sources.size() == 1) {
+            return received.get(0);
+        }
+        System.out.println("[Download] ⚠️ Manifest " + fileName + " không khớp giữa các nguồn"
+                + " - tải không kiểm tra từng chunk");
+        return null;
+    }
+
     /**
      * Worker tải chunks từ một source
+     * Dùng một kết nối lâu dài (PeerConnection) cho toàn bộ quá trình tải và giữ
+     * nhiều REQUEST_CHUNK đang bay cùng lúc (pipelining) theo cửa sổ tự điều chỉnh;
+     * chunk nào tải tiếp do scheduler quyết định
+     *
+     * @return trạng thái khi dừng: completed, failed, banned hoặc retired (quá chậm)
      */
-    private void downloadWorker(FileInfo source, String fileName, long fileSize, int totalChunks,
-            Queue<Integer> pendingChunks, Set<Integer> completedChunks,
-            RandomAccessFile raf, AtomicLong downloadedBytes, int downloadId) {
+    private String downloadWorker(FileInfo source, String fileName, long fileSize, int fileChunkSize,
+            ChunkScheduler scheduler, ChunkWriter writer, ChunkVerifier verifier) {
 
         String sourceId = source.getPeerIP() + ":" + source.getPeerPort();
         int chunksDownloaded = 0;
         int retries = 0;
+        PeerConnection connection = null;
+        PipelineWindow window = new PipelineWindow(INITIAL_IN_FLIGHT, maxInFlight);
+        SourceHealth health = sourceHealth.computeIfAbsent(sourceId, id -> new SourceHealth());
+        long startedAt = System.currentTimeMillis();
+        boolean retired = false;
 
-        while (!pendingChunks.isEmpty() && !isCancelled && !isPaused && retries < MAX_RETRIES) {
-            Integer chunkIndex = pendingChunks.poll();
-            if (chunkIndex == null)
-                break;
+        // requestId -> request đang chờ response (theo thứ tự gửi)
+        Map<Integer, InFlightChunk> inFlight = new LinkedHashMap<>();
 
-            // Kiểm tra chunk đã được tải bởi worker khác chưa
-            if (completedChunks.contains(chunkIndex))
-                continue;
+        try {
+            while (!isCancelled && !isPaused && retries < MAX_RETRIES && !verifier.isBanned(sourceId)) {
+                try {
+                    if (connection == null) {
+                        connection = PeerConnection.open(source.getPeerIP(), source.getPeerPort());
+                    }
 
-            try {
-                byte[] chunkData = downloadChunk(source, fileName, chunkIndex, fileSize);
-
-                if (chunkData != null) {
-                    // Ghi vào file
-                    synchronized (raf) {
-                        long offset = (long) chunkIndex * CHUNK_SIZE;
-                        raf.seek(offset);
-                        raf.write(chunkData);
+                    if (isTooSlow(window, chunksDownloaded, startedAt, scheduler)) {
+                        retired = true; // Chunk đang bay được trả lại cho nguồn khác
+                        break;
                     }
 
-                    completedChunks.add(chunkIndex);
-                    downloadedBytes.addAndGet(chunkData.length);
-                    chunksDownloaded++;
-                    retries = 0;
+                    // Peer cũ không hỗ trợ session -> mỗi lần chỉ một request
+                    int windowSize = connection.isSessionMode() ? window.size() : 1;
+
+                    // Lấp đầy cửa sổ
+                    boolean requested = false;
+                    while (inFlight.size() < windowSize) {
+                        Integer chunkIndex = scheduler.next(sourceId);
+                        if (chunkIndex == null)
+                            break;
+                        requested = true;
+
+                        long offset = (long) chunkIndex * fileChunkSize;
+                        int chunkSize = (int) Math.min(fileChunkSize, fileSize - offset);
+
+                        if (!connection.isSessionMode()) {
+                            // Nằm trong inFlight tới khi xử lý xong: lỗi ở bước nào cũng được trả lại scheduler
+                            InFlightChunk chunk = new InFlightChunk(chunkIndex, offset, System.nanoTime());
+                            inFlight.put(LEGACY_REQUEST_ID, chunk);
+                            byte[] chunkData = connection.requestChunk(fileName, chunkIndex, offset, chunkSize);
+                            boolean ok = onChunkReceived(chunk, chunkData, writer, scheduler, window, health,
+                                    verifier, sourceId);
+                            inFlight.remove(LEGACY_REQUEST_ID);
+                            if (ok) {
+                                chunksDownloaded++;
+                                retries = 0;
+                                reportChunk(source, chunksDownloaded);
+                            } else {
+                                retries++;
+                            }
+                            break;
+                        }
+
+                        int requestId;
+                        try {
+                            requestId = connection.sendChunkRequest(fileName, chunkIndex, offset, chunkSize);
+                        } catch (IOException e) {
+                            scheduler.onFailed(sourceId, chunkIndex);
+                            throw e;
+                        }
+                        inFlight.put(requestId, new InFlightChunk(chunkIndex, offset, System.nanoTime()));
+                    }
 
-                    // Cập nhật DB định kỳ
-                    if (chunksDownloaded % 10 == 0) {
-                        db.updateDownloadProgress(downloadId, completedChunks, downloadedBytes.get());
+                    if (inFlight.isEmpty()) {
+                        if (scheduler.isDone() || !scheduler.hasWorkFor(sourceId))
+                            break; // Hết việc, hoặc chỉ còn các chunk source này không có/đã gửi sai
+                        if (!requested)
+                            Thread.sleep(IDLE_WAIT_MS); // Các chunk còn lại đang ở nguồn khác
+                        continue;
                     }
 
-                    if (callback != null) {
-                        callback.onSourceStatus(source.getPeerIP(), source.getPeerPort(),
-                                "active", chunksDownloaded);
+                    // Nhận một response
+                    PeerConnection.ChunkResponse response = connection.receiveChunk();
+                    InFlightChunk chunk = inFlight.get(response.requestId);
+                    if (chunk == null) {
+                        throw new IOException("Response với requestId lạ: " + response.requestId);
                     }
-                } else {
-                    // Chunk tải thất bại - đưa lại vào queue
-                    pendingChunks.add(chunkIndex);
+
+                    // Chỉ bỏ khỏi inFlight sau khi xử lý xong (như nhánh peer cũ)
+                    boolean ok = onChunkReceived(chunk, response.data, writer, scheduler, window, health, verifier,
+                            sourceId);
+                    inFlight.remove(response.requestId);
+                    if (ok) {
+                        chunksDownloaded++;
+                        retries = 0;
+                        reportChunk(source, chunksDownloaded);
+                    } else {
+                        retries++;
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                } catch (Exception e) {
                     retries++;
+                    window.onError();
+                    health.onError();
+                    System.err.println("[Worker " + sourceId + "] Lỗi: " + e.getMessage());
+
+                    // Trả các chunk đang bay cho scheduler, kết nối có thể đã hỏng - mở lại ở lần thử sau
+                    for (InFlightChunk chunk : inFlight.values()) {
+                        scheduler.onFailed(sourceId, chunk.chunkIndex);
+                    }
+                    inFlight.clear();
+                    if (connection != null) {
+                        connection.close();
+                        connection = null;
+                    }
                 }
-            } catch (Exception e) {
-                pendingChunks.add(chunkIndex);
-                retries++;
-                System.err.println("[Worker " + sourceId + "] Lỗi chunk " + chunkIndex + ": " + e.getMessage());
+            }
+        } finally {
+            // Trả mọi chunk còn giao cho nguồn này để nguồn khác tải
+            scheduler.removeSource(sourceId);
+            if (connection != null) {
+                connection.close();
             }
         }
 
+        String status = verifier.isBanned(sourceId) ? "banned"
+                : retries >= MAX_RETRIES ? "failed" : retired ? "retired" : "completed";
+        System.out.println("[Worker " + sourceId + "] Kết thúc (" + status + "): " + chunksDownloaded
+                + " chunks, cửa sổ " + window.size() + ", RTT min " + window.getMinRttMillis() + " ms, " + health);
+
         if (callback != null) {
-            String status = retries >= MAX_RETRIES ? "failed" : "completed";
             callback.onSourceStatus(source.getPeerIP(), source.getPeerPort(), status, chunksDownloaded);
         }
+        return status;
     }
 
     /**
-     * Tải một chunk từ peer
+     * Nguồn đã tải đủ lâu mà vẫn dưới tốc độ tối thiểu, và còn nguồn khác để nhận phần việc của nó
      */
-    private byte[] downloadChunk(FileInfo source, String fileName, int chunkIndex, long fileSize) {
-        try (Socket socket = new Socket(source.getPeerIP(), source.getPeerPort());
-                ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream());
-                ObjectInputStream in = new ObjectInputStream(socket.getInputStream())) {
+    private boolean isTooSlow(PipelineWindow window, int chunksDownloaded, long startedAt,
+            ChunkScheduler scheduler) {
+        long minThroughput = minSourceThroughput;
+        if (minThroughput <= 0 || chunksDownloaded < RETIRE_MIN_CHUNKS
+                || System.currentTimeMillis() - startedAt < RETIRE_GRACE_MS) {
+            return false;
+        }
+        double throughput = window.getThroughput();
+        return throughput > 0 && throughput < minThroughput && scheduler.getSourceCount() > 1;
+    }
 
-            socket.setSoTimeout(30000);
+    /**
+     * Xử lý dữ liệu một chunk vừa nhận
+     *
+     * @return true nếu chunk hợp lệ (đã ghi, đã xếp vào hàng đợi write-behind, hoặc là bản trùng
+     *         của endgame đã có từ nguồn khác)
+     */
+    private boolean onChunkReceived(InFlightChunk chunk, byte[] chunkData, ChunkWriter writer,
+            ChunkScheduler scheduler, PipelineWindow window, SourceHealth health, ChunkVerifier verifier,
+            String sourceId) throws IOException, InterruptedException {
+        if (chunkData == null) {
+            // Chunk tải thất bại - trả lại cho scheduler
+            health.onError();
+            scheduler.onFailed(sourceId, chunk.chunkIndex);
+            return false;
+        }
 
-            // Gửi yêu cầu chunk
-            Message request = new Message(Message.Type.REQUEST_CHUNK);
-            request.setContent(fileName);
-            request.setChunkIndex(chunkIndex);
-            request.setOffset((long) chunkIndex * CHUNK_SIZE);
+        if (!verifier.verify(chunk.chunkIndex, chunkData, sourceId)) {
+            health.onError();
+            // Sai hash - không ghi, tải lại từ nguồn khác
+            System.err.println("[Worker " + sourceId + "] Chunk " + chunk.chunkIndex + " sai hash, tải lại từ nguồn khác");
+            scheduler.onRejected(sourceId, chunk.chunkIndex);
+            return false;
+        }
 
-            int chunkSize = (int) Math.min(CHUNK_SIZE, fileSize - (long) chunkIndex * CHUNK_SIZE);
-            request.setChunkSize(chunkSize);
+        long rttNanos = System.nanoTime() - chunk.sentAtNanos;
+        window.onChunkCompleted(rttNanos, chunkData.length);
+        health.onSuccess(rttNanos, window.getThroughput(), chunkData.length);
+        limiter.throttle(chunkData.length);
+        if (!scheduler.onReceived(sourceId, chunk.chunkIndex, health.getScore())) {
+            return true; // Nguồn khác đã gửi chunk này trước (endgame)
+        }
 
-            out.writeObject(request);
-            out.flush();
+        // Ghi vào file (ghi theo vị trí, không khóa chung giữa các worker)
+        try {
+            writer.write(chunk.chunkIndex, chunk.offset, chunkData);
+        } catch (IOException e) {
+            scheduler.onWriteFailed(chunk.chunkIndex); // Chưa nằm trong file - phải tải lại
+            throw e;
+        }
+        return true;
+    }
+
+    private void reportChunk(FileInfo source, int chunksDownloaded) {
+        if (callback != null) {
+            callback.onSourceStatus(source.getPeerIP(), source.getPeerPort(), "active", chunksDownloaded);
+        }
+    }
+
+    /**
+     * Các nguồn của một lượt tải: nguồn đã biết, nguồn đang có worker, nguồn đã dừng
+     * - Nguồn mới (tracker/DB trả về khi hỏi lại) được mở worker khi còn chỗ, điểm sức khỏe cao trước
+     * - Nguồn lỗi quá số lần thử/gửi sai hash không được dùng lại trong lượt tải này
+     * - Nguồn bị loại vì chậm chỉ được dùng lại khi không còn nguồn nào khác đang tải
+     */
+    private class SourcePool {
+        private final ChunkScheduler scheduler;
+        private final Function<FileInfo, String> worker; // Trả về trạng thái khi dừng
+        private final Map<String, FileInfo> known = new LinkedHashMap<>();
+        private final Set<String> active = new HashSet<>();
+        private final Set<String> finished = new HashSet<>(); // Hết chunk để tải từ nguồn này
+        private final Set<String> failed = new HashSet<>();
+        private final Set<String> slow = new HashSet<>();
+        private boolean waitingForConnection; // Còn nguồn nhưng đã hết kết nối chung
+        private boolean stopped;
+
+        SourcePool(ChunkScheduler scheduler, Function<FileInfo, String> worker) {
+            this.scheduler = scheduler;
+            this.worker = worker;
+        }
+
+        /**
+         * Gộp danh sách nguồn mới hỏi được
+         *
+         * @return số nguồn chưa biết trước đó
+         */
+        synchronized int merge(List<FileInfo> sources) {
+            int added = 0;
+            for (FileInfo source : sources) {
+                String id = source.getPeerIP() + ":" + source.getPeerPort();
+                FileInfo old = known.put(id, source);
+                if (old == null) {
+                    added++;
+                } else if (!Objects.equals(old.getAvailableChunks(), source.getAvailableChunks())) {
+                    finished.remove(id); // Nguồn đã có thêm chunk
+                }
+            }
+            return added;
+        }
+
+        /**
+         * Mở worker cho các nguồn chưa dùng cho tới khi đủ MAX_CONCURRENT_SOURCES
+         */
+        synchronized void refill() {
+            List<String> candidates = new ArrayList<>();
+            for (String id : known.keySet()) {
+                if (!active.contains(id) && !finished.contains(id) && !failed.contains(id) && !slow.contains(id))
+                    candidates.add(id);
+            }
+            if (candidates.isEmpty() && active.isEmpty()) {
+                candidates.addAll(slow); // Nguồn chậm vẫn hơn không có nguồn nào
+                slow.clear();
+            }
+            candidates.sort(Comparator.comparingDouble(this::score).reversed());
 
-            // Nhận chunk
-            Message response = (Message) in.readObject();
+            TransferLimiter limiter = MultiSourceDownloader.this.limiter;
+            int maxSources = Math.min(MAX_CONCURRENT_SOURCES, Math.max(1, limiter.connectionShare()));
+            waitingForConnection = false;
+            for (String id : candidates) {
+                if (active.size() >= maxSources)
+                    break;
+                if (!limiter.tryAcquireConnection()) {
+                    waitingForConnection = true;
+                    break;
+                }
+                FileInfo source = known.get(id);
+                scheduler.addSource(id, source.getAvailableChunks());
+                active.add(id);
+                executor.submit(() -> {
+                    String status = "failed";
+                    try {
+                        status = worker.apply(source);
+                    } finally {
+                        limiter.releaseConnection();
+                        onWorkerDone(id, status);
+                    }
+                });
+            }
+        }
 
-            if (response.getType() == Message.Type.CHUNK_DATA) {
-                return response.getData();
+        synchronized boolean isWaitingForConnection() {
+            return waitingForConnection;
+        }
+
+        synchronized int activeCount() {
+            return active.size();
+        }
+
+        /**
+         * Chờ tối đa timeoutMs hoặc tới khi có worker dừng
+         */
+        synchronized void awaitChange(long timeoutMs) throws InterruptedException {
+            wait(timeoutMs);
+        }
+
+        /**
+         * Chờ mọi worker dừng (trước khi đóng file tạm)
+         */
+        synchronized void awaitIdle() throws InterruptedException {
+            while (!active.isEmpty()) {
+                wait();
             }
+        }
 
-        } catch (Exception e) {
-            System.err.println("[Chunk] Lỗi tải chunk " + chunkIndex + " từ " +
-                    source.getPeerIP() + ": " + e.getMessage());
+        /**
+         * Lượt tải kết thúc (dừng báo tiến độ)
+         */
+        synchronized void stop() {
+            stopped = true;
+        }
+
+        synchronized boolean isStopped() {
+            return stopped;
+        }
+
+        private double score(String id) {
+            SourceHealth health = sourceHealth.get(id);
+            return health != null ? health.getScore() : SourceHealth.UNKNOWN_SCORE;
+        }
+
+        private synchronized void onWorkerDone(String id, String status) {
+            active.remove(id);
+            switch (status) {
+                case "retired":
+                    slow.add(id);
+                    break;
+                case "completed":
+                    finished.add(id);
+                    break;
+                default:
+                    failed.add(id);
+            }
+            notifyAll();
+        }
+    }
+
+    /**
+     * Một REQUEST_CHUNK đã gửi, đang chờ response
+     */
+    private static class InFlightChunk {
+        final int chunkIndex;
+        final long offset;
+        final long sentAtNanos;
+
+        InFlightChunk(int chunkIndex, long offset, long sentAtNanos) {
+            this.chunkIndex = chunkIndex;
+            this.offset = offset;
+            this.sentAtNanos = sentAtNanos;
+        }
+    }
+
+    /**
+     * Kiểm tra chunk theo manifest và đếm số chunk sai của từng nguồn (dùng chung cho mọi worker
+     * của một lượt tải; chunk nào nguồn nào đã gửi sai do scheduler ghi nhận)
+     */
+    private static class ChunkVerifier {
+        private final ChunkManifest manifest; // null = không kiểm tra
+        private final Map<String, Integer> strikes = new ConcurrentHashMap<>(); // sourceId -> số chunk sai
+        private final AtomicLong badChunks = new AtomicLong();
+
+        ChunkVerifier(ChunkManifest manifest) {
+            this.manifest = manifest;
+        }
+
+        boolean verify(int chunkIndex, byte[] data, String sourceId) {
+            if (manifest == null || manifest.verify(chunkIndex, data))
+                return true;
+            badChunks.incrementAndGet();
+            strikes.merge(sourceId, 1, Integer::sum);
+            return false;
+        }
+
+        boolean isBanned(String sourceId) {
+            return strikes.getOrDefault(sourceId, 0) >= MAX_BAD_CHUNKS;
+        }
+
+        long getBadChunks() {
+            return badChunks.get();
+        }
+
+        List<String> getBannedSources() {
+            List<String> banned = new ArrayList<>();
+            for (Map.Entry<String, Integer> e : strikes.entrySet()) {
+                if (e.getValue() >= MAX_BAD_CHUNKS)
+                    banned.add(e.getKey());
+            }
+            return banned;
         }
-        return null;
     }
 
     // ==================== CONTROL METHODS ====================
@@ -350,6 +1004,7 @@ public class MultiSourceDownloader {
     }
 
     public void shutdown() {
-        executor.shutdownNow();
+        if (ownsExecutor)
+            executor.shutdownNow();
     }
 }
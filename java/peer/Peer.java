@@ -1,9 +1,12 @@
 package peer;
 
 import tracker.FileInfo;
+import tracker.SearchPage;
+import tracker.SortOrder;
 import utils.NetworkUtils;
 import java.io.File;
 import java.util.List;
+import java.util.function.Consumer;
 
 /**
  * Class chính đại diện cho một Peer trong mạng P2P
@@ -42,6 +45,7 @@ public class Peer {
         this.fileManager = new FileManager(sharedFolder, downloadFolder);
         this.server = new PeerServer(port, peerID, fileManager);
         this.client = new PeerClient(trackerHost, trackerPort, port, fileManager);
+        this.server.setUnpublisher(client::unpublishFiles);
 
         System.out.println("═══════════════════════════════════════════");
         System.out.println("         PEER được tạo");
@@ -60,6 +64,9 @@ public class Peer {
      * Khởi động Peer (server + đăng ký tracker)
      */
     public boolean start() {
+        // Nạp trạng thái ẩn/hiện file trước khi nhận request
+        fileManager.getShareVisibility().load(peerID);
+
         // Khởi động PeerServer
         serverThread = new Thread(server);
         serverThread.start();
@@ -116,6 +123,21 @@ public class Peer {
         return client.getAllFiles();
     }
 
+    /**
+     * Danh sách đầy đủ các nguồn của một file (kết quả tìm kiếm chỉ kèm vài nguồn mẫu)
+     */
+    public List<FileInfo> getFileSources(String fileHash) {
+        return client.getFileSources(fileHash);
+    }
+
+    /**
+     * Nhận danh sách file theo lô (keyword = null: tất cả files, sắp theo tên)
+     */
+    public boolean streamFiles(String keyword, int batchSize, Consumer<SearchPage> onBatch) {
+        SortOrder order = keyword == null ? SortOrder.NAME : SortOrder.RELEVANCE;
+        return client.streamFiles(keyword, order, batchSize, onBatch);
+    }
+
     /**
      * Tải file
      */
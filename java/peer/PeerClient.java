@@ -1,16 +1,25 @@
 package peer;
 
 import protocol.Message;
+import protocol.MessageChannel;
 import tracker.FileInfo;
+import tracker.SearchPage;
+import tracker.SortOrder;
 import utils.NetworkUtils;
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
 import java.util.*;
+import java.util.function.Consumer;
 
 /**
  * Client của Peer - Kết nối Tracker và tải file từ peer khác
  */
 public class PeerClient {
+    private static final int CONNECT_TIMEOUT = 10000;
+
     private String trackerHost;
     private int trackerPort;
     private int localPort; // Port của PeerServer local
@@ -109,6 +118,33 @@ public class PeerClient {
         return false;
     }
 
+    /**
+     * Gỡ một lô file khỏi Tracker trong một message (Tracker cập nhật index rồi ghi DB ở nền)
+     * - Một file: gửi như UNPUBLISH thường để Tracker bản cũ vẫn hiểu
+     */
+    public boolean unpublishFiles(List<String> fileNames) {
+        if (fileNames.size() == 1)
+            return unpublishFile(fileNames.get(0));
+        try {
+            Message msg = new Message(Message.Type.UNPUBLISH);
+            List<FileInfo> files = new ArrayList<>();
+            for (String fileName : fileNames) {
+                files.add(new FileInfo(fileName, 0, null, localPort));
+            }
+            msg.setFileList(files);
+            msg.setPeerPort(localPort);
+
+            Message response = sendToTracker(msg);
+            if (response != null && response.getType() == Message.Type.REGISTER_OK) {
+                System.out.println("[PeerClient] " + response.getContent());
+                return true;
+            }
+        } catch (Exception e) {
+            System.err.println("[PeerClient] Lỗi unpublish: " + e.getMessage());
+        }
+        return false;
+    }
+
     /**
      * Unpublish file (xóa khỏi Tracker)
      */
@@ -130,39 +166,59 @@ public class PeerClient {
 
     /**
      * Publish tất cả files trong thư mục shared
+     * File đã có hash trong cache được publish ngay; file mới được băm ở nền
+     * và publish lần lượt khi băm xong
+     *
+     * @return số file publish ngay (chưa tính các file đang băm)
      */
     public int publishAllFiles() {
         int count = 0;
         try {
             String localIP = InetAddress.getLocalHost().getHostAddress();
-            List<FileInfo> files = fileManager.getSharedFileInfos(localIP, localPort);
+            List<File> unhashed = new ArrayList<>();
+            List<FileInfo> files = fileManager.getCachedFileInfos(localIP, localPort, unhashed);
 
             for (FileInfo file : files) {
                 if (publishFile(file)) {
                     count++;
                 }
             }
-            System.out.println("[PeerClient] Đã publish " + count + " files");
+            System.out.println("[PeerClient] Đã publish " + count + " files"
+                    + (unhashed.isEmpty() ? "" : ", " + unhashed.size() + " files đang tính hash ở nền"));
+
+            if (!unhashed.isEmpty()) {
+                fileManager.hashInBackground(unhashed, localIP, localPort, this::publishFile);
+            }
         } catch (Exception e) {
             System.err.println("[PeerClient] Lỗi publish all: " + e.getMessage());
         }
         return count;
     }
 
+    /**
+     * Ẩn/hiện file: báo Tracker (cập nhật index trong RAM và ghi DB ở nền)
+     * Tracker bản cũ không hiểu SET_SHARE_STATUS -> ghi thẳng vào DB như trước
+     */
     public void updateShareStatus(String fileName, boolean isShared) {
-        // This needs access to DatabaseManager. PeerClient doesn't hold it directly?
-        // Peer has PeerClient and PeerServer. PeerServer uses FileManager.
-        // MultiSourceDownloader uses DatabaseManager.
-
-        // Actually, DatabaseManager is a singleton. We can call it directly or via a
-        // specific manager.
-        // Let's call it directly here for convenience as it is a client-side operation
-        // impacting query results.
+        fileManager.getShareVisibility().setShared(fileName, isShared); // PeerServer áp dụng ngay
+        try {
+            Message msg = new Message(Message.Type.SET_SHARE_STATUS, fileName);
+            msg.setShared(isShared);
+            msg.setPeerPort(localPort);
+
+            Message response = sendToTracker(msg);
+            if (response != null && response.getType() == Message.Type.REGISTER_OK) {
+                System.out.println("[PeerClient] " + response.getContent());
+                return;
+            }
+        } catch (Exception e) {
+            System.err.println("[PeerClient] Lỗi cập nhật trạng thái chia sẻ: " + e.getMessage());
+        }
         database.DatabaseManager.getInstance().updateShareStatus(localPeerId, fileName, isShared);
     }
 
     public boolean getShareStatus(String fileName) {
-        return database.DatabaseManager.getInstance().getShareStatus(localPeerId, fileName);
+        return fileManager.getShareVisibility().isShared(localPeerId, fileName);
     }
 
     /**
@@ -183,6 +239,95 @@ public class PeerClient {
         return new ArrayList<>();
     }
 
+    /**
+     * Tìm kiếm theo trang (tracker xếp hạng theo độ khớp, bỏ dấu tiếng Việt)
+     * Kết quả gộp theo file hash: mỗi file một dòng kèm seedCount và vài nguồn mẫu,
+     * danh sách nguồn đầy đủ lấy bằng getFileSources()
+     *
+     * @param keyword   từ khóa (null = tất cả files)
+     * @param pageToken null cho trang đầu, sau đó dùng getNextToken() của trang trước
+     * @param limit     số file mỗi trang
+     */
+    public SearchPage searchFiles(String keyword, SortOrder order, String pageToken, int limit) {
+        try (MessageChannel channel = MessageChannel.connect(trackerHost, trackerPort, CONNECT_TIMEOUT)) {
+            Message msg = listingRequest(keyword, order, limit, false);
+            msg.setPageToken(pageToken);
+            channel.send(msg);
+            SearchPage page = toPage(channel.receive());
+            if (page != null)
+                return page;
+        } catch (Exception e) {
+            System.err.println("[PeerClient] Lỗi tìm kiếm: " + e.getMessage());
+        }
+        return new SearchPage(new ArrayList<>(), 0, 0, null);
+    }
+
+    /**
+     * Nhận kết quả theo lô trên một kết nối: tracker gửi lần lượt từng trang batchSize file,
+     * onBatch được gọi cho mỗi lô ngay khi nhận (tracker bản cũ trả một lô chứa tất cả)
+     *
+     * @param keyword null = tất cả files
+     * @return false nếu lỗi kết nối
+     */
+    public boolean streamFiles(String keyword, SortOrder order, int batchSize, Consumer<SearchPage> onBatch) {
+        try (MessageChannel channel = MessageChannel.connect(trackerHost, trackerPort, CONNECT_TIMEOUT)) {
+            channel.send(listingRequest(keyword, order, batchSize, true));
+            SearchPage page;
+            do {
+                page = toPage(channel.receive());
+                if (page == null)
+                    return false;
+                onBatch.accept(page);
+            } while (page.hasMore());
+            return true;
+        } catch (Exception e) {
+            System.err.println("[PeerClient] Lỗi nhận danh sách: " + e.getMessage());
+        }
+        return false;
+    }
+
+    private Message listingRequest(String keyword, SortOrder order, int limit, boolean streaming) {
+        Message msg = keyword == null ? new Message(Message.Type.GET_ALL_FILES)
+                : new Message(Message.Type.SEARCH, keyword);
+        msg.setPeerPort(localPort);
+        msg.setLimit(limit);
+        msg.setSortOrder(order.name());
+        msg.setStreaming(streaming);
+        msg.setAggregate(true);
+        return msg;
+    }
+
+    private SearchPage toPage(Message response) {
+        if (response == null || (response.getType() != Message.Type.SEARCH_RESULT
+                && response.getType() != Message.Type.FILE_LIST)) {
+            return null;
+        }
+        List<FileInfo> files = response.getFileList();
+        // Tracker bản cũ bỏ qua limit và trả về tất cả (totalResults = 0)
+        int total = response.getTotalResults() > 0 ? response.getTotalResults()
+                : (files != null ? files.size() : 0);
+        return new SearchPage(files, total, response.getCursor(), response.getPageToken());
+    }
+
+    /**
+     * Lấy danh sách đầy đủ các peer đang chia sẻ file (kèm danh sách chunk của từng peer)
+     */
+    public List<FileInfo> getFileSources(String fileHash) {
+        try {
+            Message msg = new Message(Message.Type.GET_FILE_SOURCES, fileHash);
+            msg.setPeerPort(localPort);
+
+            Message response = sendToTracker(msg);
+            if (response != null && response.getType() == Message.Type.FILE_SOURCES
+                    && response.getFileList() != null) {
+                return response.getFileList();
+            }
+        } catch (Exception e) {
+            System.err.println("[PeerClient] Lỗi lấy danh sách nguồn: " + e.getMessage());
+        }
+        return new ArrayList<>();
+    }
+
     /**
      * Lấy danh sách tất cả files
      */
@@ -205,14 +350,9 @@ public class PeerClient {
      * Gửi message đến Tracker và nhận response
      */
     private Message sendToTracker(Message msg) {
-        try (Socket socket = new Socket(trackerHost, trackerPort);
-                ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream());
-                ObjectInputStream in = new ObjectInputStream(socket.getInputStream())) {
-
-            out.writeObject(msg);
-            out.flush();
-
-            return (Message) in.readObject();
+        try (MessageChannel channel = MessageChannel.connect(trackerHost, trackerPort, CONNECT_TIMEOUT)) {
+            channel.send(msg);
+            return channel.receive();
         } catch (Exception e) {
             System.err.println("[PeerClient] Lỗi kết nối Tracker: " + e.getMessage());
             return null;
@@ -227,6 +367,9 @@ public class PeerClient {
 
     /**
      * Tải file từ một Peer khác
+     * - Mỗi FILE_DATA được ghi thẳng vào file tạm (cấp sẵn đủ dung lượng) và cập nhật MD5
+     *   ngay khi nhận, bộ nhớ dùng không phụ thuộc kích thước file
+     * - Hash khớp mới đổi tên file tạm thành file đích, sai thì xóa file tạm
      */
     public boolean downloadFile(FileInfo fileInfo, String savePath) {
         String fileName = fileInfo.getFileName();
@@ -239,26 +382,25 @@ public class PeerClient {
             callback.onDownloadStarted(fileName, peerIP + ":" + peerPort);
         }
 
-        Socket socket = null;
-        ObjectOutputStream out = null;
-        ObjectInputStream in = null;
+        MessageChannel channel = null;
+        FileChannel out = null;
+        File targetFile = fileManager.getTargetFile(fileName, savePath).getAbsoluteFile();
+        // File tạm cùng thư mục với file đích để đổi tên được (và GUI xóa được khi hủy)
+        File tempFile = new File(targetFile.getParentFile(), fileName + ".tmp");
+        boolean completed = false;
 
         try {
-            socket = new Socket(peerIP, peerPort);
-            socket.setSoTimeout(60000); // Timeout 60 giây
-
-            out = new ObjectOutputStream(socket.getOutputStream());
-            in = new ObjectInputStream(socket.getInputStream());
+            channel = MessageChannel.connect(peerIP, peerPort, CONNECT_TIMEOUT);
+            channel.getSocket().setSoTimeout(60000); // Timeout 60 giây
 
             // Gửi yêu cầu tải file
             Message request = new Message(Message.Type.REQUEST_FILE, fileName);
-            out.writeObject(request);
-            out.flush();
+            channel.send(request);
 
-            // Nhận file theo chunks
-            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            // Nhận file theo chunks, ghi thẳng xuống đĩa
+            MessageDigest digest = MessageDigest.getInstance(ChunkManifest.ALGORITHM);
             long totalReceived = 0;
-            long fileSize = 0;
+            long fileSize = fileInfo.getFileSize();
 
             // Speed calculation variables
             long lastTime = System.currentTimeMillis();
@@ -267,7 +409,7 @@ public class PeerClient {
             int lastLogPercent = -1; // Avoid duplicate logging
 
             while (true) {
-                Message response = (Message) in.readObject();
+                Message response = channel.receive();
 
                 if (response.getType() == Message.Type.FILE_NOT_FOUND) {
                     System.err.println("[PeerClient] " + response.getContent());
@@ -283,8 +425,22 @@ public class PeerClient {
 
                 if (response.getType() == Message.Type.FILE_DATA) {
                     byte[] chunk = response.getData();
-                    fileSize = response.getFileSize();
-                    baos.write(chunk);
+                    if (out == null) {
+                        // Chunk đầu tiên: biết kích thước thật, cấp sẵn file tạm
+                        fileSize = response.getFileSize();
+                        out = openTempFile(tempFile, fileSize);
+                    }
+                    if (response.getOffset() != totalReceived) {
+                        throw new IOException("Dữ liệu đến sai thứ tự (offset " + response.getOffset()
+                                + ", mong đợi " + totalReceived + ")");
+                    }
+
+                    ByteBuffer buffer = ByteBuffer.wrap(chunk);
+                    long position = totalReceived;
+                    while (buffer.hasRemaining()) {
+                        position += out.write(buffer, position);
+                    }
+                    digest.update(chunk);
                     totalReceived += chunk.length;
 
                     // Calculate speed
@@ -296,7 +452,7 @@ public class PeerClient {
                         lastBytes = totalReceived;
                     }
 
-                    int percent = (int) ((totalReceived * 100) / fileSize);
+                    int percent = fileSize > 0 ? (int) ((totalReceived * 100) / fileSize) : 100;
                     if (callback != null) {
                         callback.onDownloadProgress(fileName, percent, totalReceived, fileSize, currentSpeed);
                     }
@@ -312,12 +468,33 @@ public class PeerClient {
 
             System.out.println(
                     "[PeerClient] Download finished. Total received: " + totalReceived + " / Expected: " + fileSize);
+            if (out == null) {
+                out = openTempFile(tempFile, 0); // File rỗng: peer không gửi FILE_DATA nào
+            }
+            out.close();
+            out = null;
+
+            String receivedHash = toHex(digest.digest());
+            String error = null;
             if (totalReceived != fileSize) {
-                System.err.println("[PeerClient] WARNING: File size mismatch! Hash will likely fail.");
+                error = "Sai kích thước file (" + totalReceived + "/" + fileSize + " bytes)";
+            } else if (fileInfo.getFileHash() != null && !fileInfo.getFileHash().equalsIgnoreCase(receivedHash)) {
+                error = "Sai hash file (nhận " + receivedHash + ", mong đợi " + fileInfo.getFileHash() + ")";
+            }
+            if (error != null) {
+                System.err.println("[PeerClient] " + fileName + ": " + error);
+                if (callback != null) {
+                    callback.onDownloadFailed(fileName, error);
+                }
+                return false;
             }
 
-            // Lưu file
-            fileManager.saveFile(fileName, baos.toByteArray(), savePath);
+            // Lưu file: đổi tên file tạm thành file đích
+            fileManager.moveIntoPlace(tempFile, targetFile);
+            completed = true;
+            System.out.println("[PeerClient] Đã lưu file: " + targetFile.getAbsolutePath());
+            fileManager.recordHash(targetFile, receivedHash);
+            fileManager.finalizeDownload(fileName, savePath);
 
             System.out.println("[PeerClient] Hoàn thành tải file: " + fileName);
             if (callback != null) {
@@ -375,18 +552,49 @@ public class PeerClient {
             }
             return false;
         } finally {
-            try {
-                if (in != null)
-                    in.close();
-                if (out != null)
+            if (channel != null)
+                channel.close();
+            if (out != null) {
+                try {
                     out.close();
-                if (socket != null)
-                    socket.close();
-            } catch (IOException e) {
+                } catch (IOException e) {
+                }
+            }
+            if (!completed && tempFile.exists()) {
+                tempFile.delete();
             }
         }
     }
 
+    /**
+     * Mở file tạm và cấp sẵn đủ dung lượng (báo lỗi sớm nếu ổ đĩa không đủ chỗ)
+     */
+    private static FileChannel openTempFile(File tempFile, long fileSize) throws IOException {
+        File parent = tempFile.getParentFile();
+        if (!parent.exists()) {
+            parent.mkdirs();
+        }
+        if (fileSize > parent.getUsableSpace()) {
+            throw new IOException("Không đủ dung lượng đĩa (cần " + fileSize + " bytes)");
+        }
+        RandomAccessFile raf = new RandomAccessFile(tempFile, "rw");
+        try {
+            raf.setLength(fileSize);
+        } catch (IOException e) {
+            raf.close();
+            throw e;
+        }
+        return raf.getChannel(); // Đóng channel là đóng luôn raf
+    }
+
+    private static String toHex(byte[] digest) {
+        StringBuilder sb = new StringBuilder();
+        for (byte b : digest) {
+            sb.append(String.format("%02x", b));
+        }
+        return sb.toString();
+    }
+
     /**
      * Tải file từ nhiều nguồn (nếu có)
      */
@@ -0,0 +1,211 @@
+package peer;
+
+import protocol.Message;
+import protocol.MessageChannel;
+import java.io.*;
+
+/**
+ * Kết nối lâu dài tới một peer nguồn (session mode)
+ * - Một socket phục vụ nhiều REQUEST_CHUNK thay vì mở socket mới cho mỗi chunk
+ * - Mỗi request có requestId để ghép đúng response
+ * - Hỗ trợ pipelining: gửi nhiều request trước khi nhận response
+ * - Tự động fallback về chế độ một-request-một-kết-nối nếu peer nguồn là bản cũ
+ */
+public class PeerConnection implements Closeable {
+    private static final int CONNECT_TIMEOUT = 10000;
+    private static final int SO_TIMEOUT = 30000;
+
+    private final String host;
+    private final int port;
+
+    private MessageChannel channel;
+
+    private boolean sessionMode; // false = peer cũ, mỗi chunk một kết nối
+    private int nextRequestId = 1;
+
+    private PeerConnection(String host, int port) {
+        this.host = host;
+        this.port = port;
+    }
+
+    /**
+     * Mở kết nối tới peer và thử đàm phán session mode
+     */
+    public static PeerConnection open(String host, int port) throws IOException {
+        PeerConnection conn = new PeerConnection(host, port);
+        conn.startSession();
+        return conn;
+    }
+
+    private void startSession() throws IOException {
+        connect();
+        try {
+            channel.send(new Message(Message.Type.SESSION_START));
+
+            Message response = channel.receive();
+            if (response.getType() == Message.Type.SESSION_OK) {
+                sessionMode = true;
+                return;
+            }
+        } catch (EOFException e) {
+            // Peer cũ không hiểu SESSION_START và đóng kết nối
+        }
+
+        closeSocket();
+        sessionMode = false;
+        System.out.println("[PeerConnection] " + host + ":" + port
+                + " không hỗ trợ session, dùng chế độ một kết nối mỗi chunk");
+    }
+
+    private void connect() throws IOException {
+        channel = MessageChannel.connect(host, port, CONNECT_TIMEOUT);
+        channel.getSocket().setSoTimeout(SO_TIMEOUT);
+        channel.getSocket().setTcpNoDelay(true);
+    }
+
+    /**
+     * Tải một chunk qua kết nối hiện tại
+     *
+     * @return dữ liệu chunk, hoặc null nếu peer từ chối (FILE_NOT_FOUND)
+     */
+    public byte[] requestChunk(String fileName, int chunkIndex, long offset, int chunkSize) throws IOException {
+        if (!sessionMode) {
+            return requestChunkOneShot(fileName, chunkIndex, offset, chunkSize);
+        }
+
+        int requestId = nextRequestId++;
+        Message request = buildChunkRequest(fileName, chunkIndex, offset, chunkSize);
+        request.setRequestId(requestId);
+        writeRequest(request);
+
+        Message response = readResponse();
+        if (response.getRequestId() != requestId) {
+            throw new IOException("Sai requestId: chờ " + requestId + " nhưng nhận " + response.getRequestId());
+        }
+        return extractChunk(response);
+    }
+
+    /**
+     * Gửi REQUEST_CHUNK mà không chờ response (pipelining, chỉ dùng trong session mode)
+     *
+     * @return requestId để ghép với response nhận được qua {@link #receiveChunk()}
+     */
+    public int sendChunkRequest(String fileName, int chunkIndex, long offset, int chunkSize) throws IOException {
+        if (!sessionMode) {
+            throw new IllegalStateException("Pipelining chỉ hỗ trợ trong session mode");
+        }
+        int requestId = nextRequestId++;
+        Message request = buildChunkRequest(fileName, chunkIndex, offset, chunkSize);
+        request.setRequestId(requestId);
+        writeRequest(request);
+        return requestId;
+    }
+
+    /**
+     * Nhận response tiếp theo cho một request đã gửi bằng {@link #sendChunkRequest}
+     */
+    public ChunkResponse receiveChunk() throws IOException {
+        Message response = readResponse();
+        return new ChunkResponse(response.getRequestId(), extractChunk(response));
+    }
+
+    /**
+     * Xin manifest hash các chunk trên một kết nối riêng (peer bản cũ không hiểu
+     * REQUEST_MANIFEST sẽ đóng kết nối - khi đó trả về null và tải không kiểm tra)
+     */
+    public static ChunkManifest requestManifest(String host, int port, String fileName, long fileSize,
+            int chunkSize) {
+        try (MessageChannel channel = MessageChannel.connect(host, port, CONNECT_TIMEOUT)) {
+            channel.getSocket().setSoTimeout(SO_TIMEOUT);
+            Message request = new Message(Message.Type.REQUEST_MANIFEST, fileName);
+            request.setChunkSize(chunkSize);
+            channel.send(request);
+            Message response = channel.receive();
+            if (response.getType() != Message.Type.MANIFEST)
+                return null;
+            return ChunkManifest.fromBytes(response.getData(), response.getChunkSize(), fileSize);
+        } catch (Exception e) {
+            System.out.println("[PeerConnection] " + host + ":" + port + " không gửi được manifest: " + e.getMessage());
+            return null;
+        }
+    }
+
+    private byte[] requestChunkOneShot(String fileName, int chunkIndex, long offset, int chunkSize)
+            throws IOException {
+        connect();
+        try {
+            channel.send(buildChunkRequest(fileName, chunkIndex, offset, chunkSize));
+            return extractChunk(channel.receive());
+        } finally {
+            closeSocket();
+        }
+    }
+
+    private Message buildChunkRequest(String fileName, int chunkIndex, long offset, int chunkSize) {
+        Message request = new Message(Message.Type.REQUEST_CHUNK);
+        request.setContent(fileName);
+        request.setChunkIndex(chunkIndex);
+        request.setOffset(offset);
+        request.setChunkSize(chunkSize);
+        return request;
+    }
+
+    private void writeRequest(Message request) throws IOException {
+        channel.send(request);
+    }
+
+    private Message readResponse() throws IOException {
+        return channel.receive();
+    }
+
+    private byte[] extractChunk(Message response) {
+        if (response.getType() == Message.Type.CHUNK_DATA) {
+            return response.getData();
+        }
+        return null;
+    }
+
+    /**
+     * Response của một REQUEST_CHUNK đã pipeline
+     */
+    public static class ChunkResponse {
+        public final int requestId;
+        public final byte[] data; // null nếu peer từ chối
+
+        ChunkResponse(int requestId, byte[] data) {
+            this.requestId = requestId;
+            this.data = data;
+        }
+    }
+
+    public boolean isSessionMode() {
+        return sessionMode;
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    @Override
+    public void close() {
+        if (sessionMode && channel != null) {
+            try {
+                channel.send(new Message(Message.Type.SESSION_END));
+            } catch (IOException e) {
+                // Kết nối đã hỏng, bỏ qua
+            }
+        }
+        closeSocket();
+    }
+
+    private void closeSocket() {
+        if (channel != null) {
+            channel.close();
+            channel = null;
+        }
+    }
+}
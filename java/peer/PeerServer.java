@@ -1,20 +1,44 @@
 package peer;
 
 import protocol.Message;
+import protocol.MessageChannel;
+import tracker.FileInfo;
 import java.io.*;
 import java.net.*;
-import java.util.Arrays;
+import java.nio.channels.*;
+import java.util.*;
 import java.util.concurrent.*;
 
 /**
  * Server của mỗi Peer - Phục vụ yêu cầu tải file từ các peer khác
+ *
+ * Mô hình event-driven:
+ * - Một selector thread nhận kết nối, đọc và tách request (giao thức nhị phân)
+ * - Worker pool có giới hạn làm phần blocking (kiểm tra quyền, mở file) và gửi
+ *   chunk bằng transferTo; mỗi kết nối chỉ chạy trên tối đa một worker tại một thời điểm
+ * - Client dùng Java serialization (bản cũ) được chuyển sang pool blocking riêng
  */
 public class PeerServer implements Runnable {
+    static final int SESSION_IDLE_TIMEOUT = 60000; // Đóng phiên nếu peer im lặng quá 60s
+    private static final int DEFAULT_MAX_CONNECTIONS = 4096;
+    private static final int DEFAULT_MAX_CONCURRENT_UPLOADS = Math.max(4,
+            Runtime.getRuntime().availableProcessors() * 2);
+    private static final int SELECT_TIMEOUT = 1000;
+
     private int port;
-    private ServerSocket serverSocket;
+    private ServerSocketChannel serverSocket;
+    private Selector selector;
     private FileManager fileManager;
-    private boolean running;
-    private ExecutorService executor;
+    private volatile boolean running;
+
+    // Giới hạn cấu hình được (set trước khi run)
+    private int maxConnections = DEFAULT_MAX_CONNECTIONS;
+    private int maxConcurrentUploads = DEFAULT_MAX_CONCURRENT_UPLOADS;
+
+    private ExecutorService uploadWorkers; // Đọc đĩa + gửi chunk cho kết nối NIO
+    private ExecutorService legacyExecutor; // Handler blocking cho client Java serialization
+    private final Set<UploadConnection> connections = ConcurrentHashMap.newKeySet();
+    private final Set<Socket> legacyConnections = ConcurrentHashMap.newKeySet();
 
     // Callback để thông báo UI
     private TransferCallback callback;
@@ -30,47 +54,207 @@ public class PeerServer implements Runnable {
     }
 
     private String peerID; // ID của peer hiện tại (để check quyền)
+    private final MissingFileCleaner missingFiles; // Báo Tracker gỡ file không còn, ở nền
+    private volatile Unpublisher unpublisher; // null = chưa gắn Tracker, bỏ qua lazy cleanup
 
     public PeerServer(int port, String peerID, FileManager fileManager) {
         this.port = port;
         this.peerID = peerID;
         this.fileManager = fileManager;
-        this.executor = Executors.newCachedThreadPool();
+        this.missingFiles = new MissingFileCleaner(fileNames -> {
+            Unpublisher target = unpublisher;
+            return target != null && target.unpublish(fileNames);
+        });
+    }
+
+    /**
+     * Gỡ một lô file của peer này khỏi Tracker (PeerClient.unpublishFiles)
+     *
+     * @return true nếu Tracker đã nhận
+     */
+    public interface Unpublisher {
+        boolean unpublish(List<String> fileNames);
     }
 
     public void setCallback(TransferCallback callback) {
         this.callback = callback;
     }
 
+    /**
+     * Nơi báo các file peer không còn giữ (lazy cleanup đi qua Tracker, không ghi thẳng DB)
+     */
+    public void setUnpublisher(Unpublisher unpublisher) {
+        this.unpublisher = unpublisher;
+    }
+
+    /**
+     * Số kết nối tối đa (cả NIO và bản cũ); kết nối vượt quá bị đóng ngay
+     */
+    public void setMaxConnections(int maxConnections) {
+        this.maxConnections = Math.max(1, maxConnections);
+    }
+
+    /**
+     * Số upload được xử lý đồng thời (kích thước worker pool)
+     */
+    public void setMaxConcurrentUploads(int maxConcurrentUploads) {
+        this.maxConcurrentUploads = Math.max(1, maxConcurrentUploads);
+    }
+
     @Override
     public void run() {
         try {
-            serverSocket = new ServerSocket(port);
+            selector = Selector.open();
+            serverSocket = ServerSocketChannel.open();
+            serverSocket.bind(new InetSocketAddress(port), 1024);
+            serverSocket.configureBlocking(false);
+            serverSocket.register(selector, SelectionKey.OP_ACCEPT);
+
+            uploadWorkers = newBoundedPool("upload", maxConcurrentUploads);
+            legacyExecutor = newBoundedPool("upload-legacy", maxConcurrentUploads);
             running = true;
-            System.out.println("[PeerServer] Đang lắng nghe trên port " + port);
+            System.out.println("[PeerServer] Đang lắng nghe trên port " + port + " (tối đa " + maxConnections
+                    + " kết nối, " + maxConcurrentUploads + " upload đồng thời)");
+
+            long lastIdleCheck = System.currentTimeMillis();
+            List<UploadConnection> handoffs = new ArrayList<>();
 
             while (running) {
-                try {
-                    Socket clientSocket = serverSocket.accept();
-                    executor.execute(new FileUploadHandler(clientSocket));
-                } catch (SocketException e) {
-                    if (running) {
-                        System.err.println("[PeerServer] Socket error: " + e.getMessage());
+                selector.select(SELECT_TIMEOUT);
+
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    try {
+                        if (!key.isValid())
+                            continue;
+                        if (key.isAcceptable()) {
+                            acceptConnection();
+                        } else {
+                            UploadConnection conn = (UploadConnection) key.attachment();
+                            if (key.isWritable()) {
+                                conn.onWritable();
+                            }
+                            if (key.isValid() && key.isReadable()) {
+                                if (conn.onReadable() == UploadConnection.ReadResult.LEGACY) {
+                                    handoffs.add(conn);
+                                }
+                            }
+                        }
+                    } catch (CancelledKeyException e) {
+                        // Kết nối đã bị đóng bởi worker
                     }
                 }
+
+                if (!handoffs.isEmpty()) {
+                    handOffLegacy(handoffs);
+                    handoffs.clear();
+                }
+
+                long now = System.currentTimeMillis();
+                if (now - lastIdleCheck >= SELECT_TIMEOUT) {
+                    closeIdleConnections(now);
+                    lastIdleCheck = now;
+                }
             }
+        } catch (ClosedSelectorException e) {
+            // stop() đã đóng selector
         } catch (IOException e) {
             System.err.println("[PeerServer] Không thể khởi động server: " + e.getMessage());
         }
     }
 
+    private void acceptConnection() throws IOException {
+        SocketChannel client;
+        while ((client = serverSocket.accept()) != null) {
+            if (connections.size() + legacyConnections.size() >= maxConnections) {
+                System.err.println("[PeerServer] Từ chối kết nối từ " + client.socket().getInetAddress()
+                        + ": đã đạt giới hạn " + maxConnections + " kết nối");
+                client.close();
+                continue;
+            }
+            client.configureBlocking(false);
+            client.socket().setTcpNoDelay(true);
+            SelectionKey key = client.register(selector, SelectionKey.OP_READ);
+            UploadConnection conn = new UploadConnection(this, client, key);
+            key.attach(conn);
+            connections.add(conn);
+        }
+    }
+
+    /**
+     * Chuyển các kết nối Java serialization sang handler blocking
+     * (phải hủy key và flush selector trước khi đổi channel về chế độ blocking)
+     */
+    private void handOffLegacy(List<UploadConnection> handoffs) throws IOException {
+        for (UploadConnection conn : handoffs) {
+            conn.getKey().cancel();
+        }
+        selector.selectNow();
+
+        for (UploadConnection conn : handoffs) {
+            connections.remove(conn);
+            SocketChannel channel = conn.getChannel();
+            try {
+                channel.configureBlocking(true);
+                Socket socket = channel.socket();
+                legacyConnections.add(socket);
+                legacyExecutor.execute(new FileUploadHandler(socket, conn.drainPrefetched()));
+            } catch (IOException | RejectedExecutionException e) {
+                conn.close();
+            }
+        }
+    }
+
+    private void closeIdleConnections(long now) {
+        for (UploadConnection conn : connections) {
+            if (conn.isIdleSince(now - SESSION_IDLE_TIMEOUT)) {
+                conn.close();
+            }
+        }
+    }
+
+    private static ExecutorService newBoundedPool(String name, int size) {
+        ThreadFactory factory = new ThreadFactory() {
+            private int count = 0;
+
+            @Override
+            public synchronized Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "peer-" + name + "-" + (++count));
+                t.setDaemon(true);
+                return t;
+            }
+        };
+        return new ThreadPoolExecutor(size, size, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), factory);
+    }
+
     public void stop() {
         running = false;
         try {
-            if (serverSocket != null && !serverSocket.isClosed()) {
+            if (selector != null) {
+                selector.wakeup();
+            }
+            if (serverSocket != null && serverSocket.isOpen()) {
                 serverSocket.close();
             }
-            executor.shutdownNow();
+            for (UploadConnection conn : connections) {
+                conn.close();
+            }
+            for (Socket socket : legacyConnections) {
+                socket.close();
+            }
+            if (uploadWorkers != null)
+                uploadWorkers.shutdownNow();
+            if (legacyExecutor != null)
+                legacyExecutor.shutdownNow();
+            if (selector != null) {
+                selector.close();
+            }
+            missingFiles.close();
+            // Handle còn được mượn (upload cũ đang kết thúc) sẽ tự đóng khi trả lại
+            fileManager.getHandleCache().invalidateAll();
+            System.out.println("[PeerServer] Đóng file cache: " + fileManager.getHandleCache());
         } catch (IOException e) {
             e.printStackTrace();
         }
@@ -84,33 +268,198 @@ public class PeerServer implements Runnable {
         return running;
     }
 
+    public int getConnectionCount() {
+        return connections.size() + legacyConnections.size();
+    }
+
+    // ==================== DÙNG CHUNG CHO NIO VÀ HANDLER CŨ ====================
+
+    FileManager getFileManager() {
+        return fileManager;
+    }
+
+    TransferCallback getCallback() {
+        return callback;
+    }
+
+    ExecutorService getUploadWorkers() {
+        return uploadWorkers;
+    }
+
+    void onConnectionClosed(UploadConnection conn) {
+        connections.remove(conn);
+    }
+
+    /**
+     * Kiểm tra file có được phép phục vụ không
+     *
+     * @return message từ chối (FILE_NOT_FOUND) hoặc null nếu được phép
+     */
+    Message checkAccess(String fileName, int requestId) {
+        if (!fileManager.hasFile(fileName)) {
+            Message response = new Message(Message.Type.FILE_NOT_FOUND);
+            response.setContent("File không tồn tại: " + fileName);
+            response.setRequestId(requestId);
+            System.out.println("[PeerServer] File không tìm thấy: " + fileName);
+
+            // ⭐ LAZY CLEANUP: Nếu file không tồn tại thực tế nhưng Tracker/DB vẫn còn -> báo Tracker gỡ
+            // (gom lô ở nền, không chặn thread upload)
+            if (fileName != null) {
+                fileManager.getShareVisibility().forget(fileName);
+                missingFiles.report(fileName);
+            }
+            return response;
+        }
+
+        // ⭐ KIỂM TRA QUYỀN TRUY CẬP (Is Shared?)
+        boolean isShared = fileManager.getShareVisibility().isShared(peerID, fileName);
+        if (!isShared) {
+            System.out.println("[PeerServer] TỪ CHỐI gửi " + fileName + " (đang ẩn)");
+            Message response = new Message(Message.Type.FILE_NOT_FOUND);
+            // Dùng FILE_NOT_FOUND hoặc ERROR tùy logic, ở đây giả vờ không thấy để bảo mật
+            response.setContent("File không tồn tại hoặc đã bị ẩn: " + fileName);
+            response.setRequestId(requestId);
+            return response;
+        }
+        return null;
+    }
+
     /**
-     * Handler xử lý yêu cầu tải file
+     * Chuẩn bị trả lời một REQUEST_CHUNK: header CHUNK_DATA + vùng file cần gửi,
+     * hoặc message từ chối
+     */
+    PreparedChunk prepareChunk(Message request) {
+        String fileName = request.getContent();
+        int chunkIndex = request.getChunkIndex();
+        long offset = request.getOffset();
+        int chunkSize = request.getChunkSize();
+
+        Message rejection = checkAccess(fileName, request.getRequestId());
+        if (rejection != null) {
+            return new PreparedChunk(rejection);
+        }
+
+        FileHandleCache.Handle file;
+        long fileSize;
+        try {
+            file = fileManager.acquireFile(fileName);
+            fileSize = file.channel().size();
+        } catch (IOException e) {
+            return new PreparedChunk(rejectChunk(request, "Lỗi đọc chunk: " + e.getMessage()));
+        }
+
+        if (offset < 0 || offset >= fileSize || !FileInfo.isValidChunkSize(chunkSize)) {
+            file.close();
+            return new PreparedChunk(rejectChunk(request, "Không thể đọc chunk: " + chunkIndex));
+        }
+
+        // Chỉ header đi qua lớp protocol, payload chuyển thẳng file -> socket (sendfile)
+        int length = (int) Math.min(chunkSize, fileSize - offset);
+        Message response = new Message(Message.Type.CHUNK_DATA);
+        response.setContent(fileName);
+        response.setChunkIndex(chunkIndex);
+        response.setOffset(offset);
+        response.setRequestId(request.getRequestId());
+        return new PreparedChunk(response, file, offset, length);
+    }
+
+    /**
+     * Trả lời REQUEST_MANIFEST: hash của từng chunk để peer tải kiểm tra dữ liệu nhận được
+     */
+    Message prepareManifest(Message request) {
+        String fileName = request.getContent();
+        Message rejection = checkAccess(fileName, request.getRequestId());
+        if (rejection != null) {
+            return rejection;
+        }
+
+        // Peer tải chưa gửi kích thước chunk là bản chia cố định 64KB
+        int chunkSize = FileInfo.isValidChunkSize(request.getChunkSize()) ? request.getChunkSize()
+                : FileInfo.DEFAULT_CHUNK_SIZE;
+        ChunkManifest manifest = fileManager.getManifest(fileName, chunkSize);
+        if (manifest == null) {
+            // Đang tính ở nền - peer tải coi như không có manifest (vẫn đối chiếu MD5 cả file)
+            return rejectChunk(request, "Manifest chưa sẵn sàng: " + fileName);
+        }
+
+        Message response = new Message(Message.Type.MANIFEST);
+        response.setContent(fileName);
+        response.setChunkSize(manifest.getChunkSize());
+        response.setFileSize(manifest.getFileSize());
+        response.setData(manifest.toBytes());
+        response.setRequestId(request.getRequestId());
+        return response;
+    }
+
+    private static Message rejectChunk(Message request, String reason) {
+        Message response = new Message(Message.Type.FILE_NOT_FOUND);
+        response.setContent(reason);
+        response.setRequestId(request.getRequestId());
+        return response;
+    }
+
+    static void closeQuietly(Closeable c) {
+        try {
+            if (c != null)
+                c.close();
+        } catch (IOException e) {
+        }
+    }
+
+    /**
+     * Kết quả chuẩn bị một chunk: hoặc message từ chối, hoặc header + vùng file
+     * (handle mượn từ cache của FileManager - close() sau khi gửi xong)
+     */
+    static class PreparedChunk {
+        final Message response;
+        final FileHandleCache.Handle file; // null nếu bị từ chối
+        final long position;
+        final int length;
+
+        PreparedChunk(Message rejection) {
+            this(rejection, null, 0, 0);
+        }
+
+        PreparedChunk(Message response, FileHandleCache.Handle file, long position, int length) {
+            this.response = response;
+            this.file = file;
+            this.position = position;
+            this.length = length;
+        }
+    }
+
+    /**
+     * Handler blocking cho client dùng Java serialization (bản cũ)
      */
     private class FileUploadHandler implements Runnable {
         private Socket socket;
+        private byte[] prefetched; // Các byte selector đã đọc trước khi nhận ra giao thức cũ
 
-        public FileUploadHandler(Socket socket) {
+        public FileUploadHandler(Socket socket, byte[] prefetched) {
             this.socket = socket;
+            this.prefetched = prefetched;
         }
 
         @Override
         public void run() {
-            ObjectOutputStream out = null;
-            ObjectInputStream in = null;
+            MessageChannel channel = null;
             String clientInfo = socket.getInetAddress().getHostAddress();
 
             try {
-                out = new ObjectOutputStream(socket.getOutputStream());
-                in = new ObjectInputStream(socket.getInputStream());
+                socket.setSoTimeout(SESSION_IDLE_TIMEOUT);
+                channel = MessageChannel.accept(socket, prefetched);
 
-                Message request = (Message) in.readObject();
+                Message request = channel.receive();
                 System.out.println("[PeerServer] Nhận yêu cầu từ " + clientInfo + ": " + request.getType());
 
-                if (request.getType() == Message.Type.REQUEST_FILE) {
-                    handleFileRequest(request, out, clientInfo);
+                if (request.getType() == Message.Type.SESSION_START) {
+                    handleSession(channel, clientInfo);
+                } else if (request.getType() == Message.Type.REQUEST_FILE) {
+                    handleFileRequest(request, channel, clientInfo);
                 } else if (request.getType() == Message.Type.REQUEST_CHUNK) {
-                    handleChunkRequest(request, out, clientInfo);
+                    handleChunkRequest(request, channel, clientInfo);
+                } else if (request.getType() == Message.Type.REQUEST_MANIFEST) {
+                    channel.send(prepareManifest(request));
                 }
 
             } catch (Exception e) {
@@ -119,106 +468,81 @@ public class PeerServer implements Runnable {
                     callback.onUploadFailed("unknown", e.getMessage());
                 }
             } finally {
-                closeConnection(in, out, socket);
+                legacyConnections.remove(socket);
+                closeConnection(channel, socket);
             }
         }
 
-        private void handleFileRequest(Message request, ObjectOutputStream out, String clientInfo)
-                throws IOException {
-            String fileName = request.getContent();
+        /**
+         * Phiên kết nối lâu dài: phục vụ nhiều REQUEST_CHUNK trên cùng một socket
+         * cho tới khi nhận SESSION_END, peer đóng kết nối hoặc hết thời gian chờ
+         */
+        private void handleSession(MessageChannel channel, String clientInfo) throws IOException {
+            channel.send(new Message(Message.Type.SESSION_OK));
 
-            if (!fileManager.hasFile(fileName)) {
-                // File không tồn tại
-                Message response = new Message(Message.Type.FILE_NOT_FOUND);
-                response.setContent("File không tồn tại: " + fileName);
-                out.writeObject(response);
-                System.out.println("[PeerServer] File không tìm thấy: " + fileName);
-
-                // ⭐ LAZY CLEANUP: Nếu file không tồn tại thực tế nhưng DB vẫn còn -> Xóa khỏi
-                // DB peer_files
-                database.DatabaseManager.getInstance().unlinkPeerFromFile(peerID, fileName);
-                System.out.println("[PeerServer] Lazy Cleanup: Đã gỡ file khỏi DB: " + fileName);
-                return;
+            int served = 0;
+            while (running) {
+                Message request;
+                try {
+                    request = channel.receive();
+                } catch (EOFException | SocketTimeoutException e) {
+                    break; // Peer đóng kết nối hoặc im lặng quá lâu
+                }
+
+                if (request.getType() == Message.Type.SESSION_END) {
+                    break;
+                } else if (request.getType() == Message.Type.REQUEST_CHUNK) {
+                    handleChunkRequest(request, channel, clientInfo);
+                    served++;
+                } else if (request.getType() == Message.Type.REQUEST_MANIFEST) {
+                    channel.send(prepareManifest(request));
+                } else {
+                    Message response = new Message(Message.Type.ERROR, "Không hỗ trợ trong phiên: " + request.getType());
+                    response.setRequestId(request.getRequestId());
+                    channel.send(response);
+                }
             }
 
-            // ⭐ KIỂM TRA QUYỀN TRUY CẬP (Is Shared?)
-            boolean isShared = database.DatabaseManager.getInstance().getShareStatus(peerID, fileName);
-            if (!isShared) {
-                System.out.println("[PeerServer] TỪ CHỐI tải file " + fileName + " (đang ẩn)");
-                Message response = new Message(Message.Type.FILE_NOT_FOUND);
-                // Dùng FILE_NOT_FOUND hoặc ERROR tùy logic, ở đây giả vờ không thấy để bảo mật
-                response.setContent("File không tồn tại hoặc đã bị ẩn: " + fileName);
-                out.writeObject(response);
+            System.out.println("[PeerServer] Đóng phiên với " + clientInfo + " sau " + served + " chunks");
+        }
+
+        private void handleFileRequest(Message request, MessageChannel channel, String clientInfo)
+                throws IOException {
+            String fileName = request.getContent();
+
+            Message rejection = checkAccess(fileName, 0);
+            if (rejection != null) {
+                channel.send(rejection);
                 return;
             }
 
-            // Thông báo bắt đầu upload
-
             // Thông báo bắt đầu upload
             if (callback != null) {
                 callback.onUploadStarted(fileName, clientInfo);
             }
 
-            File file = fileManager.getFile(fileName);
-            long fileSize = file.length();
+            try (FileHandleCache.Handle handle = fileManager.acquireFile(fileName)) {
+                FileChannel file = handle.channel();
+                long fileSize = file.size();
 
-            System.out.println("[PeerServer] Bắt đầu gửi file: " + fileName + " (" + fileSize + " bytes)");
+                System.out.println("[PeerServer] Bắt đầu gửi file: " + fileName + " (" + fileSize + " bytes)");
 
-            // Gửi file theo chunks để hỗ trợ file lớn
-            int chunkSize = 64 * 1024; // 64KB per chunk
-            long offset = 0;
-            int chunkNumber = 0;
-            int totalChunks = (int) Math.ceil((double) fileSize / chunkSize);
-
-            try (FileInputStream fis = new FileInputStream(file)) {
+                // Gửi file theo chunks để hỗ trợ file lớn - payload đi thẳng từ file xuống socket
+                long offset = 0;
                 while (offset < fileSize) {
-                    int currentChunkSize = (int) Math.min(chunkSize, fileSize - offset);
-                    byte[] chunk = new byte[currentChunkSize];
-                    // Ensure we read the full chunk (read(byte[]) acts like read(byte[], 0, len)
-                    // but doesn't guarantee full read)
-                    int totalBytesRead = 0;
-                    while (totalBytesRead < currentChunkSize) {
-                        int count = fis.read(chunk, totalBytesRead, currentChunkSize - totalBytesRead);
-                        if (count == -1)
-                            break; // EOF check
-                        totalBytesRead += count;
-                    }
-
-                    if (totalBytesRead < currentChunkSize) {
-                        // Should rare happen if file size didn't change, but if it does, resize
-                        chunk = Arrays.copyOf(chunk, totalBytesRead);
-                    }
-
-                    Message dataMsg = new Message(Message.Type.FILE_DATA);
-                    dataMsg.setContent(fileName);
-                    dataMsg.setData(chunk);
-                    dataMsg.setOffset(offset);
-                    dataMsg.setFileSize(fileSize);
-
-                    out.writeObject(dataMsg);
-                    out.flush();
-                    out.reset(); // Quan trọng: reset cache để tránh memory leak
-
+                    int currentChunkSize = (int) Math.min(FileInfo.chooseChunkSize(fileSize), fileSize - offset);
+                    channel.sendFileRegion(UploadConnection.fileDataHeader(fileName, offset, fileSize),
+                            file, offset, currentChunkSize);
+                    UploadConnection.reportFileProgress(callback, fileName, offset, offset + currentChunkSize,
+                            fileSize);
                     offset += currentChunkSize;
-                    chunkNumber++;
-
-                    // Cập nhật progress
-                    int percent = (int) ((offset * 100) / fileSize);
-                    if (callback != null) {
-                        callback.onUploadProgress(fileName, percent);
-                    }
-
-                    // Log mỗi 10%
-                    if (chunkNumber % (totalChunks / 10 + 1) == 0) {
-                        System.out.println("[PeerServer] Đang gửi " + fileName + ": " + percent + "%");
-                    }
                 }
             }
 
             // Gửi message hoàn thành
             Message completeMsg = new Message(Message.Type.TRANSFER_COMPLETE);
             completeMsg.setContent(fileName);
-            out.writeObject(completeMsg);
+            channel.send(completeMsg);
 
             System.out.println("[PeerServer] Hoàn thành gửi file: " + fileName);
             if (callback != null) {
@@ -229,70 +553,29 @@ public class PeerServer implements Runnable {
         /**
          * Xử lý yêu cầu tải một chunk (cho Multi-source download)
          */
-        private void handleChunkRequest(Message request, ObjectOutputStream out, String clientInfo)
+        private void handleChunkRequest(Message request, MessageChannel channel, String clientInfo)
                 throws IOException {
-            String fileName = request.getContent();
-            int chunkIndex = request.getChunkIndex();
-            long offset = request.getOffset();
-            int chunkSize = request.getChunkSize();
-
-            if (!fileManager.hasFile(fileName)) {
-                Message response = new Message(Message.Type.FILE_NOT_FOUND);
-                response.setContent("File không tồn tại: " + fileName);
-                out.writeObject(response);
-
-                // ⭐ LAZY CLEANUP
-                database.DatabaseManager.getInstance().unlinkPeerFromFile(peerID, fileName);
-                System.out.println("[PeerServer] Lazy Cleanup (Chunk): Đã gỡ file khỏi DB: " + fileName);
-                return;
-            }
-
-            // ⭐ KIỂM TRA QUYỀN TRUY CẬP (Is Shared?)
-            boolean isShared = database.DatabaseManager.getInstance().getShareStatus(peerID, fileName);
-            if (!isShared) {
-                System.out.println("[PeerServer] TỪ CHỐI gửi chunk " + fileName + " (đang ẩn)");
-                Message response = new Message(Message.Type.FILE_NOT_FOUND);
-                response.setContent("File đã bị ẩn: " + fileName);
-                out.writeObject(response);
+            PreparedChunk chunk = prepareChunk(request);
+            if (chunk.file == null) {
+                channel.send(chunk.response);
                 return;
             }
 
             try {
-                byte[] chunkData = fileManager.readFileChunk(fileName, offset, chunkSize);
-
-                if (chunkData != null) {
-                    Message response = new Message(Message.Type.CHUNK_DATA);
-                    response.setContent(fileName);
-                    response.setChunkIndex(chunkIndex);
-                    response.setData(chunkData);
-                    response.setOffset(offset);
-                    out.writeObject(response);
-                    out.flush();
-
-                    System.out.println(
-                            "[PeerServer] Gửi chunk " + chunkIndex + " của " + fileName + " đến " + clientInfo);
-                } else {
-                    Message response = new Message(Message.Type.FILE_NOT_FOUND);
-                    response.setContent("Không thể đọc chunk: " + chunkIndex);
-                    out.writeObject(response);
-                }
-            } catch (Exception e) {
-                Message response = new Message(Message.Type.FILE_NOT_FOUND);
-                response.setContent("Lỗi đọc chunk: " + e.getMessage());
-                out.writeObject(response);
+                channel.sendFileRegion(chunk.response, chunk.file.channel(), chunk.position, chunk.length);
+                System.out.println("[PeerServer] Gửi chunk " + request.getChunkIndex() + " của "
+                        + request.getContent() + " đến " + clientInfo);
+            } finally {
+                chunk.file.close();
             }
         }
 
-        private void closeConnection(ObjectInputStream in, ObjectOutputStream out, Socket socket) {
-            try {
-                if (in != null)
-                    in.close();
-                if (out != null)
-                    out.close();
-                if (socket != null)
-                    socket.close();
-            } catch (IOException e) {
+        private void closeConnection(MessageChannel channel, Socket socket) {
+            if (channel != null) {
+                channel.close();
+                return;
             }
+            closeQuietly(socket);
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,69 @@
+package peer;
+
+/**
+ * Cửa sổ số request đang bay (in-flight) cho một source, tự điều chỉnh theo RTT và throughput
+ * - RTT gần RTT nhỏ nhất (đường truyền chưa bị nghẽn) -> tăng cửa sổ để dò thêm băng thông
+ * - RTT tăng cao (request xếp hàng ở phía seeder) -> thu về bandwidth-delay product
+ * - Lỗi -> giảm một nửa
+ */
+public class PipelineWindow {
+    private static final double QUEUEING_FACTOR = 2.0; // RTT > 2x RTT min => đang xếp hàng
+    private static final double EWMA_ALPHA = 0.2;
+
+    private final int maxSize;
+    private int size;
+
+    private long minRttNanos = Long.MAX_VALUE;
+    private double throughput; // bytes/giây (EWMA)
+    private long lastCompletionNanos;
+
+    public PipelineWindow(int initialSize, int maxSize) {
+        this.maxSize = Math.max(1, maxSize);
+        this.size = Math.max(1, Math.min(initialSize, this.maxSize));
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Ghi nhận một chunk hoàn thành
+     *
+     * @param rttNanos thời gian từ lúc gửi request tới lúc nhận xong chunk
+     * @param bytes    kích thước chunk
+     */
+    public void onChunkCompleted(long rttNanos, int bytes) {
+        long now = System.nanoTime();
+        if (lastCompletionNanos > 0) {
+            long interval = Math.max(1, now - lastCompletionNanos);
+            double sample = bytes * 1_000_000_000.0 / interval;
+            throughput = throughput == 0 ? sample : EWMA_ALPHA * sample + (1 - EWMA_ALPHA) * throughput;
+        }
+        lastCompletionNanos = now;
+
+        if (rttNanos <= 0)
+            return;
+        minRttNanos = Math.min(minRttNanos, rttNanos);
+
+        if (rttNanos <= minRttNanos * QUEUEING_FACTOR) {
+            size = Math.min(maxSize, size + 1);
+        } else if (throughput > 0 && bytes > 0) {
+            // Bandwidth-delay product tính theo số chunk, +1 để đường truyền không bị trống
+            double bdpChunks = throughput * (minRttNanos / 1_000_000_000.0) / bytes;
+            int target = (int) Math.ceil(bdpChunks) + 1;
+            size = Math.max(1, Math.min(size, Math.min(maxSize, target)));
+        }
+    }
+
+    public void onError() {
+        size = Math.max(1, size / 2);
+    }
+
+    public double getThroughput() {
+        return throughput;
+    }
+
+    public long getMinRttMillis() {
+        return minRttNanos == Long.MAX_VALUE ? -1 : minRttNanos / 1_000_000;
+    }
+}
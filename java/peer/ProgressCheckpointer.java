@@ -0,0 +1,298 @@
+package peer;
+
+import database.DatabaseManager;
+import utils.ChunkBitSet;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Lưu tiến độ một lượt tải nhiều nguồn ở nền, ngoài luồng tải dữ liệu
+ * - Worker/luồng ghi chỉ báo chunk vừa ghi xong (thêm vào bộ đệm, không I/O)
+ * - Một luồng nền chung cho mọi lượt tải: fsync file tạm, rồi ghi thêm chỉ số các chunk mới vào
+ *   journal cạnh file tạm (<file>.tmp.journal) và fsync journal - journal chỉ chứa chunk đã thực sự
+ *   nằm trên đĩa, kể cả khi mất điện
+ * - Journal mở đầu bằng ảnh chụp bitmap (ChunkBitSet.encode) cùng downloadId, hash, kích thước chunk;
+ *   các chunk tải sau được ghi nối vào cuối, mỗi lần bắt đầu lượt tải lại ghi thành ảnh chụp mới
+ * - Flush khi đủ FLUSH_CHUNKS chunk mới hoặc sau FLUSH_INTERVAL_MS, và khi đóng (tạm dừng/lỗi/tắt)
+ * - DB chỉ được cập nhật thưa (DB_FLUSH_MS) từ phần đã vào journal; tiếp tục tải đọc journal nên
+ *   không phụ thuộc MySQL
+ */
+public class ProgressCheckpointer implements Closeable {
+    private static final long FLUSH_INTERVAL_MS = 2000;
+    private static final int FLUSH_CHUNKS = 256;
+    private static final long DB_FLUSH_MS = 10_000;
+    private static final int JOURNAL_MAGIC = 0x50324A32; // "P2J2"
+    private static final int MAX_SNAPSHOT_BYTES = 4 * 1024 * 1024;
+
+    private static final ScheduledExecutorService FLUSHER = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "progress-checkpointer");
+        t.setDaemon(true);
+        return t;
+    });
+    private static final Set<ProgressCheckpointer> OPEN = ConcurrentHashMap.newKeySet();
+
+    static {
+        // Tắt chương trình giữa chừng: ghi nốt journal/DB của các lượt tải đang chạy
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            for (ProgressCheckpointer checkpointer : OPEN) {
+                checkpointer.flush(true);
+            }
+        }, "progress-checkpointer-shutdown"));
+    }
+
+    private final int downloadId;
+    private final File journalFile;
+    private final long fileSize;
+    private final int chunkSize;
+    private final DatabaseManager db;
+
+    // Chunk đã ghi vào file tạm nhưng chưa vào journal (dưới khóa của pendingLock)
+    private final Object pendingLock = new Object();
+    private int[] pending = new int[64];
+    private int pendingCount;
+
+    // Trạng thái đã lưu bền (dưới khóa của flushLock)
+    private final Object flushLock = new Object();
+    private final ChunkBitSet durable;
+    private long durableBytes;
+    private FileChannel journal;
+    private ChunkWriter writer;
+    private boolean dbDirty;
+    private long lastDbFlush;
+
+    private final AtomicBoolean flushQueued = new AtomicBoolean();
+    private ScheduledFuture<?> task;
+
+    /**
+     * Tiến độ đọc từ journal
+     */
+    public static class ResumeState {
+        public final int downloadId; // <= 0 nếu lúc tạo journal DB không tạo được lượt tải
+        public final ChunkBitSet completedChunks;
+
+        ResumeState(int downloadId, ChunkBitSet completedChunks) {
+            this.downloadId = downloadId;
+            this.completedChunks = completedChunks;
+        }
+    }
+
+    /**
+     * Journal của một file tạm
+     */
+    public static File journalFor(File tempFile) {
+        return new File(tempFile.getPath() + ".journal");
+    }
+
+    /**
+     * Đọc tiến độ đã lưu trong journal
+     *
+     * @return null nếu không có journal, journal hỏng hoặc thuộc file khác (kích thước/chunk/hash khác)
+     */
+    public static ResumeState readJournal(File journalFile, long fileSize, int chunkSize, int totalChunks,
+            String fileHash) {
+        if (!journalFile.isFile())
+            return null;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(journalFile)))) {
+            if (in.readInt() != JOURNAL_MAGIC)
+                return null;
+            int downloadId = in.readInt();
+            if (in.readLong() != fileSize || in.readInt() != chunkSize || in.readInt() != totalChunks
+                    || !in.readUTF().equals(fileHash != null ? fileHash : "")) {
+                return null;
+            }
+            int snapshotLength = in.readInt();
+            if (snapshotLength < 0 || snapshotLength > MAX_SNAPSHOT_BYTES)
+                return null;
+            byte[] snapshot = new byte[snapshotLength];
+            in.readFully(snapshot);
+            ChunkBitSet chunks = ChunkBitSet.decode(new String(snapshot, StandardCharsets.US_ASCII));
+            if (chunks.size() != totalChunks)
+                return null;
+            while (true) {
+                int chunk;
+                try {
+                    chunk = in.readInt();
+                } catch (EOFException e) {
+                    break; // Hết journal (hoặc bản ghi cuối bị cắt dở - bỏ qua)
+                }
+                if (chunk >= 0 && chunk < totalChunks)
+                    chunks.set(chunk);
+            }
+            return new ResumeState(downloadId, chunks);
+        } catch (IOException | IllegalArgumentException e) {
+            System.err.println("[Checkpoint] Không đọc được journal " + journalFile.getName() + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Ghi lại journal mới chứa sẵn các chunk đã hoàn thành
+     */
+    public ProgressCheckpointer(int downloadId, File journalFile, long fileSize, int chunkSize, String fileHash,
+            ChunkBitSet completed, long completedBytes) throws IOException {
+        this.downloadId = downloadId;
+        this.journalFile = journalFile;
+        this.fileSize = fileSize;
+        this.chunkSize = chunkSize;
+        this.db = DatabaseManager.getInstance();
+        this.durable = completed.copy();
+        this.durableBytes = completedBytes;
+        this.lastDbFlush = System.currentTimeMillis();
+        this.journal = openJournal(fileHash);
+    }
+
+    /**
+     * Bắt đầu flush định kỳ (writer dùng để fsync file tạm trước khi ghi journal)
+     */
+    public void start(ChunkWriter writer) {
+        synchronized (flushLock) {
+            this.writer = writer;
+        }
+        OPEN.add(this);
+        task = FLUSHER.scheduleWithFixedDelay(() -> flush(false), FLUSH_INTERVAL_MS, FLUSH_INTERVAL_MS,
+                TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Một chunk vừa được ghi vào file tạm (gọi từ worker/luồng ghi, không chặn)
+     */
+    public void onChunkWritten(int chunkIndex) {
+        boolean full;
+        synchronized (pendingLock) {
+            if (pendingCount == pending.length)
+                pending = Arrays.copyOf(pending, pending.length * 2);
+            pending[pendingCount++] = chunkIndex;
+            full = pendingCount >= FLUSH_CHUNKS;
+        }
+        if (full && flushQueued.compareAndSet(false, true)) {
+            FLUSHER.execute(() -> flush(false));
+        }
+    }
+
+    /**
+     * Ghi nốt tiến độ vào journal và DB rồi đóng journal (giữ file để tiếp tục tải)
+     */
+    @Override
+    public void close() {
+        stop();
+        flush(true);
+        synchronized (flushLock) {
+            closeJournal();
+        }
+    }
+
+    /**
+     * Bỏ journal (tải xong hoặc bị hủy)
+     */
+    public void discard() {
+        stop();
+        synchronized (flushLock) {
+            closeJournal();
+            journalFile.delete();
+        }
+    }
+
+    // ==================== NỘI BỘ ====================
+
+    private void stop() {
+        OPEN.remove(this);
+        if (task != null)
+            task.cancel(false);
+    }
+
+    /**
+     * fsync file tạm, ghi các chunk mới vào journal, cập nhật DB nếu đến hạn (hoặc forceDb)
+     */
+    private void flush(boolean forceDb) {
+        synchronized (flushLock) {
+            flushQueued.set(false);
+            if (journal == null)
+                return;
+
+            int[] batch;
+            synchronized (pendingLock) {
+                batch = Arrays.copyOf(pending, pendingCount);
+            }
+            if (batch.length > 0) {
+                try {
+                    if (writer != null)
+                        writer.force(); // Dữ liệu phải xuống đĩa trước bản ghi journal
+                    ByteBuffer buffer = ByteBuffer.allocate(batch.length * 4);
+                    for (int chunk : batch) {
+                        buffer.putInt(chunk);
+                    }
+                    buffer.flip();
+                    while (buffer.hasRemaining()) {
+                        journal.write(buffer);
+                    }
+                    journal.force(false);
+                } catch (IOException e) {
+                    // Giữ lại trong bộ đệm, thử lại ở lần flush sau
+                    System.err.println("[Checkpoint] Lỗi ghi journal " + journalFile.getName() + ": " + e.getMessage());
+                    return;
+                }
+
+                synchronized (pendingLock) {
+                    pendingCount -= batch.length;
+                    System.arraycopy(pending, batch.length, pending, 0, pendingCount);
+                }
+                for (int chunk : batch) {
+                    if (durable.set(chunk))
+                        durableBytes += Math.min(chunkSize, fileSize - (long) chunk * chunkSize);
+                }
+                dbDirty = true;
+            }
+
+            long now = System.currentTimeMillis();
+            if (dbDirty && downloadId > 0 && (forceDb || now - lastDbFlush >= DB_FLUSH_MS)) {
+                db.updateDownloadProgress(downloadId, durable, durableBytes);
+                dbDirty = false;
+                lastDbFlush = now;
+            }
+        }
+    }
+
+    private FileChannel openJournal(String fileHash) throws IOException {
+        // Viết journal mới ra file phụ rồi mới thay, journal cũ còn nguyên nếu bị ngắt giữa chừng
+        File fresh = new File(journalFile.getPath() + ".new");
+        try (FileOutputStream fos = new FileOutputStream(fresh);
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos))) {
+            byte[] snapshot = durable.encode().getBytes(StandardCharsets.US_ASCII);
+            out.writeInt(JOURNAL_MAGIC);
+            out.writeInt(downloadId);
+            out.writeLong(fileSize);
+            out.writeInt(chunkSize);
+            out.writeInt(durable.size());
+            out.writeUTF(fileHash != null ? fileHash : "");
+            out.writeInt(snapshot.length);
+            out.write(snapshot);
+            out.flush();
+            fos.getFD().sync();
+        }
+        try {
+            Files.move(fresh.toPath(), journalFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(fresh.toPath(), journalFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        return FileChannel.open(journalFile.toPath(), StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    private void closeJournal() {
+        if (journal == null)
+            return;
+        try {
+            journal.close();
+        } catch (IOException e) {
+        }
+        journal = null;
+    }
+}
@@ -0,0 +1,59 @@
+package peer;
+
+import database.DatabaseManager;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Trạng thái ẩn/hiện các file của peer này, giữ trong RAM (DB peer_files.is_shared là bản lưu)
+ * - Nạp một lần khi peer khởi động, cập nhật ngay khi người dùng ẩn/hiện file
+ * - PeerServer kiểm tra quyền mỗi request bằng map này thay vì một câu JOIN 3 bảng trên MySQL,
+ *   nên tốc độ seed không còn phụ thuộc độ trễ của DB
+ * - File chưa có trong map (chia sẻ sau lúc nạp, hoặc lúc nạp DB lỗi) hỏi DB một lần rồi giữ lại;
+ *   DB lỗi thì từ chối và không giữ (file đang ẩn không bị lộ vì một lần DB quá tải)
+ */
+public class ShareVisibility {
+    private final Map<String, Boolean> shared = new ConcurrentHashMap<>(); // fileName -> đang chia sẻ
+
+    /**
+     * Nạp trạng thái mọi file của peer từ DB
+     */
+    public void load(String peerId) {
+        Map<String, Boolean> statuses = DatabaseManager.getInstance().getShareStatuses(peerId);
+        if (statuses == null) {
+            System.err.println("[ShareVisibility] Không nạp được trạng thái chia sẻ, sẽ hỏi DB từng file");
+            return;
+        }
+        shared.putAll(statuses);
+        long hidden = statuses.values().stream().filter(s -> !s).count();
+        System.out.println("[ShareVisibility] Đã nạp " + statuses.size() + " files (" + hidden + " đang ẩn)");
+    }
+
+    public boolean isShared(String peerId, String fileName) {
+        Boolean cached = shared.get(fileName);
+        if (cached != null)
+            return cached;
+        Boolean status = DatabaseManager.getInstance().getShareStatus(peerId, fileName);
+        if (status == null) {
+            System.err.println("[ShareVisibility] Chưa biết trạng thái của " + fileName + " (DB lỗi), tạm từ chối");
+            return false;
+        }
+        Boolean previous = shared.putIfAbsent(fileName, status);
+        return previous != null ? previous : status; // Ẩn/hiện trong lúc hỏi DB thì giữ giá trị mới
+    }
+
+    /**
+     * Ẩn/hiện file (gọi trước khi báo Tracker/ghi DB để request tới sau thấy ngay)
+     */
+    public void setShared(String fileName, boolean isShared) {
+        shared.put(fileName, isShared);
+    }
+
+    /**
+     * File không còn được chia sẻ (dòng peer_files bị xóa): chia sẻ lại sẽ hiện như mặc định
+     */
+    public void forget(String fileName) {
+        shared.remove(fileName);
+    }
+}
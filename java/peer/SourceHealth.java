@@ -0,0 +1,65 @@
+package peer;
+
+/**
+ * Sức khỏe của một nguồn (peer seed) qua các lần tải: độ trễ, tỉ lệ lỗi, tốc độ
+ * - Điểm = tốc độ x (1 - tỉ lệ lỗi) / (1 + RTT tính bằng giây): nguồn nhanh, ít lỗi, gần được ưu tiên
+ * - Dùng để chọn nguồn nào được mở worker, nguồn nào bị loại khi quá chậm
+ */
+public class SourceHealth {
+    private static final double EWMA_ALPHA = 0.2;
+    public static final double UNKNOWN_SCORE = 256 * 1024; // Nguồn chưa đo: coi như 256 KB/s
+
+    private double latencyMillis; // RTT trung bình (EWMA)
+    private double throughput; // bytes/giây (EWMA, đo bởi PipelineWindow)
+    private long successes;
+    private long errors;
+    private long bytes;
+
+    /**
+     * Một chunk nhận thành công
+     */
+    public synchronized void onSuccess(long rttNanos, double throughput, int length) {
+        double rttMillis = rttNanos / 1_000_000.0;
+        latencyMillis = successes == 0 ? rttMillis : EWMA_ALPHA * rttMillis + (1 - EWMA_ALPHA) * latencyMillis;
+        if (throughput > 0)
+            this.throughput = throughput;
+        successes++;
+        bytes += length;
+    }
+
+    /**
+     * Lỗi kết nối, timeout, chunk không đọc được hoặc sai hash
+     */
+    public synchronized void onError() {
+        errors++;
+    }
+
+    public synchronized double getErrorRate() {
+        long total = successes + errors;
+        return total == 0 ? 0 : (double) errors / total;
+    }
+
+    public synchronized double getThroughput() {
+        return throughput;
+    }
+
+    public synchronized long getSuccesses() {
+        return successes;
+    }
+
+    /**
+     * Điểm để xếp hạng nguồn (UNKNOWN_SCORE nếu chưa tải được chunk nào và chưa lỗi)
+     */
+    public synchronized double getScore() {
+        if (successes == 0)
+            return errors == 0 ? UNKNOWN_SCORE : 0;
+        double speed = throughput > 0 ? throughput : UNKNOWN_SCORE; // Cần 2 chunk mới đo được tốc độ
+        return speed * (1 - getErrorRate()) / (1 + latencyMillis / 1000.0);
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("%.1f KB/s, RTT %.0f ms, lỗi %.0f%%, %d chunks", throughput / 1024, latencyMillis,
+                getErrorRate() * 100, successes);
+    }
+}
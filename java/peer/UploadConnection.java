@@ -0,0 +1,541 @@
+package peer;
+
+import protocol.BinaryMessageChannel;
+import protocol.Message;
+import protocol.MessageCodec;
+import tracker.FileInfo;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Trạng thái một kết nối giao thức nhị phân trên server NIO
+ *
+ * - Selector thread: đọc, handshake, tách frame thành request và xếp hàng
+ * - Worker (tối đa một tại một thời điểm cho mỗi kết nối): xử lý request, ghi
+ *   header + transferTo ở chế độ non-blocking; khi socket đầy thì đăng ký OP_WRITE
+ *   và trả worker về pool thay vì chờ
+ */
+class UploadConnection implements Runnable {
+    private static final int MAX_QUEUED_REQUESTS = 256; // Quá ngưỡng thì ngừng đọc (backpressure)
+    private static final int MAX_REQUEST_LENGTH = 64 * 1024; // Request của peer chỉ gồm header nhỏ
+
+    enum ReadResult {
+        OK, LEGACY, CLOSED
+    }
+
+    private enum State {
+        SNIFF, HANDSHAKE, FRAMES, LEGACY
+    }
+
+    private final PeerServer server;
+    private final SocketChannel channel;
+    private final SelectionKey key;
+    private final String clientInfo;
+
+    // Chỉ selector thread dùng
+    private State state = State.SNIFF;
+    private ByteBuffer readBuffer = ByteBuffer.allocate(8 * 1024);
+    private boolean firstRequest = true;
+
+    // Chia sẻ giữa selector và worker
+    private final Queue<Message> requests = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger queued = new AtomicInteger();
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    private final AtomicBoolean closed = new AtomicBoolean();
+    private volatile boolean noMoreRequests; // SESSION_END, EOF hoặc request một lần
+    private volatile boolean sessionMode;
+    private volatile long lastActivity = System.currentTimeMillis();
+    private boolean waitingWritable; // guarded by this
+
+    // Chỉ thread đang giữ scheduled dùng (worker, hoặc close() khi không có worker nào chạy)
+    private ByteBuffer pendingHead;
+    private FileChannel pendingFile;
+    private long pendingPosition;
+    private long pendingRemaining;
+    private Closeable pendingRelease; // Handle trả lại sau khi gửi xong (chunk), null: của FileStream
+    private FileStream stream;
+    private int served = 0;
+
+    UploadConnection(PeerServer server, SocketChannel channel, SelectionKey key) {
+        this.server = server;
+        this.channel = channel;
+        this.key = key;
+        this.clientInfo = channel.socket().getInetAddress().getHostAddress();
+    }
+
+    SocketChannel getChannel() {
+        return channel;
+    }
+
+    SelectionKey getKey() {
+        return key;
+    }
+
+    boolean isIdleSince(long threshold) {
+        return lastActivity < threshold;
+    }
+
+    // ==================== SELECTOR THREAD ====================
+
+    ReadResult onReadable() {
+        int n;
+        try {
+            n = channel.read(readBuffer);
+        } catch (IOException e) {
+            close();
+            return ReadResult.CLOSED;
+        }
+
+        if (n < 0) {
+            if (state != State.FRAMES) {
+                close(); // Đóng trước khi hoàn tất handshake
+                return ReadResult.CLOSED;
+            }
+            noMoreRequests = true;
+            updateInterest(false);
+            schedule();
+            return ReadResult.OK;
+        }
+        lastActivity = System.currentTimeMillis();
+
+        readBuffer.flip();
+        try {
+            return parse();
+        } catch (IOException e) {
+            System.err.println("[PeerServer] Frame không hợp lệ từ " + clientInfo + ": " + e.getMessage());
+            close();
+            return ReadResult.CLOSED;
+        } finally {
+            readBuffer.compact();
+        }
+    }
+
+    private ReadResult parse() throws IOException {
+        if (state == State.SNIFF) {
+            if (readBuffer.remaining() < BinaryMessageChannel.MAGIC_LENGTH)
+                return ReadResult.OK;
+            byte[] head = new byte[BinaryMessageChannel.MAGIC_LENGTH];
+            readBuffer.duplicate().get(head);
+            if (!BinaryMessageChannel.isMagic(head)) {
+                // Java serialization - giữ nguyên các byte đã đọc cho handler cũ
+                state = State.LEGACY;
+                return ReadResult.LEGACY;
+            }
+            readBuffer.position(readBuffer.position() + head.length);
+            state = State.HANDSHAKE;
+        }
+
+        if (state == State.HANDSHAKE) {
+            if (!readBuffer.hasRemaining())
+                return ReadResult.OK;
+            // Socket vừa mở nên send buffer trống - 5 byte luôn ghi được ngay
+            ByteBuffer reply = ByteBuffer.wrap(BinaryMessageChannel.handshakeReply(readBuffer.get()));
+            channel.write(reply);
+            if (reply.hasRemaining())
+                throw new IOException("Không gửi được handshake");
+            state = State.FRAMES;
+        }
+
+        while (state == State.FRAMES && !noMoreRequests && readBuffer.remaining() >= MessageCodec.FRAME_PREFIX_LENGTH) {
+            int start = readBuffer.position();
+            int headerLength = readBuffer.getInt(start);
+            int dataLength = readBuffer.getInt(start + 4);
+            if (headerLength <= 0 || headerLength > MAX_REQUEST_LENGTH
+                    || dataLength < -1 || dataLength > MAX_REQUEST_LENGTH) {
+                throw new IOException("header=" + headerLength + ", data=" + dataLength);
+            }
+
+            int frameLength = MessageCodec.FRAME_PREFIX_LENGTH + headerLength + Math.max(dataLength, 0);
+            if (readBuffer.remaining() < frameLength) {
+                ensureCapacity(frameLength);
+                break;
+            }
+
+            byte[] header = new byte[headerLength];
+            readBuffer.position(start + MessageCodec.FRAME_PREFIX_LENGTH);
+            readBuffer.get(header);
+            readBuffer.position(start + frameLength); // Request không cần data - bỏ qua
+            dispatch(MessageCodec.decodeHeader(header));
+        }
+
+        updateInterest(false);
+        return ReadResult.OK;
+    }
+
+    /**
+     * Nới readBuffer (đang ở chế độ đọc) để chứa trọn một frame
+     */
+    private void ensureCapacity(int frameLength) {
+        if (readBuffer.capacity() >= frameLength)
+            return;
+        ByteBuffer bigger = ByteBuffer.allocate(frameLength);
+        bigger.put(readBuffer);
+        bigger.flip();
+        readBuffer = bigger;
+    }
+
+    private void dispatch(Message request) {
+        if (firstRequest) {
+            firstRequest = false;
+            System.out.println("[PeerServer] Nhận yêu cầu từ " + clientInfo + ": " + request.getType());
+            if (request.getType() == Message.Type.SESSION_START) {
+                sessionMode = true;
+            } else {
+                noMoreRequests = true; // Kết nối một lần: phục vụ xong thì đóng
+            }
+        } else if (request.getType() == Message.Type.SESSION_END) {
+            noMoreRequests = true;
+            schedule();
+            return;
+        }
+
+        requests.add(request);
+        queued.incrementAndGet();
+        schedule();
+    }
+
+    void onWritable() {
+        synchronized (this) {
+            waitingWritable = false;
+        }
+        updateInterest(false);
+        schedule();
+    }
+
+    /**
+     * Các byte đã đọc nhưng chưa xử lý (dùng khi chuyển sang handler Java serialization)
+     */
+    byte[] drainPrefetched() {
+        readBuffer.flip();
+        byte[] bytes = new byte[readBuffer.remaining()];
+        readBuffer.get(bytes);
+        return bytes;
+    }
+
+    // ==================== WORKER ====================
+
+    private void schedule() {
+        if (closed.get() || !scheduled.compareAndSet(false, true))
+            return;
+        try {
+            server.getUploadWorkers().execute(this);
+        } catch (RejectedExecutionException e) {
+            close(); // Server đang dừng
+        }
+    }
+
+    @Override
+    public void run() {
+        boolean yielded = false;
+        try {
+            yielded = serve();
+        } finally {
+            if (!yielded) {
+                close();
+                releaseHandles(); // Worker vẫn giữ kết nối - close() không tự trả handle
+            }
+        }
+    }
+
+    /**
+     * @return true nếu đã nhả kết nối (scheduled), false nếu kết nối đã đóng khi worker còn giữ
+     */
+    private boolean serve() {
+        try {
+            while (!closed.get()) {
+                if (!flushPending()) {
+                    // Socket đầy - chờ OP_WRITE, trả worker về pool
+                    synchronized (this) {
+                        waitingWritable = true;
+                    }
+                    yieldWorker();
+                    updateInterest(true);
+                    return true;
+                }
+
+                if (stream != null) {
+                    stream.next();
+                    continue;
+                }
+
+                Message request = requests.poll();
+                if (request == null)
+                    break;
+                queued.decrementAndGet();
+                handle(request);
+            }
+        } catch (IOException e) {
+            fail(e);
+            return false;
+        }
+
+        if (noMoreRequests && requests.isEmpty()) {
+            close();
+            return false;
+        }
+
+        yieldWorker();
+        updateInterest(true);
+        if (!requests.isEmpty())
+            schedule(); // Request đến sau lần poll cuối
+        return true;
+    }
+
+    /**
+     * Nhả kết nối; nếu close() chạy trên selector trong lúc worker còn giữ thì trả handle tại đây
+     */
+    private void yieldWorker() {
+        scheduled.set(false);
+        if (closed.get() && scheduled.compareAndSet(false, true))
+            releaseHandles();
+    }
+
+    /**
+     * Trả các file handle đang mượn - chỉ thread đang giữ scheduled được gọi
+     */
+    private void releaseHandles() {
+        PeerServer.closeQuietly(pendingRelease);
+        pendingRelease = null;
+        pendingFile = null;
+        if (stream != null) {
+            stream.handle.close();
+            stream = null;
+        }
+    }
+
+    private void handle(Message request) throws IOException {
+        switch (request.getType()) {
+            case SESSION_START:
+                queueFrame(new Message(Message.Type.SESSION_OK));
+                break;
+            case REQUEST_CHUNK:
+                PeerServer.PreparedChunk chunk = server.prepareChunk(request);
+                if (chunk.file == null) {
+                    queueFrame(chunk.response);
+                } else {
+                    queueRegion(chunk.response, chunk.file.channel(), chunk.position, chunk.length, chunk.file);
+                    served++;
+                }
+                break;
+            case REQUEST_MANIFEST:
+                queueFrame(server.prepareManifest(request));
+                break;
+            case REQUEST_FILE:
+                if (sessionMode) {
+                    rejectInSession(request); // Trong phiên chỉ phục vụ chunk
+                } else {
+                    startFileStream(request.getContent());
+                }
+                break;
+            default:
+                if (sessionMode) {
+                    rejectInSession(request);
+                }
+                break;
+        }
+    }
+
+    private void rejectInSession(Message request) throws IOException {
+        Message response = new Message(Message.Type.ERROR, "Không hỗ trợ trong phiên: " + request.getType());
+        response.setRequestId(request.getRequestId());
+        queueFrame(response);
+    }
+
+    private void startFileStream(String fileName) throws IOException {
+        Message rejection = server.checkAccess(fileName, 0);
+        if (rejection != null) {
+            queueFrame(rejection);
+            return;
+        }
+
+        PeerServer.TransferCallback callback = server.getCallback();
+        if (callback != null) {
+            callback.onUploadStarted(fileName, clientInfo);
+        }
+        FileHandleCache.Handle handle = server.getFileManager().acquireFile(fileName);
+        stream = new FileStream(fileName, handle);
+        System.out.println("[PeerServer] Bắt đầu gửi file: " + fileName + " (" + stream.fileSize + " bytes)");
+    }
+
+    private void queueFrame(Message message) throws IOException {
+        byte[] data = message.getData();
+        if (data == null) {
+            pendingHead = MessageCodec.encodeFrameHead(message, -1);
+            return;
+        }
+        // Payload nhỏ trong RAM (manifest) - gửi liền sau header trong cùng buffer
+        ByteBuffer head = MessageCodec.encodeFrameHead(message, data.length);
+        ByteBuffer frame = ByteBuffer.allocate(head.remaining() + data.length);
+        frame.put(head);
+        frame.put(data);
+        frame.flip();
+        pendingHead = frame;
+    }
+
+    private void queueRegion(Message header, FileChannel file, long position, int length, Closeable release)
+            throws IOException {
+        header.setData(null);
+        pendingHead = MessageCodec.encodeFrameHead(header, length);
+        pendingFile = file;
+        pendingPosition = position;
+        pendingRemaining = length;
+        pendingRelease = release;
+    }
+
+    /**
+     * Ghi tiếp phần đang chờ (header rồi payload bằng transferTo)
+     *
+     * @return false nếu socket đầy, cần chờ OP_WRITE
+     */
+    private boolean flushPending() throws IOException {
+        if (pendingHead != null) {
+            channel.write(pendingHead);
+            if (pendingHead.hasRemaining())
+                return false;
+            pendingHead = null;
+        }
+
+        while (pendingRemaining > 0) {
+            long n = pendingFile.transferTo(pendingPosition, pendingRemaining, channel);
+            if (n <= 0) {
+                if (pendingPosition >= pendingFile.size()) {
+                    // Frame đã hứa đủ độ dài - không thể tiếp tục trên kết nối này
+                    throw new EOFException("File bị cắt ngắn trong lúc gửi tại vị trí " + pendingPosition);
+                }
+                return false;
+            }
+            pendingPosition += n;
+            pendingRemaining -= n;
+            lastActivity = System.currentTimeMillis();
+        }
+
+        if (pendingFile != null) {
+            if (pendingRelease != null)
+                pendingRelease.close();
+            pendingFile = null;
+            pendingRelease = null;
+        }
+        return true;
+    }
+
+    private void fail(IOException e) {
+        System.err.println("[PeerServer] Lỗi xử lý yêu cầu: " + e.getMessage());
+        PeerServer.TransferCallback callback = server.getCallback();
+        if (callback != null) {
+            callback.onUploadFailed(stream != null ? stream.fileName : "unknown", e.getMessage());
+        }
+        close();
+    }
+
+    /**
+     * Cập nhật interestOps theo trạng thái hiện tại (gọi được từ cả selector và worker)
+     */
+    private synchronized void updateInterest(boolean fromWorker) {
+        if (closed.get())
+            return;
+        int ops = 0;
+        if (!noMoreRequests && queued.get() < MAX_QUEUED_REQUESTS)
+            ops |= SelectionKey.OP_READ;
+        if (waitingWritable)
+            ops |= SelectionKey.OP_WRITE;
+        try {
+            if (key.interestOps() != ops) {
+                key.interestOps(ops);
+                if (fromWorker)
+                    key.selector().wakeup();
+            }
+        } catch (CancelledKeyException e) {
+            // Đã đóng hoặc đã chuyển sang handler cũ
+        }
+    }
+
+    void close() {
+        if (!closed.compareAndSet(false, true))
+            return;
+        key.cancel();
+        PeerServer.closeQuietly(channel);
+        // Không có worker nào giữ kết nối thì trả handle ngay, ngược lại worker trả khi dừng
+        if (scheduled.compareAndSet(false, true))
+            releaseHandles();
+        server.onConnectionClosed(this);
+
+        if (sessionMode) {
+            System.out.println("[PeerServer] Đóng phiên với " + clientInfo + " sau " + served + " chunks");
+        }
+    }
+
+    // ==================== REQUEST_FILE ====================
+
+    static Message fileDataHeader(String fileName, long offset, long fileSize) {
+        Message dataMsg = new Message(Message.Type.FILE_DATA);
+        dataMsg.setContent(fileName);
+        dataMsg.setOffset(offset);
+        dataMsg.setFileSize(fileSize);
+        return dataMsg;
+    }
+
+    /**
+     * Báo tiến độ upload, log mỗi 10%
+     */
+    static void reportFileProgress(PeerServer.TransferCallback callback, String fileName, long sentBefore,
+            long sentNow, long fileSize) {
+        int percent = (int) ((sentNow * 100) / fileSize);
+        if (callback != null) {
+            callback.onUploadProgress(fileName, percent);
+        }
+        if (percent / 10 != (int) ((sentBefore * 100) / fileSize) / 10) {
+            System.out.println("[PeerServer] Đang gửi " + fileName + ": " + percent + "%");
+        }
+    }
+
+    /**
+     * Gửi cả file (REQUEST_FILE) thành chuỗi frame FILE_DATA, mỗi lần một frame
+     * để worker có thể nhả kết nối khi socket đầy
+     */
+    private class FileStream {
+        final String fileName;
+        final FileHandleCache.Handle handle;
+        final FileChannel file;
+        final long fileSize;
+        long offset = 0;
+
+        FileStream(String fileName, FileHandleCache.Handle handle) throws IOException {
+            this.fileName = fileName;
+            this.handle = handle;
+            this.file = handle.channel();
+            this.fileSize = file.size();
+        }
+
+        /**
+         * Frame trước đã gửi xong - xếp frame tiếp theo hoặc TRANSFER_COMPLETE
+         */
+        void next() throws IOException {
+            if (offset < fileSize) {
+                int length = (int) Math.min(FileInfo.chooseChunkSize(fileSize), fileSize - offset);
+                queueRegion(fileDataHeader(fileName, offset, fileSize), file, offset, length, null);
+                reportFileProgress(server.getCallback(), fileName, offset, offset + length, fileSize);
+                offset += length;
+                return;
+            }
+
+            handle.close();
+            stream = null;
+
+            Message completeMsg = new Message(Message.Type.TRANSFER_COMPLETE);
+            completeMsg.setContent(fileName);
+            queueFrame(completeMsg);
+
+            System.out.println("[PeerServer] Hoàn thành gửi file: " + fileName);
+            PeerServer.TransferCallback callback = server.getCallback();
+            if (callback != null) {
+                callback.onUploadCompleted(fileName);
+            }
+        }
+    }
+}
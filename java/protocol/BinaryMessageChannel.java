@@ -0,0 +1,171 @@
+package protocol;
+
+import java.io.*;
+import java.net.Socket;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+
+/**
+ * Kênh dùng giao thức nhị phân (xem MessageCodec)
+ * - Không gửi class descriptor, bỏ qua các trường null
+ * - Dữ liệu chunk được ghi thẳng từ byte[] của message, không qua lớp serialization
+ * - Hỗ trợ gửi chunk zero-copy từ FileChannel (sendFileRegion)
+ */
+public class BinaryMessageChannel extends MessageChannel {
+    public static final byte VERSION = 1;
+    public static final int MAGIC_LENGTH = 4;
+    static final int BUFFER_SIZE = 64 * 1024;
+    private static final byte[] MAGIC = { 'P', '2', 'P', 'B' };
+
+    private final DataOutputStream out;
+    private final DataInputStream in;
+    private final int version;
+
+    private BinaryMessageChannel(Socket socket, InputStream in, int version) throws IOException {
+        super(socket);
+        this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), BUFFER_SIZE));
+        this.in = new DataInputStream(in);
+        this.version = version;
+    }
+
+    /**
+     * Kiểm tra MAGIC_LENGTH byte đầu tiên có phải lời chào của giao thức nhị phân
+     */
+    public static boolean isMagic(byte[] head) {
+        for (int i = 0; i < MAGIC_LENGTH; i++) {
+            if (head[i] != MAGIC[i])
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Client gửi MAGIC + version, chờ server xác nhận
+     *
+     * @return null nếu server chắc chắn là bản cũ (trả lời khác MAGIC hoặc đóng kết nối)
+     * @throws IOException lỗi mạng/hết thời gian chờ - chưa biết server thuộc bản nào
+     */
+    static BinaryMessageChannel clientHandshake(Socket socket, int timeout) throws IOException {
+        int oldTimeout = socket.getSoTimeout();
+        socket.setSoTimeout(timeout);
+
+        OutputStream rawOut = socket.getOutputStream();
+        rawOut.write(MAGIC);
+        rawOut.write(VERSION);
+        rawOut.flush();
+
+        InputStream rawIn = new BufferedInputStream(socket.getInputStream(), BUFFER_SIZE);
+        byte[] reply = new byte[MAGIC_LENGTH + 1];
+        try {
+            new DataInputStream(rawIn).readFully(reply);
+        } catch (EOFException e) {
+            return null; // Server cũ đọc lời chào không hiểu và đóng kết nối
+        }
+        if (!isMagic(reply)) {
+            return null; // Server cũ trả về stream header của ObjectOutputStream
+        }
+
+        socket.setSoTimeout(oldTimeout);
+        return new BinaryMessageChannel(socket, rawIn, reply[MAGIC_LENGTH]);
+    }
+
+    /**
+     * Server đã đọc MAGIC - đọc version của client và trả lời version sẽ dùng
+     */
+    static BinaryMessageChannel serverHandshake(Socket socket, InputStream in) throws IOException {
+        int clientVersion = in.read();
+        if (clientVersion < 0)
+            throw new EOFException("Client đóng kết nối trong lúc handshake");
+
+        byte[] reply = handshakeReply(clientVersion);
+        BinaryMessageChannel channel = new BinaryMessageChannel(socket, in, reply[MAGIC_LENGTH]);
+        channel.out.write(reply);
+        channel.out.flush();
+        return channel;
+    }
+
+    /**
+     * Lời đáp handshake của server: MAGIC + version sẽ dùng
+     */
+    public static byte[] handshakeReply(int clientVersion) {
+        byte[] reply = Arrays.copyOf(MAGIC, MAGIC_LENGTH + 1);
+        reply[MAGIC_LENGTH] = (byte) Math.min(clientVersion, VERSION);
+        return reply;
+    }
+
+    @Override
+    public void send(Message message) throws IOException {
+        byte[] header = MessageCodec.encodeHeader(message);
+        byte[] data = message.getData();
+
+        out.writeInt(header.length);
+        out.writeInt(data == null ? -1 : data.length);
+        out.write(header);
+        if (data != null) {
+            out.write(data);
+        }
+        out.flush();
+    }
+
+    /**
+     * Ghi header qua giao thức, payload đi thẳng từ file xuống socket bằng transferTo (sendfile)
+     */
+    @Override
+    public void sendFileRegion(Message header, FileChannel file, long position, int length) throws IOException {
+        header.setData(null);
+        byte[] encoded = MessageCodec.encodeHeader(header);
+
+        out.writeInt(encoded.length);
+        out.writeInt(length);
+        out.write(encoded);
+        out.flush();
+
+        WritableByteChannel target = socket.getChannel();
+        if (target == null) {
+            // Socket không có channel (tạo bằng new Socket()) - chép qua buffer
+            target = Channels.newChannel(socket.getOutputStream());
+        }
+
+        long sent = 0;
+        while (sent < length) {
+            long n = file.transferTo(position + sent, length - sent, target);
+            if (n <= 0 && position + sent >= file.size()) {
+                // Frame đã hứa đủ length byte - không thể tiếp tục trên kết nối này
+                throw new EOFException("File bị cắt ngắn trong lúc gửi tại vị trí " + (position + sent));
+            }
+            sent += n;
+        }
+    }
+
+    @Override
+    public Message receive() throws IOException {
+        int headerLength = in.readInt();
+        int dataLength = in.readInt();
+        if (headerLength <= 0 || headerLength > MessageCodec.MAX_HEADER_LENGTH
+                || dataLength < -1 || dataLength > MessageCodec.MAX_DATA_LENGTH) {
+            throw new IOException("Frame không hợp lệ: header=" + headerLength + ", data=" + dataLength);
+        }
+
+        byte[] header = new byte[headerLength];
+        in.readFully(header);
+        Message message = MessageCodec.decodeHeader(header);
+
+        if (dataLength >= 0) {
+            byte[] data = new byte[dataLength];
+            in.readFully(data);
+            message.setData(data);
+        }
+        return message;
+    }
+
+    @Override
+    public boolean isBinary() {
+        return true;
+    }
+
+    public int getVersion() {
+        return version;
+    }
+}
@@ -36,12 +36,25 @@ public class Message implements Serializable {
 
         // Peer -> Tracker (cho resume/multi-source)
         GET_FILE_SOURCES,   // Lấy danh sách peer có file
-        FILE_SOURCES        // Danh sách peer sources
+        FILE_SOURCES,       // Danh sách peer sources
+
+        // Peer -> Peer (phiên kết nối lâu dài cho multi-source)
+        SESSION_START,      // Mở phiên: một kết nối phục vụ nhiều REQUEST_CHUNK
+        SESSION_OK,         // Server chấp nhận phiên
+        SESSION_END,        // Đóng phiên
+
+        // Peer -> Tracker (trạng thái chia sẻ)
+        SET_SHARE_STATUS,   // Ẩn/hiện một file (content = tên file, shared)
+
+        // Peer -> Peer (kiểm tra toàn vẹn từng chunk)
+        REQUEST_MANIFEST,   // Xin manifest hash các chunk (content = tên file, chunkSize = kích thước chunk, 0 = 64KB)
+        MANIFEST            // data = hash MD5 các chunk nối liền, chunkSize = kích thước chunk
     }
 
     // Thêm các trường mới cho chunk-based download
     private int chunkIndex;     // Index của chunk (cho REQUEST_CHUNK)
     private int chunkSize;      // Kích thước chunk
+    private int requestId;      // ID yêu cầu trong phiên (để ghép response với request)
 
     private Type type;
     private String content;           // Nội dung text (tên file, thông báo...)
@@ -51,6 +64,16 @@ public class Message implements Serializable {
     private int peerPort;             // Port của peer gửi message
     private long fileSize;            // Kích thước file
     private long offset;              // Vị trí bắt đầu đọc (cho download từng phần)
+    private boolean shared;           // Trạng thái chia sẻ (cho SET_SHARE_STATUS)
+
+    // Phân trang tìm kiếm (SEARCH / GET_ALL_FILES)
+    private int limit;                // Số file tối đa mỗi trang (0 = tất cả)
+    private int cursor;               // Request: vị trí bắt đầu; Response: cursor trang sau (0 = hết)
+    private int totalResults;         // Response: tổng số file khớp
+    private String sortOrder;         // Request: RELEVANCE | NAME | SIZE | SEEDS (tracker.SortOrder)
+    private String pageToken;         // Request/Response: token trang sau (ổn định hơn cursor)
+    private boolean streaming;        // Request: trả kết quả thành nhiều message theo lô
+    private boolean aggregate;        // Request: gộp theo file hash (một dòng mỗi file, kèm vài nguồn mẫu)
 
     public Message(Type type) {
         this.type = type;
@@ -92,6 +115,33 @@ public class Message implements Serializable {
     public int getChunkSize() { return chunkSize; }
     public void setChunkSize(int chunkSize) { this.chunkSize = chunkSize; }
 
+    public int getRequestId() { return requestId; }
+    public void setRequestId(int requestId) { this.requestId = requestId; }
+
+    public boolean isShared() { return shared; }
+    public void setShared(boolean shared) { this.shared = shared; }
+
+    public int getLimit() { return limit; }
+    public void setLimit(int limit) { this.limit = limit; }
+
+    public int getCursor() { return cursor; }
+    public void setCursor(int cursor) { this.cursor = cursor; }
+
+    public int getTotalResults() { return totalResults; }
+    public void setTotalResults(int totalResults) { this.totalResults = totalResults; }
+
+    public String getSortOrder() { return sortOrder; }
+    public void setSortOrder(String sortOrder) { this.sortOrder = sortOrder; }
+
+    public String getPageToken() { return pageToken; }
+    public void setPageToken(String pageToken) { this.pageToken = pageToken; }
+
+    public boolean isStreaming() { return streaming; }
+    public void setStreaming(boolean streaming) { this.streaming = streaming; }
+
+    public boolean isAggregate() { return aggregate; }
+    public void setAggregate(boolean aggregate) { this.aggregate = aggregate; }
+
     @Override
     public String toString() {
         return "Message{type=" + type + ", content='" + content + "'}";
@@ -0,0 +1,161 @@
+package protocol;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Kênh trao đổi Message trên một socket
+ * - BinaryMessageChannel: giao thức nhị phân có độ dài (mặc định)
+ * - ObjectMessageChannel: Java serialization cũ (tương thích peer/tracker bản cũ)
+ *
+ * Khi kết nối, client gửi MAGIC + version. Server mới nhận ra MAGIC và trả lời cùng định
+ * dạng; server cũ không hiểu nên đóng kết nối, client kết nối lại bằng định dạng cũ.
+ */
+public abstract class MessageChannel implements Closeable {
+    private static final int HANDSHAKE_TIMEOUT = 10000;
+    private static final long LEGACY_TTL_MS = 10 * 60_000; // Server trả lời kiểu cũ: thử lại sau 10 phút (có thể đã nâng cấp)
+    private static final long LEGACY_RETRY_MS = 30_000; // Handshake lỗi mạng/timeout: chưa chắc là bản cũ
+
+    // endpoint -> thời điểm được thử lại handshake nhị phân
+    private static final Map<String, Long> legacyEndpoints = new ConcurrentHashMap<>();
+
+    protected final Socket socket;
+
+    protected MessageChannel(Socket socket) {
+        this.socket = socket;
+    }
+
+    /**
+     * Gửi một message (đã flush)
+     */
+    public abstract void send(Message message) throws IOException;
+
+    /**
+     * Nhận message tiếp theo
+     *
+     * @throws EOFException nếu đầu bên kia đóng kết nối
+     */
+    public abstract Message receive() throws IOException;
+
+    /**
+     * Gửi message với data lấy trực tiếp từ một vùng của file
+     * Mặc định đọc vùng đó vào byte[] rồi gửi như message thường; kênh nhị phân
+     * ghi header rồi chuyển payload thẳng từ FileChannel xuống socket (zero-copy)
+     */
+    public void sendFileRegion(Message header, FileChannel file, long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            int n = file.read(buffer, position + buffer.position());
+            if (n < 0)
+                throw new EOFException("File ngắn hơn dự kiến tại vị trí " + (position + buffer.position()));
+        }
+        header.setData(buffer.array());
+        send(header);
+    }
+
+    /**
+     * true nếu đang dùng giao thức nhị phân
+     */
+    public abstract boolean isBinary();
+
+    public Socket getSocket() {
+        return socket;
+    }
+
+    @Override
+    public void close() {
+        try {
+            socket.close();
+        } catch (IOException e) {
+        }
+    }
+
+    // ==================== KẾT NỐI ====================
+
+    /**
+     * Client: mở kết nối và đàm phán giao thức (nhị phân nếu được, không thì Java serialization)
+     */
+    public static MessageChannel connect(String host, int port, int connectTimeout) throws IOException {
+        String endpoint = host + ":" + port;
+
+        Long retryAt = legacyEndpoints.get(endpoint);
+        if (retryAt == null || System.currentTimeMillis() >= retryAt) {
+            Socket socket = openSocket(host, port, connectTimeout);
+            long ttl;
+            try {
+                MessageChannel channel = BinaryMessageChannel.clientHandshake(socket, HANDSHAKE_TIMEOUT);
+                if (channel != null) {
+                    legacyEndpoints.remove(endpoint);
+                    return channel;
+                }
+                ttl = LEGACY_TTL_MS;
+                System.out.println("[Protocol] " + endpoint + " không hỗ trợ giao thức nhị phân, dùng định dạng cũ");
+            } catch (IOException e) {
+                // Lỗi tạm thời hoặc server cũ reset kết nối - lần này dùng định dạng cũ (server mới vẫn
+                // hiểu), chỉ nhớ ngắn để thử lại handshake nhị phân
+                ttl = LEGACY_RETRY_MS;
+                System.out.println("[Protocol] Handshake với " + endpoint + " lỗi (" + e.getMessage()
+                        + "), tạm dùng định dạng cũ");
+            }
+            closeQuietly(socket);
+            legacyEndpoints.put(endpoint, System.currentTimeMillis() + ttl);
+        }
+
+        return new ObjectMessageChannel(openSocket(host, port, connectTimeout));
+    }
+
+    /**
+     * Server: nhận diện giao thức của client vừa kết nối
+     */
+    public static MessageChannel accept(Socket socket) throws IOException {
+        return accept(socket, null);
+    }
+
+    /**
+     * Server: nhận diện giao thức khi một phần dữ liệu đầu đã được đọc trước
+     * (ví dụ server NIO đã đọc thử rồi chuyển kết nối sang chế độ blocking)
+     */
+    public static MessageChannel accept(Socket socket, byte[] alreadyRead) throws IOException {
+        InputStream raw = socket.getInputStream();
+        if (alreadyRead != null && alreadyRead.length > 0) {
+            raw = new SequenceInputStream(new ByteArrayInputStream(alreadyRead), raw);
+        }
+        BufferedInputStream in = new BufferedInputStream(raw, BinaryMessageChannel.BUFFER_SIZE);
+        in.mark(BinaryMessageChannel.MAGIC_LENGTH);
+
+        byte[] head = new byte[BinaryMessageChannel.MAGIC_LENGTH];
+        int read = 0;
+        while (read < head.length) {
+            int n = in.read(head, read, head.length - read);
+            if (n < 0)
+                throw new EOFException("Client đóng kết nối trước khi gửi dữ liệu");
+            read += n;
+        }
+
+        if (BinaryMessageChannel.isMagic(head)) {
+            return BinaryMessageChannel.serverHandshake(socket, in);
+        }
+
+        // Java serialization (bắt đầu bằng 0xACED) - trả lại các byte đã đọc
+        in.reset();
+        return new ObjectMessageChannel(socket, in);
+    }
+
+    private static Socket openSocket(String host, int port, int connectTimeout) throws IOException {
+        Socket socket = new Socket();
+        socket.connect(new InetSocketAddress(host, port), connectTimeout);
+        return socket;
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+        }
+    }
+}
@@ -0,0 +1,336 @@
+package protocol;
+
+import tracker.FileInfo;
+import utils.ChunkBitSet;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Mã hóa/giải mã Message theo giao thức nhị phân
+ *
+ * Mỗi frame: [int headerLength][int dataLength][header][data]
+ * - dataLength = -1 nếu message không có data
+ * - header: [byte type][int fieldMask][các trường có bit bật, theo thứ tự bit]
+ *
+ * Trường mới chỉ được thêm vào cuối (bit cao hơn) để decoder cũ đọc các trường
+ * đã biết rồi bỏ qua phần còn lại của header. FileInfo cũng có tiền tố độ dài
+ * nên có thể thêm trường theo cùng cách.
+ */
+public final class MessageCodec {
+    public static final int FRAME_PREFIX_LENGTH = 8;
+    public static final int MAX_HEADER_LENGTH = 16 * 1024 * 1024; // Danh sách file lớn
+    public static final int MAX_DATA_LENGTH = 64 * 1024 * 1024;
+    private static final int MAX_CHUNK_INDEX = 16 * 1024 * 1024; // 1 TB với chunk 64KB, bitset tối đa 2 MB
+
+    // Bit của các trường trong header
+    private static final int F_CONTENT = 1;
+    private static final int F_FILE_LIST = 1 << 1;
+    private static final int F_FILE_INFO = 1 << 2;
+    private static final int F_PEER_PORT = 1 << 3;
+    private static final int F_FILE_SIZE = 1 << 4;
+    private static final int F_OFFSET = 1 << 5;
+    private static final int F_CHUNK_INDEX = 1 << 6;
+    private static final int F_CHUNK_SIZE = 1 << 7;
+    private static final int F_REQUEST_ID = 1 << 8;
+    private static final int F_SHARED = 1 << 9; // Cờ không có dữ liệu: có bit = true
+    private static final int F_LIMIT = 1 << 10;
+    private static final int F_CURSOR = 1 << 11;
+    private static final int F_TOTAL_RESULTS = 1 << 12;
+    private static final int F_SORT_ORDER = 1 << 13;
+    private static final int F_PAGE_TOKEN = 1 << 14;
+    private static final int F_STREAMING = 1 << 15; // Cờ không có dữ liệu
+    private static final int F_AGGREGATE = 1 << 16; // Cờ không có dữ liệu
+
+    private static final Message.Type[] TYPES = Message.Type.values();
+
+    private MessageCodec() {
+    }
+
+    // ==================== ENCODE ====================
+
+    /**
+     * Mã hóa header của message (không gồm data)
+     */
+    public static byte[] encodeHeader(Message m) throws IOException {
+        int mask = 0;
+        if (m.getContent() != null)
+            mask |= F_CONTENT;
+        if (m.getFileList() != null)
+            mask |= F_FILE_LIST;
+        if (m.getFileInfo() != null)
+            mask |= F_FILE_INFO;
+        if (m.getPeerPort() != 0)
+            mask |= F_PEER_PORT;
+        if (m.getFileSize() != 0)
+            mask |= F_FILE_SIZE;
+        if (m.getOffset() != 0)
+            mask |= F_OFFSET;
+        if (m.getChunkIndex() != 0)
+            mask |= F_CHUNK_INDEX;
+        if (m.getChunkSize() != 0)
+            mask |= F_CHUNK_SIZE;
+        if (m.getRequestId() != 0)
+            mask |= F_REQUEST_ID;
+        if (m.isShared())
+            mask |= F_SHARED;
+        if (m.getLimit() != 0)
+            mask |= F_LIMIT;
+        if (m.getCursor() != 0)
+            mask |= F_CURSOR;
+        if (m.getTotalResults() != 0)
+            mask |= F_TOTAL_RESULTS;
+        if (m.getSortOrder() != null)
+            mask |= F_SORT_ORDER;
+        if (m.getPageToken() != null)
+            mask |= F_PAGE_TOKEN;
+        if (m.isStreaming())
+            mask |= F_STREAMING;
+        if (m.isAggregate())
+            mask |= F_AGGREGATE;
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(m.getType().ordinal());
+        out.writeInt(mask);
+
+        if ((mask & F_CONTENT) != 0)
+            writeString(out, m.getContent());
+        if ((mask & F_FILE_LIST) != 0) {
+            out.writeInt(m.getFileList().size());
+            for (FileInfo info : m.getFileList()) {
+                writeFileInfo(out, info);
+            }
+        }
+        if ((mask & F_FILE_INFO) != 0)
+            writeFileInfo(out, m.getFileInfo());
+        if ((mask & F_PEER_PORT) != 0)
+            out.writeInt(m.getPeerPort());
+        if ((mask & F_FILE_SIZE) != 0)
+            out.writeLong(m.getFileSize());
+        if ((mask & F_OFFSET) != 0)
+            out.writeLong(m.getOffset());
+        if ((mask & F_CHUNK_INDEX) != 0)
+            out.writeInt(m.getChunkIndex());
+        if ((mask & F_CHUNK_SIZE) != 0)
+            out.writeInt(m.getChunkSize());
+        if ((mask & F_REQUEST_ID) != 0)
+            out.writeInt(m.getRequestId());
+        if ((mask & F_LIMIT) != 0)
+            out.writeInt(m.getLimit());
+        if ((mask & F_CURSOR) != 0)
+            out.writeInt(m.getCursor());
+        if ((mask & F_TOTAL_RESULTS) != 0)
+            out.writeInt(m.getTotalResults());
+        if ((mask & F_SORT_ORDER) != 0)
+            writeString(out, m.getSortOrder());
+        if ((mask & F_PAGE_TOKEN) != 0)
+            writeString(out, m.getPageToken());
+
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Mã hóa phần đầu frame [headerLength][dataLength][header] vào ByteBuffer sẵn sàng để ghi
+     * (dùng cho server NIO, payload được gửi riêng)
+     */
+    public static ByteBuffer encodeFrameHead(Message m, int dataLength) throws IOException {
+        byte[] header = encodeHeader(m);
+        ByteBuffer buffer = ByteBuffer.allocate(FRAME_PREFIX_LENGTH + header.length);
+        buffer.putInt(header.length);
+        buffer.putInt(dataLength);
+        buffer.put(header);
+        buffer.flip();
+        return buffer;
+    }
+
+    private static void writeFileInfo(DataOutputStream out, FileInfo info) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(96);
+        DataOutputStream f = new DataOutputStream(bytes);
+        writeString(f, info.getFileName());
+        f.writeLong(info.getFileSize());
+        writeString(f, info.getPeerIP());
+        f.writeInt(info.getPeerPort());
+        writeString(f, info.getFileHash());
+        f.writeInt(info.getFileDbId());
+        f.writeInt(info.getTotalChunks());
+        f.writeInt(info.getSeedCount());
+
+        // Trên dây vẫn là danh sách chỉ số chunk như bản cũ
+        ChunkBitSet chunks = info.getAvailableChunks();
+        if (chunks == null) {
+            f.writeInt(-1);
+        } else {
+            f.writeInt(chunks.cardinality());
+            for (int chunk = chunks.nextSetBit(0); chunk >= 0; chunk = chunks.nextSetBit(chunk + 1)) {
+                f.writeInt(chunk);
+            }
+        }
+
+        List<String> samples = info.getSampleSources();
+        if (samples == null) {
+            f.writeInt(-1);
+        } else {
+            f.writeInt(samples.size());
+            for (String source : samples) {
+                writeString(f, source);
+            }
+        }
+        f.writeInt(info.getChunkSize());
+        f.flush();
+
+        out.writeInt(bytes.size());
+        bytes.writeTo(out);
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        if (s == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] b = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(b.length);
+        out.write(b);
+    }
+
+    // ==================== DECODE ====================
+
+    /**
+     * Giải mã header (data được gán riêng bởi người gọi)
+     */
+    public static Message decodeHeader(byte[] header) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(header));
+
+        int ordinal = in.readUnsignedByte();
+        if (ordinal >= TYPES.length) {
+            throw new IOException("Loại message không hỗ trợ: " + ordinal);
+        }
+        Message m = new Message(TYPES[ordinal]);
+        int mask = in.readInt();
+
+        if ((mask & F_CONTENT) != 0)
+            m.setContent(readString(in));
+        if ((mask & F_FILE_LIST) != 0) {
+            int count = in.readInt();
+            checkCount(count, header.length);
+            List<FileInfo> list = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                list.add(readFileInfo(in));
+            }
+            m.setFileList(list);
+        }
+        if ((mask & F_FILE_INFO) != 0)
+            m.setFileInfo(readFileInfo(in));
+        if ((mask & F_PEER_PORT) != 0)
+            m.setPeerPort(in.readInt());
+        if ((mask & F_FILE_SIZE) != 0)
+            m.setFileSize(in.readLong());
+        if ((mask & F_OFFSET) != 0)
+            m.setOffset(in.readLong());
+        if ((mask & F_CHUNK_INDEX) != 0)
+            m.setChunkIndex(in.readInt());
+        if ((mask & F_CHUNK_SIZE) != 0)
+            m.setChunkSize(in.readInt());
+        if ((mask & F_REQUEST_ID) != 0)
+            m.setRequestId(in.readInt());
+        m.setShared((mask & F_SHARED) != 0);
+        if ((mask & F_LIMIT) != 0)
+            m.setLimit(in.readInt());
+        if ((mask & F_CURSOR) != 0)
+            m.setCursor(in.readInt());
+        if ((mask & F_TOTAL_RESULTS) != 0)
+            m.setTotalResults(in.readInt());
+        if ((mask & F_SORT_ORDER) != 0)
+            m.setSortOrder(readString(in));
+        if ((mask & F_PAGE_TOKEN) != 0)
+            m.setPageToken(readString(in));
+        m.setStreaming((mask & F_STREAMING) != 0);
+        m.setAggregate((mask & F_AGGREGATE) != 0);
+
+        // Các bit chưa biết (từ phiên bản mới hơn) nằm ở cuối header - bỏ qua
+        return m;
+    }
+
+    private static FileInfo readFileInfo(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        byte[] blob = new byte[checkCount(length, MAX_HEADER_LENGTH)];
+        in.readFully(blob);
+        DataInputStream f = new DataInputStream(new ByteArrayInputStream(blob));
+
+        FileInfo info = new FileInfo(readString(f), f.readLong(), readString(f), f.readInt());
+        info.setFileHash(readString(f));
+        info.setFileDbId(f.readInt());
+        info.setTotalChunks(f.readInt());
+        info.setSeedCount(f.readInt());
+
+        int chunkCount = f.readInt();
+        int[] chunks = null;
+        if (chunkCount >= 0) {
+            checkCount(chunkCount, blob.length);
+            chunks = new int[chunkCount];
+            for (int i = 0; i < chunkCount; i++) {
+                chunks[i] = f.readInt();
+            }
+        }
+
+        // FileInfo từ phiên bản cũ kết thúc ở danh sách chunk
+        if (f.available() >= 4) {
+            int sampleCount = f.readInt();
+            if (sampleCount >= 0) {
+                checkCount(sampleCount, blob.length);
+                List<String> samples = new ArrayList<>(sampleCount);
+                for (int i = 0; i < sampleCount; i++) {
+                    samples.add(readString(f));
+                }
+                info.setSampleSources(samples);
+            }
+        }
+
+        // Không có kích thước chunk: bên gửi là bản cũ, luôn chia 64KB
+        int chunkSize = f.available() >= 4 ? f.readInt() : 0;
+        info.setChunkSize(FileInfo.isValidChunkSize(chunkSize) ? chunkSize : 0);
+
+        info.setAvailableChunks(chunks != null ? toChunkBitSet(chunks, info) : null);
+        return info;
+    }
+
+    /**
+     * Bitset chỉ lớn tới chunk cao nhất thực có - không tin totalChunks bên gửi khai
+     * - Chỉ số phải nằm trong số chunk của fileSize/chunkSize (nếu biết fileSize)
+     */
+    private static ChunkBitSet toChunkBitSet(int[] chunks, FileInfo info) throws IOException {
+        int limit = MAX_CHUNK_INDEX;
+        if (info.getFileSize() > 0)
+            limit = (int) Math.min(limit, (info.getFileSize() + info.getChunkSize() - 1) / info.getChunkSize());
+        int size = 0;
+        for (int chunk : chunks) {
+            if (chunk < 0 || chunk >= limit)
+                throw new IOException("Chỉ số chunk không hợp lệ: " + chunk);
+            size = Math.max(size, chunk + 1);
+        }
+        ChunkBitSet bits = new ChunkBitSet(size);
+        for (int chunk : chunks) {
+            bits.set(chunk);
+        }
+        return bits;
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0)
+            return null;
+        byte[] b = new byte[checkCount(length, MAX_HEADER_LENGTH)];
+        in.readFully(b);
+        return new String(b, StandardCharsets.UTF_8);
+    }
+
+    private static int checkCount(int count, int limit) throws IOException {
+        if (count < 0 || count > limit) {
+            throw new IOException("Độ dài không hợp lệ trong header: " + count);
+        }
+        return count;
+    }
+}
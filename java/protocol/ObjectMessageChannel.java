@@ -0,0 +1,53 @@
+package protocol;
+
+import java.io.*;
+import java.net.Socket;
+
+/**
+ * Kênh dùng Java serialization (định dạng cũ) - giữ để tương thích peer/tracker bản cũ
+ */
+public class ObjectMessageChannel extends MessageChannel {
+    private final ObjectOutputStream out;
+    private final ObjectInputStream in;
+
+    /**
+     * Phía client
+     */
+    ObjectMessageChannel(Socket socket) throws IOException {
+        super(socket);
+        this.out = new ObjectOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        this.out.flush(); // Gửi stream header trước để bên kia tạo được ObjectInputStream
+        this.in = new ObjectInputStream(new BufferedInputStream(socket.getInputStream()));
+    }
+
+    /**
+     * Phía server - input đã được đọc thử để nhận diện giao thức
+     */
+    ObjectMessageChannel(Socket socket, InputStream sniffedInput) throws IOException {
+        super(socket);
+        this.out = new ObjectOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        this.out.flush();
+        this.in = new ObjectInputStream(sniffedInput);
+    }
+
+    @Override
+    public void send(Message message) throws IOException {
+        out.writeObject(message);
+        out.flush();
+        out.reset(); // Quan trọng: reset cache để tránh giữ tham chiếu tới các message đã gửi
+    }
+
+    @Override
+    public Message receive() throws IOException {
+        try {
+            return (Message) in.readObject();
+        } catch (ClassNotFoundException | ClassCastException e) {
+            throw new IOException("Message không hợp lệ: " + e.getMessage());
+        }
+    }
+
+    @Override
+    public boolean isBinary() {
+        return false;
+    }
+}
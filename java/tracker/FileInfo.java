@@ -1,6 +1,8 @@
 package tracker;
 
-import java.io.Serializable;
+import utils.ChunkBitSet;
+
+import java.io.*;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -11,6 +13,11 @@ import java.util.List;
 public class FileInfo implements Serializable {
     private static final long serialVersionUID = 2L;
 
+    // Kích thước chunk: chọn theo kích thước file lúc publish, khoảng 64KB - 4MB
+    public static final int DEFAULT_CHUNK_SIZE = 64 * 1024; // Cũng là kích thước của peer/tracker bản cũ
+    public static final int MAX_CHUNK_SIZE = 4 * 1024 * 1024;
+    private static final int TARGET_CHUNKS = 2048; // File lớn: giữ số chunk quanh mức này
+
     private String fileName; // Tên file
     private long fileSize; // Kích thước file (bytes)
     private String peerIP; // IP của peer sở hữu file
@@ -19,9 +26,26 @@ public class FileInfo implements Serializable {
 
     // Các trường mới cho Multi-source và Resume
     private int fileDbId; // ID trong database
+    private int chunkSize; // Kích thước chunk (0 = bản cũ, tức DEFAULT_CHUNK_SIZE)
     private int totalChunks; // Tổng số chunks
-    private List<Integer> availableChunks; // Danh sách chunks peer này có
+    private transient ChunkBitSet availableChunks; // Chunk peer này có (null/rỗng = đủ file)
     private int seedCount; // Số peer đang seed file này
+    private List<String> sampleSources; // Kết quả gộp: vài nguồn mẫu "ip:port" (đủ danh sách qua GET_FILE_SOURCES)
+
+    // Dạng serialize giữ như bản cũ (availableChunks là List<Integer>) để peer/tracker cũ vẫn đọc được
+    private static final ObjectStreamField[] serialPersistentFields = {
+            new ObjectStreamField("fileName", String.class),
+            new ObjectStreamField("fileSize", long.class),
+            new ObjectStreamField("peerIP", String.class),
+            new ObjectStreamField("peerPort", int.class),
+            new ObjectStreamField("fileHash", String.class),
+            new ObjectStreamField("fileDbId", int.class),
+            new ObjectStreamField("chunkSize", int.class),
+            new ObjectStreamField("totalChunks", int.class),
+            new ObjectStreamField("availableChunks", List.class),
+            new ObjectStreamField("seedCount", int.class),
+            new ObjectStreamField("sampleSources", List.class)
+    };
 
     public FileInfo(String fileName, long fileSize, String peerIP, int peerPort) {
         this.fileName = fileName;
@@ -29,8 +53,28 @@ public class FileInfo implements Serializable {
         this.peerIP = peerIP;
         this.peerPort = peerPort;
         this.fileHash = null; // Hash phải được set riêng bằng setFileHash() từ MD5 calculation
-        this.totalChunks = (int) Math.ceil((double) fileSize / (64 * 1024));
-        this.availableChunks = new ArrayList<>();
+        this.chunkSize = chooseChunkSize(fileSize);
+        this.totalChunks = chunkCount(fileSize, chunkSize);
+    }
+
+    /**
+     * Chọn kích thước chunk cho file: lũy thừa của 2 nhỏ nhất để file có không quá
+     * TARGET_CHUNKS chunk, giới hạn trong [DEFAULT_CHUNK_SIZE, MAX_CHUNK_SIZE]
+     */
+    public static int chooseChunkSize(long fileSize) {
+        int chunkSize = DEFAULT_CHUNK_SIZE;
+        while (chunkSize < MAX_CHUNK_SIZE && (long) chunkSize * TARGET_CHUNKS < fileSize) {
+            chunkSize *= 2;
+        }
+        return chunkSize;
+    }
+
+    public static boolean isValidChunkSize(int chunkSize) {
+        return chunkSize > 0 && chunkSize <= MAX_CHUNK_SIZE;
+    }
+
+    public static int chunkCount(long fileSize, int chunkSize) {
+        return (int) ((fileSize + chunkSize - 1) / chunkSize);
     }
 
     // ĐÃ XÓA calculateSimpleHash - không dùng nữa vì gây conflict với MD5 hash thực
@@ -84,6 +128,18 @@ public class FileInfo implements Serializable {
         this.fileDbId = fileDbId;
     }
 
+    public int getChunkSize() {
+        return chunkSize > 0 ? chunkSize : DEFAULT_CHUNK_SIZE;
+    }
+
+    /**
+     * Đổi kích thước chunk (tính lại số chunk)
+     */
+    public void setChunkSize(int chunkSize) {
+        this.chunkSize = chunkSize;
+        this.totalChunks = chunkCount(fileSize, getChunkSize());
+    }
+
     public int getTotalChunks() {
         return totalChunks;
     }
@@ -92,11 +148,11 @@ public class FileInfo implements Serializable {
         this.totalChunks = totalChunks;
     }
 
-    public List<Integer> getAvailableChunks() {
+    public ChunkBitSet getAvailableChunks() {
         return availableChunks;
     }
 
-    public void setAvailableChunks(List<Integer> availableChunks) {
+    public void setAvailableChunks(ChunkBitSet availableChunks) {
         this.availableChunks = availableChunks;
     }
 
@@ -108,6 +164,47 @@ public class FileInfo implements Serializable {
         this.seedCount = seedCount;
     }
 
+    public List<String> getSampleSources() {
+        return sampleSources;
+    }
+
+    public void setSampleSources(List<String> sampleSources) {
+        this.sampleSources = sampleSources;
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        ObjectOutputStream.PutField fields = out.putFields();
+        fields.put("fileName", fileName);
+        fields.put("fileSize", fileSize);
+        fields.put("peerIP", peerIP);
+        fields.put("peerPort", peerPort);
+        fields.put("fileHash", fileHash);
+        fields.put("fileDbId", fileDbId);
+        fields.put("chunkSize", chunkSize);
+        fields.put("totalChunks", totalChunks);
+        fields.put("availableChunks", availableChunks != null ? availableChunks.toList() : new ArrayList<Integer>());
+        fields.put("seedCount", seedCount);
+        fields.put("sampleSources", sampleSources);
+        out.writeFields();
+    }
+
+    @SuppressWarnings("unchecked")
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        ObjectInputStream.GetField fields = in.readFields();
+        fileName = (String) fields.get("fileName", null);
+        fileSize = fields.get("fileSize", 0L);
+        peerIP = (String) fields.get("peerIP", null);
+        peerPort = fields.get("peerPort", 0);
+        fileHash = (String) fields.get("fileHash", null);
+        fileDbId = fields.get("fileDbId", 0);
+        chunkSize = fields.get("chunkSize", 0);
+        totalChunks = fields.get("totalChunks", 0);
+        seedCount = fields.get("seedCount", 0);
+        sampleSources = (List<String>) fields.get("sampleSources", null);
+        List<Integer> chunks = (List<Integer>) fields.get("availableChunks", null);
+        availableChunks = chunks == null || chunks.isEmpty() ? null : ChunkBitSet.of(chunks, totalChunks);
+    }
+
     // Format kích thước file cho dễ đọc
     public String getFormattedSize() {
         if (fileSize < 1024)
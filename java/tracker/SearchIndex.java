@@ -0,0 +1,197 @@
+package tracker;
+
+import java.text.Normalizer;
+import java.util.*;
+import java.util.function.ToIntFunction;
+
+/**
+ * Inverted index cho tìm kiếm tên file trên tracker
+ *
+ * - Chuẩn hóa: chữ thường, bỏ dấu tiếng Việt (đ -> d), ký tự không phải chữ/số thành khoảng trắng
+ * - Mỗi từ của tên được tách thành trigram; từ khóa >= 3 ký tự tìm ứng viên bằng giao
+ *   các posting list, rồi kiểm tra lại bằng contains (khớp chuỗi con như LIKE '%...%')
+ * - Từ khóa ngắn hơn 3 ký tự chỉ lọc trên ứng viên của từ khóa dài, hoặc quét toàn bộ
+ *   nếu mọi từ khóa đều ngắn
+ *
+ * Không tự đồng bộ - TrackerIndex gọi dưới khóa của nó
+ */
+public class SearchIndex {
+    private static final int GRAM = 3;
+
+    private final Map<String, String> names = new HashMap<>(); // key -> tên đã chuẩn hóa
+    private final Map<String, Set<String>> postings = new HashMap<>(); // trigram -> keys
+
+    /**
+     * Kết quả khớp kèm điểm xếp hạng
+     */
+    public static class Match {
+        public final String key;
+        public final int score;
+        public final int seeds; // Tính một lần khi khớp, không tính lại mỗi lần so sánh
+        final String name;
+
+        Match(String key, int score, int seeds, String name) {
+            this.key = key;
+            this.score = score;
+            this.seeds = seeds;
+            this.name = name;
+        }
+    }
+
+    public void add(String key, String fileName) {
+        remove(key);
+        String normalized = normalize(fileName);
+        names.put(key, normalized);
+        for (String gram : gramsOf(normalized)) {
+            postings.computeIfAbsent(gram, g -> new HashSet<>()).add(key);
+        }
+    }
+
+    public void remove(String key) {
+        String normalized = names.remove(key);
+        if (normalized == null)
+            return;
+        for (String gram : gramsOf(normalized)) {
+            Set<String> keys = postings.get(gram);
+            if (keys != null) {
+                keys.remove(key);
+                if (keys.isEmpty())
+                    postings.remove(gram);
+            }
+        }
+    }
+
+    public int size() {
+        return names.size();
+    }
+
+    /**
+     * Tìm các key có tên chứa mọi từ khóa, xếp theo điểm giảm dần
+     * (hòa điểm: nhiều seed hơn, tên ngắn hơn, rồi theo thứ tự chữ cái)
+     *
+     * @param seeds số seed của key - gọi đúng một lần cho mỗi key khớp
+     */
+    public List<Match> search(String query, ToIntFunction<String> seeds) {
+        String normalizedQuery = normalize(query == null ? "" : query);
+        String[] tokens = normalizedQuery.isEmpty() ? new String[0] : normalizedQuery.split(" ");
+
+        List<Match> matches = new ArrayList<>();
+        for (String key : candidates(tokens)) {
+            String name = names.get(key);
+            if (name != null && containsAll(name, tokens)) {
+                matches.add(new Match(key, score(name, normalizedQuery, tokens), seeds.applyAsInt(key), name));
+            }
+        }
+
+        matches.sort((a, b) -> {
+            if (a.score != b.score)
+                return Integer.compare(b.score, a.score);
+            if (a.seeds != b.seeds)
+                return Integer.compare(b.seeds, a.seeds);
+            if (a.name.length() != b.name.length())
+                return Integer.compare(a.name.length(), b.name.length());
+            return a.name.compareTo(b.name);
+        });
+        return matches;
+    }
+
+    /**
+     * Giao posting list của mọi trigram trong các từ khóa dài; không có từ khóa dài -> tất cả
+     */
+    private Collection<String> candidates(String[] tokens) {
+        Set<String> result = null;
+        for (String token : tokens) {
+            if (token.length() < GRAM)
+                continue;
+            for (int i = 0; i + GRAM <= token.length(); i++) {
+                Set<String> keys = postings.get(token.substring(i, i + GRAM));
+                if (keys == null)
+                    return Collections.emptySet();
+                if (result == null) {
+                    result = new HashSet<>(keys);
+                } else {
+                    result.retainAll(keys);
+                }
+                if (result.isEmpty())
+                    return result;
+            }
+        }
+        return result != null ? result : names.keySet();
+    }
+
+    private static boolean containsAll(String name, String[] tokens) {
+        for (String token : tokens) {
+            if (!name.contains(token))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Điểm: khớp cả tên > tên bắt đầu bằng từ khóa > chứa nguyên cụm,
+     * cộng thêm cho từ khóa trùng một từ hoặc là đầu một từ của tên
+     */
+    private static int score(String name, String query, String[] tokens) {
+        int score = 0;
+        if (!query.isEmpty()) {
+            if (name.equals(query)) {
+                score += 1000;
+            } else if (name.startsWith(query)) {
+                score += 500;
+            } else if (name.contains(query)) {
+                score += 200;
+            }
+        }
+
+        String[] words = name.split(" ");
+        for (String token : tokens) {
+            int best = 0;
+            for (String word : words) {
+                if (word.equals(token)) {
+                    best = 50;
+                    break;
+                }
+                if (word.startsWith(token))
+                    best = 20;
+            }
+            score += best;
+        }
+        return score;
+    }
+
+    private static Set<String> gramsOf(String normalized) {
+        Set<String> grams = new HashSet<>();
+        for (String word : normalized.split(" ")) {
+            for (int i = 0; i + GRAM <= word.length(); i++) {
+                grams.add(word.substring(i, i + GRAM));
+            }
+        }
+        return grams;
+    }
+
+    /**
+     * Chuẩn hóa tên/từ khóa: "Bài Hát-Đẹp.MP3" -> "bai hat dep mp3"
+     */
+    public static String normalize(String text) {
+        String decomposed = Normalizer.normalize(text.toLowerCase(Locale.ROOT).replace('đ', 'd'),
+                Normalizer.Form.NFD);
+        StringBuilder sb = new StringBuilder(decomposed.length());
+        boolean space = true; // Bỏ khoảng trắng đầu và gộp khoảng trắng liên tiếp
+        for (int i = 0; i < decomposed.length(); i++) {
+            char c = decomposed.charAt(i);
+            if (Character.getType(c) == Character.NON_SPACING_MARK)
+                continue;
+            if (Character.isLetterOrDigit(c)) {
+                sb.append(c);
+                space = false;
+            } else if (!space) {
+                sb.append(' ');
+                space = true;
+            }
+        }
+        int end = sb.length();
+        if (end > 0 && sb.charAt(end - 1) == ' ')
+            sb.setLength(end - 1);
+        return sb.toString();
+    }
+}
@@ -0,0 +1,45 @@
+package tracker;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Một trang kết quả tìm kiếm
+ * - results: mỗi dòng là một cặp (file, peer), các dòng của cùng một file luôn nằm trên cùng trang
+ * - total: tổng số file khớp
+ * - nextCursor: cursor của trang sau, 0 nếu đã hết
+ * - nextToken: token của trang sau (ổn định khi danh sách thay đổi), null nếu đã hết
+ */
+public class SearchPage {
+    private final List<FileInfo> results;
+    private final int total;
+    private final int nextCursor;
+    private final String nextToken;
+
+    public SearchPage(List<FileInfo> results, int total, int nextCursor, String nextToken) {
+        this.results = results != null ? results : new ArrayList<>();
+        this.total = total;
+        this.nextCursor = nextCursor;
+        this.nextToken = nextToken;
+    }
+
+    public List<FileInfo> getResults() {
+        return results;
+    }
+
+    public int getTotal() {
+        return total;
+    }
+
+    public int getNextCursor() {
+        return nextCursor;
+    }
+
+    public String getNextToken() {
+        return nextToken;
+    }
+
+    public boolean hasMore() {
+        return nextCursor > 0;
+    }
+}
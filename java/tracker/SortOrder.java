@@ -0,0 +1,24 @@
+package tracker;
+
+/**
+ * Thứ tự sắp xếp kết quả tìm kiếm / danh sách file
+ */
+public enum SortOrder {
+    RELEVANCE, // Độ khớp tên (từ khóa rỗng: nhiều seed trước)
+    NAME, // Tên A-Z
+    SIZE, // Kích thước lớn trước
+    SEEDS; // Nhiều seed trước
+
+    /**
+     * Đọc từ message (null hoặc giá trị lạ từ phiên bản khác -> RELEVANCE)
+     */
+    public static SortOrder parse(String value) {
+        if (value == null)
+            return RELEVANCE;
+        try {
+            return valueOf(value.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            return RELEVANCE;
+        }
+    }
+}
@@ -0,0 +1,180 @@
+package tracker;
+
+import protocol.Message;
+import protocol.MessageChannel;
+import utils.NetworkUtils;
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Đo số REGISTER tracker xử lý được mỗi giây khi cả mạng peer kết nối cùng lúc
+ * (mô phỏng cả mạng khởi động lại sau bảo trì)
+ * - Tracker chạy inMemory: không đọc/ghi MySQL, kết quả không phụ thuộc trạng thái DB
+ * - Mỗi vòng mở sẵn đủ N kết nối (tracker giữ N handler cùng lúc), rồi mọi peer gửi
+ *   REGISTER cùng một thời điểm; thời gian tính từ lúc gửi tới khi nhận đủ phản hồi
+ * - Mỗi số peer chạy ROUNDS vòng, in trung vị cùng min/max
+ *
+ * Cách chạy: java tracker.TrackerBenchmark [cached|virtual] [port]
+ * 10000 peers cần khoảng 20000 file descriptor (ulimit -n)
+ */
+public class TrackerBenchmark {
+    private static final int[] PEER_COUNTS = { 1000, 10000 };
+    private static final int ROUNDS = 5;
+    private static final int CLIENT_THREADS = 32; // Mỗi thread giữ peers/32 kết nối
+    private static final int CONNECT_TIMEOUT = 10000;
+    private static final long ROUND_PAUSE_MS = 2000; // Chờ tracker đóng hết kết nối của vòng trước
+
+    public static void main(String[] args) throws Exception {
+        TrackerServer.ExecutionMode mode = args.length > 0 ? TrackerServer.ExecutionMode.parse(args[0])
+                : TrackerServer.ExecutionMode.fromSystemProperty();
+        int port = args.length > 1 ? Integer.parseInt(args[1]) : 5099;
+
+        PrintStream console = new PrintStream(new FileOutputStream(FileDescriptor.out), true, "UTF-8");
+        PrintStream silent = new PrintStream(OutputStream.nullOutputStream());
+
+        // Tracker log mỗi request - tắt log trong lúc đo
+        System.setOut(silent);
+        System.setErr(silent);
+
+        TrackerServer tracker = TrackerServer.inMemory(port, mode);
+        Thread trackerThread = new Thread(tracker::start, "tracker-benchmark");
+        trackerThread.setDaemon(true);
+        trackerThread.start();
+        while (!NetworkUtils.testConnection("localhost", port, 1000)) {
+            Thread.sleep(100);
+        }
+
+        console.println("═══════════════════════════════════════════");
+        console.println("  TRACKER BENCHMARK - chế độ " + tracker.getExecutionMode()
+                + (tracker.getExecutionMode() != mode ? " (JVM không hỗ trợ " + mode + ")" : ""));
+        console.println("  Tracker không dùng DB, " + ROUNDS + " vòng mỗi số peer");
+        console.println("═══════════════════════════════════════════");
+
+        runRound(port, 1000); // Làm nóng JIT
+        for (int peers : PEER_COUNTS) {
+            long[] millis = new long[ROUNDS];
+            int errors = 0;
+            int peakThreads = 0;
+            for (int i = 0; i < ROUNDS; i++) {
+                Thread.sleep(ROUND_PAUSE_MS);
+                ManagementFactory.getThreadMXBean().resetPeakThreadCount();
+                Result r = runRound(port, peers);
+                millis[i] = r.elapsedMillis;
+                errors += r.errors;
+                peakThreads = Math.max(peakThreads, ManagementFactory.getThreadMXBean().getPeakThreadCount());
+            }
+            Arrays.sort(millis);
+            long median = millis[ROUNDS / 2];
+            console.printf("  %6d peers: %6d ms (min %d, max %d), %8.0f REGISTER/s, lỗi: %d, peak threads: %d%n",
+                    peers, median, millis[0], millis[ROUNDS - 1], peers * 1000.0 / Math.max(1, median), errors,
+                    peakThreads);
+        }
+        console.println("  (peak threads gồm cả " + CLIENT_THREADS + " thread của client giả lập)");
+
+        tracker.stop();
+    }
+
+    /**
+     * Mở đủ peers kết nối, chờ tất cả sẵn sàng rồi cho mọi peer REGISTER cùng lúc
+     */
+    private static Result runRound(int port, int peers) throws InterruptedException {
+        int threads = Math.min(CLIENT_THREADS, peers);
+        AtomicInteger succeeded = new AtomicInteger();
+        CountDownLatch connected = new CountDownLatch(threads);
+        CountDownLatch go = new CountDownLatch(1);
+        CountDownLatch registered = new CountDownLatch(threads);
+        CountDownLatch closed = new CountDownLatch(threads);
+
+        for (int t = 0; t < threads; t++) {
+            int from = peers * t / threads;
+            int to = peers * (t + 1) / threads;
+            Thread client = new Thread(() -> {
+                List<MessageChannel> channels = new ArrayList<>();
+                try {
+                    try {
+                        for (int i = from; i < to; i++) {
+                            channels.add(connect(port));
+                        }
+                    } finally {
+                        connected.countDown(); // Kể cả khi không tạo nổi thêm thread/socket
+                    }
+                    go.await();
+                    registerAll(channels, from, succeeded);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    registered.countDown();
+                    for (MessageChannel channel : channels) {
+                        if (channel != null)
+                            channel.close();
+                    }
+                    closed.countDown();
+                }
+            }, "benchmark-client-" + t);
+            client.setDaemon(true);
+            client.start();
+        }
+
+        connected.await();
+        long start = System.nanoTime();
+        go.countDown();
+        registered.await();
+        long elapsed = (System.nanoTime() - start) / 1_000_000;
+        closed.await();
+        return new Result(elapsed, peers - succeeded.get()); // Mọi peer không nhận được REGISTER_OK là lỗi
+    }
+
+    private static MessageChannel connect(int port) {
+        try {
+            MessageChannel channel = MessageChannel.connect("localhost", port, CONNECT_TIMEOUT);
+            channel.getSocket().setSoTimeout(CONNECT_TIMEOUT); // Tracker hết file descriptor thì báo lỗi, không treo
+            return channel;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Gửi REGISTER trên mọi kết nối trước, sau đó mới đọc phản hồi (các peer không chờ nhau)
+     */
+    private static void registerAll(List<MessageChannel> channels, int firstPeer, AtomicInteger succeeded) {
+        boolean[] sent = new boolean[channels.size()];
+        for (int i = 0; i < channels.size(); i++) {
+            MessageChannel channel = channels.get(i);
+            if (channel == null)
+                continue;
+            try {
+                Message msg = new Message(Message.Type.REGISTER);
+                msg.setPeerPort(20000 + firstPeer + i);
+                channel.send(msg);
+                sent[i] = true;
+            } catch (IOException e) {
+                // Tính là lỗi khi tổng kết
+            }
+        }
+        for (int i = 0; i < channels.size(); i++) {
+            if (!sent[i])
+                continue;
+            try {
+                Message response = channels.get(i).receive();
+                if (response.getType() == Message.Type.REGISTER_OK)
+                    succeeded.incrementAndGet();
+            } catch (IOException e) {
+                // Tính là lỗi khi tổng kết
+            }
+        }
+    }
+
+    private static class Result {
+        final long elapsedMillis;
+        final int errors;
+
+        Result(long elapsedMillis, int errors) {
+            this.elapsedMillis = elapsedMillis;
+            this.errors = errors;
+        }
+    }
+}
@@ -0,0 +1,554 @@
+package tracker;
+
+import database.DatabaseManager;
+import database.DatabaseManager.PeerFileRecord;
+import utils.ChunkBitSet;
+import java.util.*;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Index trong RAM của tracker - nguồn dữ liệu chính cho SEARCH, GET_ALL_FILES
+ * và GET_FILE_SOURCES (database chỉ còn là nơi lưu bền, ghi sau)
+ *
+ * - files: theo file hash (một bản ghi cho mỗi nội dung, tên là tên lần publish đầu
+ *   như bảng files)
+ * - peers: theo peerID, kèm trạng thái online và các file peer đang giữ
+ * - Chỉ trả về liên kết của peer online và đang chia sẻ (is_shared), giống câu JOIN cũ
+ * - Tên file được đánh chỉ mục trong SearchIndex, cập nhật khi file xuất hiện/biến mất
+ */
+public class TrackerIndex {
+    public static final int SAMPLE_SOURCES = 5; // Số nguồn mẫu kèm mỗi kết quả gộp
+    private static final int MATCH_CACHE_SIZE = 64; // Số cặp (từ khóa, thứ tự) giữ kết quả match()
+
+    private final Map<String, SharedFile> files = new HashMap<>(); // hash -> file
+    private final Map<String, PeerEntry> peers = new HashMap<>(); // peerID -> peer
+    private final SearchIndex searchIndex = new SearchIndex(); // Khóa theo file hash
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    // Kết quả match() theo (thứ tự, từ khóa): lật trang/stream theo lô không phải tìm và sắp xếp lại.
+    // version tăng ở mọi thay đổi ảnh hưởng kết quả (ghi dưới write lock), bản cache cũ hơn bị bỏ
+    private long version;
+    private final Map<String, CachedMatch> matchCache = new LinkedHashMap<String, CachedMatch>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, CachedMatch> eldest) {
+            return size() > MATCH_CACHE_SIZE;
+        }
+    };
+
+    private static class CachedMatch {
+        final long version;
+        final List<String> ordered;
+
+        CachedMatch(long version, List<String> ordered) {
+            this.version = version;
+            this.ordered = ordered;
+        }
+    }
+
+    /**
+     * Một nội dung file (tương ứng một dòng bảng files)
+     */
+    private static class SharedFile {
+        final String fileHash;
+        final String fileName;
+        final long fileSize;
+        final int chunkSize;
+        final int totalChunks;
+        int fileDbId; // 0 cho tới khi được ghi vào DB
+        final Map<String, Link> links = new LinkedHashMap<>(); // peerID -> liên kết
+
+        SharedFile(String fileHash, String fileName, long fileSize, int chunkSize, int totalChunks,
+                int fileDbId) {
+            this.fileHash = fileHash;
+            this.fileName = fileName;
+            this.fileSize = fileSize;
+            this.chunkSize = chunkSize;
+            this.totalChunks = totalChunks;
+            this.fileDbId = fileDbId;
+        }
+    }
+
+    /**
+     * Liên kết peer-file (tương ứng một dòng bảng peer_files)
+     */
+    private static class Link {
+        final PeerEntry peer;
+        final String publishedName; // Tên file phía peer (có thể khác tên trong bảng files)
+        ChunkBitSet availableChunks;
+        boolean shared = true;
+
+        Link(PeerEntry peer, String publishedName) {
+            this.peer = peer;
+            this.publishedName = publishedName;
+        }
+    }
+
+    private static class PeerEntry {
+        final String peerId;
+        String ip;
+        int port;
+        boolean online;
+        final Set<String> hashes = new HashSet<>();
+
+        PeerEntry(String peerId, String ip, int port) {
+            this.peerId = peerId;
+            this.ip = ip;
+            this.port = port;
+        }
+    }
+
+    // ==================== KHỞI TẠO ====================
+
+    /**
+     * Dựng lại index từ database (khi tracker khởi động)
+     */
+    public void loadFrom(DatabaseManager db) {
+        List<PeerFileRecord> records = db.loadPeerFiles();
+        lock.writeLock().lock();
+        try {
+            version++;
+            for (PeerFileRecord r : records) {
+                PeerEntry peer = peers.computeIfAbsent(r.peerId, id -> new PeerEntry(id, r.ip, r.port));
+                peer.online = r.online;
+                if (r.fileDbId == 0 || r.fileHash == null)
+                    continue;
+
+                SharedFile file = files.computeIfAbsent(r.fileHash,
+                        h -> newFile(h, r.fileName, r.fileSize, r.chunkSize, r.totalChunks, r.fileDbId));
+                Link link = new Link(peer, r.fileName);
+                link.shared = r.shared;
+                link.availableChunks = r.availableChunks;
+                file.links.put(peer.peerId, link);
+                peer.hashes.add(file.fileHash);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+        System.out.println("[TRACKER] Đã nạp index từ DB: " + files.size() + " files, " + peers.size() + " peers");
+    }
+
+    // ==================== GHI ====================
+
+    public void registerPeer(String peerId, String ip, int port) {
+        lock.writeLock().lock();
+        try {
+            version++;
+            PeerEntry peer = peers.computeIfAbsent(peerId, id -> new PeerEntry(id, ip, port));
+            peer.ip = ip;
+            peer.port = port;
+            peer.online = true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Peer rời mạng: gỡ mọi liên kết file và đánh dấu offline
+     */
+    public void unregisterPeer(String peerId) {
+        lock.writeLock().lock();
+        try {
+            version++;
+            PeerEntry peer = peers.get(peerId);
+            if (peer == null)
+                return;
+            for (String hash : peer.hashes) {
+                removeLink(files.get(hash), peerId);
+            }
+            peer.hashes.clear();
+            peer.online = false;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Peer công bố file (giữ nguyên trạng thái ẩn nếu liên kết đã tồn tại, giống DB)
+     */
+    public void publish(String peerId, String ip, int port, FileInfo info, int totalChunks,
+            ChunkBitSet availableChunks) {
+        String hash = keyOf(info);
+        lock.writeLock().lock();
+        try {
+            version++;
+            PeerEntry peer = peers.computeIfAbsent(peerId, id -> new PeerEntry(id, ip, port));
+            peer.online = true;
+
+            SharedFile file = files.computeIfAbsent(hash,
+                    h -> newFile(h, info.getFileName(), info.getFileSize(), info.getChunkSize(), totalChunks, 0));
+            Link link = file.links.get(peerId);
+            if (link == null || !link.publishedName.equals(info.getFileName())) {
+                Link replaced = new Link(peer, info.getFileName());
+                if (link != null)
+                    replaced.shared = link.shared;
+                link = replaced;
+                file.links.put(peerId, link);
+            }
+            link.availableChunks = availableChunks;
+            peer.hashes.add(hash);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Gỡ file khỏi peer (theo tên trong bảng files hoặc tên peer đã publish)
+     *
+     * @return true nếu có liên kết bị gỡ
+     */
+    public boolean unpublish(String peerId, String fileName) {
+        lock.writeLock().lock();
+        try {
+            version++;
+            PeerEntry peer = peers.get(peerId);
+            if (peer == null)
+                return false;
+            boolean removed = false;
+            Iterator<String> it = peer.hashes.iterator();
+            while (it.hasNext()) {
+                SharedFile file = files.get(it.next());
+                Link link = file == null ? null : file.links.get(peerId);
+                if (link != null && (file.fileName.equals(fileName) || link.publishedName.equals(fileName))) {
+                    removeLink(file, peerId);
+                    it.remove();
+                    removed = true;
+                }
+            }
+            return removed;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void setShared(String peerId, String fileName, boolean shared) {
+        lock.writeLock().lock();
+        try {
+            version++;
+            PeerEntry peer = peers.get(peerId);
+            if (peer == null)
+                return;
+            for (String hash : peer.hashes) {
+                SharedFile file = files.get(hash);
+                Link link = file == null ? null : file.links.get(peerId);
+                if (link != null && (file.fileName.equals(fileName) || link.publishedName.equals(fileName))) {
+                    link.shared = shared;
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Kích thước chunk đã đăng ký của file (file mới: kích thước peer đề xuất)
+     */
+    public int getChunkSize(FileInfo info) {
+        lock.readLock().lock();
+        try {
+            SharedFile file = files.get(keyOf(info));
+            return file != null ? file.chunkSize : info.getChunkSize();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Gán ID database sau khi write-behind ghi xong bản ghi file
+     */
+    public void setFileDbId(String fileHash, int fileDbId) {
+        if (fileDbId <= 0)
+            return;
+        lock.writeLock().lock();
+        try {
+            SharedFile file = files.get(fileHash);
+            if (file != null)
+                file.fileDbId = fileDbId;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private SharedFile newFile(String hash, String fileName, long fileSize, int chunkSize, int totalChunks,
+            int fileDbId) {
+        searchIndex.add(hash, fileName);
+        return new SharedFile(hash, fileName, fileSize, chunkSize, totalChunks, fileDbId);
+    }
+
+    private void removeLink(SharedFile file, String peerId) {
+        if (file == null)
+            return;
+        file.links.remove(peerId);
+        if (file.links.isEmpty()) {
+            files.remove(file.fileHash); // File không còn peer nào chia sẻ (như cleanupOrphanFiles)
+            searchIndex.remove(file.fileHash);
+        }
+    }
+
+    // ==================== ĐỌC ====================
+
+    /**
+     * Tìm file theo tên (không phân biệt hoa thường và dấu), trả về tất cả kết quả
+     * Mỗi kết quả là một cặp (file, peer online đang chia sẻ)
+     */
+    public List<FileInfo> search(String keyword) {
+        return search(keyword, SortOrder.RELEVANCE, 0, null, 0).getResults();
+    }
+
+    /**
+     * Tìm file theo tên và trả về một trang (phân trang theo file)
+     *
+     * @param cursor    vị trí file bắt đầu, dùng khi không có pageToken
+     * @param pageToken token của trang trước - giữ đúng vị trí kể cả khi có file
+     *                  được thêm/gỡ giữa hai lần gọi
+     * @param limit     số file tối đa mỗi trang (<= 0: không giới hạn)
+     */
+    public SearchPage search(String keyword, SortOrder order, int cursor, String pageToken, int limit) {
+        List<String> ordered = match(keyword, order);
+        return page(ordered, startOf(ordered, cursor, pageToken), limit);
+    }
+
+    /**
+     * Ảnh chụp danh sách hash khớp từ khóa (chỉ file có nguồn hiển thị), theo thứ tự yêu cầu
+     * Dùng để cắt trang hoặc stream theo lô mà không phải tìm lại cho mỗi lô; các trang sau của
+     * cùng (từ khóa, thứ tự) dùng lại kết quả cache khi index chưa đổi (danh sách không sửa được)
+     */
+    public List<String> match(String keyword, SortOrder order) {
+        String cacheKey = order + "\u0000" + (keyword == null ? "" : keyword);
+        lock.readLock().lock();
+        try {
+            synchronized (matchCache) {
+                CachedMatch cached = matchCache.get(cacheKey);
+                if (cached != null && cached.version == version)
+                    return cached.ordered;
+            }
+
+            List<SearchIndex.Match> matches = new ArrayList<>();
+            for (SearchIndex.Match m : searchIndex.search(keyword, this::visibleLinkCount)) {
+                if (m.seeds > 0)
+                    matches.add(m);
+            }
+
+            // Sắp xếp ổn định: hòa nhau thì giữ thứ tự theo độ khớp
+            Comparator<SearchIndex.Match> comparator = null;
+            switch (order) {
+                case NAME:
+                    comparator = Comparator.comparing(m -> files.get(m.key).fileName, String.CASE_INSENSITIVE_ORDER);
+                    break;
+                case SIZE:
+                    comparator = Comparator.comparingLong((SearchIndex.Match m) -> files.get(m.key).fileSize)
+                            .reversed();
+                    break;
+                case SEEDS:
+                    comparator = Comparator.comparingInt((SearchIndex.Match m) -> m.seeds).reversed();
+                    break;
+                default:
+                    break;
+            }
+            if (comparator != null)
+                matches.sort(comparator);
+
+            List<String> ordered = new ArrayList<>(matches.size());
+            for (SearchIndex.Match m : matches) {
+                ordered.add(m.key);
+            }
+            ordered = Collections.unmodifiableList(ordered);
+            synchronized (matchCache) {
+                matchCache.put(cacheKey, new CachedMatch(version, ordered));
+            }
+            return ordered;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Cắt một trang từ ảnh chụp match()
+     */
+    public SearchPage page(List<String> ordered, int start, int limit) {
+        return page(ordered, start, limit, false);
+    }
+
+    /**
+     * Cắt một trang từ ảnh chụp match()
+     *
+     * @param aggregate true: một dòng mỗi file (aggregated), false: một dòng mỗi cặp (file, peer)
+     */
+    public SearchPage page(List<String> ordered, int start, int limit, boolean aggregate) {
+        int size = ordered.size();
+        start = Math.max(0, Math.min(start, size));
+        int end = limit > 0 ? (int) Math.min((long) start + limit, size) : size;
+
+        List<String> slice = ordered.subList(start, end);
+        List<FileInfo> results = aggregate ? aggregated(slice) : rows(slice);
+        boolean more = end < size;
+        return new SearchPage(results, size, more ? end : 0,
+                more ? end + ":" + ordered.get(end - 1) : null);
+    }
+
+    /**
+     * Dựng các dòng (file, peer) cho một đoạn hash - file đã bị gỡ hoặc ẩn hết từ lúc chụp thì bỏ qua
+     */
+    public List<FileInfo> rows(List<String> hashes) {
+        List<FileInfo> results = new ArrayList<>();
+        lock.readLock().lock();
+        try {
+            for (String hash : hashes) {
+                SharedFile file = files.get(hash);
+                if (file != null)
+                    addVisibleLinks(file, results, false);
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        return results;
+    }
+
+    /**
+     * Một dòng cho mỗi file: nguồn đầu tiên làm peer đại diện, seedCount là số nguồn hiển thị,
+     * kèm tối đa SAMPLE_SOURCES nguồn "ip:port"
+     */
+    public List<FileInfo> aggregated(List<String> hashes) {
+        List<FileInfo> results = new ArrayList<>(hashes.size());
+        lock.readLock().lock();
+        try {
+            for (String hash : hashes) {
+                SharedFile file = files.get(hash);
+                if (file == null)
+                    continue;
+                FileInfo entry = null;
+                List<String> samples = new ArrayList<>();
+                int seeds = 0;
+                for (Link link : file.links.values()) {
+                    if (!link.shared || !link.peer.online)
+                        continue;
+                    if (entry == null)
+                        entry = toFileInfo(file, link);
+                    if (samples.size() < SAMPLE_SOURCES)
+                        samples.add(link.peer.ip + ":" + link.peer.port);
+                    seeds++;
+                }
+                if (entry == null)
+                    continue; // Đã ẩn/gỡ hết từ lúc chụp
+                entry.setSeedCount(seeds);
+                entry.setSampleSources(samples);
+                results.add(entry);
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        return results;
+    }
+
+    /**
+     * Vị trí bắt đầu trang: ưu tiên pageToken, không có thì dùng cursor
+     */
+    public static int startOf(List<String> ordered, int cursor, String pageToken) {
+        return pageToken != null ? resolveToken(ordered, pageToken) : cursor;
+    }
+
+    /**
+     * Token "vị trí:hash cuối trang trước": nếu danh sách đã dịch chuyển thì tìm lại hash đó
+     */
+    private static int resolveToken(List<String> ordered, String token) {
+        int colon = token.indexOf(':');
+        int position;
+        try {
+            position = Integer.parseInt(colon >= 0 ? token.substring(0, colon) : token);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+        if (colon < 0)
+            return position;
+        String lastHash = token.substring(colon + 1);
+        if (position > 0 && position <= ordered.size() && ordered.get(position - 1).equals(lastHash))
+            return position;
+        int index = ordered.indexOf(lastHash);
+        return index >= 0 ? index + 1 : position;
+    }
+
+    public List<FileInfo> getAllFiles() {
+        return search("");
+    }
+
+    private int visibleLinkCount(String fileHash) {
+        SharedFile file = files.get(fileHash);
+        if (file == null)
+            return 0;
+        int count = 0;
+        for (Link link : file.links.values()) {
+            if (link.shared && link.peer.online)
+                count++;
+        }
+        return count;
+    }
+
+    /**
+     * Các peer online đang chia sẻ file (kèm danh sách chunk)
+     */
+    public List<FileInfo> getSources(String fileHash) {
+        List<FileInfo> sources = new ArrayList<>();
+        lock.readLock().lock();
+        try {
+            SharedFile file = files.get(fileHash);
+            if (file != null) {
+                addVisibleLinks(file, sources, true);
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        return sources;
+    }
+
+    private void addVisibleLinks(SharedFile file, List<FileInfo> out, boolean withChunks) {
+        for (Link link : file.links.values()) {
+            if (!link.shared || !link.peer.online)
+                continue;
+            FileInfo info = toFileInfo(file, link);
+            if (withChunks && link.availableChunks != null) {
+                info.setAvailableChunks(link.availableChunks.copy());
+            }
+            out.add(info);
+        }
+    }
+
+    private static FileInfo toFileInfo(SharedFile file, Link link) {
+        FileInfo info = new FileInfo(file.fileName, file.fileSize, link.peer.ip, link.peer.port);
+        info.setFileHash(file.fileHash);
+        info.setChunkSize(file.chunkSize);
+        info.setTotalChunks(file.totalChunks);
+        info.setFileDbId(file.fileDbId);
+        return info;
+    }
+
+    public int getOnlinePeerCount() {
+        lock.readLock().lock();
+        try {
+            int count = 0;
+            for (PeerEntry peer : peers.values()) {
+                if (peer.online)
+                    count++;
+            }
+            return count;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public int getSharedFileCount() {
+        lock.readLock().lock();
+        try {
+            int count = 0;
+            for (SharedFile file : files.values()) {
+                count += file.links.size();
+            }
+            return count;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private static String keyOf(FileInfo info) {
+        // File không có hash (peer bản cũ) - dùng tên làm khóa
+        return info.getFileHash() != null ? info.getFileHash() : "name:" + info.getFileName();
+    }
+}
@@ -2,6 +2,8 @@ package tracker;
 
 import database.DatabaseManager;
 import protocol.Message;
+import protocol.MessageChannel;
+import utils.ChunkBitSet;
 import utils.NetworkUtils;
 import java.io.*;
 import java.net.*;
@@ -11,33 +13,179 @@ import java.util.concurrent.*;
 /**
  * Tracker Server v2 - Tích hợp MySQL Database
  * Lưu trữ thông tin Peer và File vào database
+ *
+ * Đọc (SEARCH, GET_ALL_FILES, GET_FILE_SOURCES) phục vụ từ TrackerIndex trong RAM;
+ * mọi thay đổi cập nhật index trước rồi được ghi xuống DB ở nền (write-behind)
  */
 public class TrackerServer {
+    private static final int DEFAULT_DB_CONCURRENCY = 0; // 0: bằng số kết nối của pool DB
+    private static final int DEFAULT_DB_QUEUE = 1024; // Số thao tác ghi chờ tối đa mỗi luồng ghi
+
+    /**
+     * Cách chạy ClientHandler
+     * - CACHED_POOL: mỗi kết nối một platform thread (mặc định)
+     * - VIRTUAL_THREADS: mỗi kết nối một virtual thread (cần Java 21+, nếu không
+     * có sẽ quay về CACHED_POOL)
+     */
+    public enum ExecutionMode {
+        CACHED_POOL, VIRTUAL_THREADS;
+
+        /**
+         * Đọc từ system property tracker.executionMode (không phân biệt hoa thường)
+         */
+        public static ExecutionMode fromSystemProperty() {
+            return parse(System.getProperty("tracker.executionMode"));
+        }
+
+        public static ExecutionMode parse(String value) {
+            if (value == null || value.isBlank())
+                return CACHED_POOL;
+            String v = value.trim().toUpperCase().replace('-', '_');
+            if (v.equals("VIRTUAL"))
+                return VIRTUAL_THREADS;
+            if (v.equals("CACHED"))
+                return CACHED_POOL;
+            return valueOf(v);
+        }
+    }
+
     private int port;
     private ServerSocket serverSocket;
-    private boolean running;
-
-    // Vẫn giữ cache trong RAM để truy vấn nhanh
-    private Map<String, Set<FileInfo>> peerFiles;
-    private Map<String, List<FileInfo>> fileIndex;
+    private volatile boolean running;
+    private ExecutionMode executionMode; // Chế độ thực tế (có thể đã quay về CACHED_POOL)
+
+    // Ghi DB ở nền: mỗi peer luôn rơi vào cùng một luồng ghi (giữ thứ tự thao tác
+    // của peer đó), số luồng giới hạn số truy vấn DB đồng thời - handler không bao
+    // giờ chờ JDBC kể cả khi cả mạng peer khởi động lại cùng lúc
+    // Hàng đợi mỗi luồng có giới hạn: DB chậm hơn tốc độ đến thì handler chờ chỗ trống
+    // (không chạy ngay trên handler như CallerRunsPolicy - sẽ vượt thao tác cũ hơn của cùng peer)
+    private final ThreadPoolExecutor[] dbWriters;
+    private final int dbQueueCapacity;
+
+    // Index trong RAM - nguồn dữ liệu cho mọi truy vấn đọc
+    private final TrackerIndex index;
     private ExecutorService executor;
 
-    // Database Manager
-    private DatabaseManager db;
+    // Database Manager (null: chỉ giữ index trong RAM, xem inMemory)
+    private final DatabaseManager db;
 
     public TrackerServer(int port) {
+        this(port, ExecutionMode.fromSystemProperty(),
+                Integer.getInteger("tracker.dbConcurrency", DEFAULT_DB_CONCURRENCY),
+                Integer.getInteger("tracker.dbQueue", DEFAULT_DB_QUEUE));
+    }
+
+    /**
+     * @param maxDbConcurrency số luồng ghi DB, tối đa bằng số kết nối của pool (<= 0: bằng pool)
+     * @param dbQueueCapacity số thao tác ghi chờ tối đa mỗi luồng ghi (<= 0: mặc định)
+     */
+    public TrackerServer(int port, ExecutionMode executionMode, int maxDbConcurrency, int dbQueueCapacity) {
+        this(port, executionMode, maxDbConcurrency, dbQueueCapacity, DatabaseManager.getInstance());
+    }
+
+    /**
+     * Tracker không đọc/ghi DB, chỉ dùng index trong RAM (benchmark không đụng dữ liệu thật)
+     */
+    static TrackerServer inMemory(int port, ExecutionMode executionMode) {
+        return new TrackerServer(port, executionMode, 1, DEFAULT_DB_QUEUE, null);
+    }
+
+    private TrackerServer(int port, ExecutionMode executionMode, int maxDbConcurrency, int dbQueueCapacity,
+            DatabaseManager db) {
         this.port = port;
-        this.peerFiles = new ConcurrentHashMap<>();
-        this.fileIndex = new ConcurrentHashMap<>();
-        this.executor = Executors.newCachedThreadPool();
+        this.db = db;
+        this.executor = createExecutor(executionMode);
+
+        // Luồng ghi nhiều hơn số kết nối của pool chỉ đứng chờ mượn kết nối
+        int poolSize = db != null ? db.getPoolSize() : 1;
+        this.dbWriters = new ThreadPoolExecutor[maxDbConcurrency > 0 ? Math.min(maxDbConcurrency, poolSize) : poolSize];
+        this.dbQueueCapacity = dbQueueCapacity > 0 ? dbQueueCapacity : DEFAULT_DB_QUEUE;
+        for (int i = 0; i < dbWriters.length; i++) {
+            String name = "tracker-db-writer-" + i;
+            dbWriters[i] = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<>(this.dbQueueCapacity), r -> {
+                        Thread t = new Thread(r, name);
+                        t.setDaemon(true);
+                        return t;
+                    }, TrackerServer::waitForQueueSpace);
+        }
+
+        // Dựng index trong RAM từ DB
+        this.index = new TrackerIndex();
+        if (db != null)
+            this.index.loadFrom(db);
+    }
+
+    /**
+     * Tạo executor cho ClientHandler theo chế độ chạy
+     * Virtual thread được lấy bằng reflection để mã nguồn vẫn biên dịch được trên Java 17
+     */
+    private ExecutorService createExecutor(ExecutionMode mode) {
+        if (mode == ExecutionMode.VIRTUAL_THREADS) {
+            try {
+                ExecutorService virtual = (ExecutorService) Executors.class
+                        .getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+                executionMode = ExecutionMode.VIRTUAL_THREADS;
+                return virtual;
+            } catch (ReflectiveOperationException e) {
+                System.err.println("[TRACKER] JVM không hỗ trợ virtual thread (cần Java 21+), dùng cached pool");
+            }
+        }
+        executionMode = ExecutionMode.CACHED_POOL;
+        return Executors.newCachedThreadPool();
+    }
+
+    public ExecutionMode getExecutionMode() {
+        return executionMode;
+    }
+
+    /**
+     * Hàng đợi ghi đầy: chờ chỗ trống thay vì bỏ thao tác ghi hoặc chạy vượt thứ tự
+     */
+    private static void waitForQueueSpace(Runnable write, ThreadPoolExecutor writer) {
+        if (writer.isShutdown())
+            throw new RejectedExecutionException("DB writer đã dừng");
+        try {
+            writer.getQueue().put(write);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RejectedExecutionException("Bị ngắt khi chờ hàng đợi ghi DB", e);
+        }
+    }
+
+    /**
+     * Tổng số thao tác ghi DB đang chờ trong các hàng đợi
+     */
+    public int getDbQueueDepth() {
+        int depth = 0;
+        for (ThreadPoolExecutor writer : dbWriters) {
+            depth += writer.getQueue().size();
+        }
+        return depth;
+    }
 
-        // Khởi tạo Database connection
-        this.db = DatabaseManager.getInstance();
+    /**
+     * Xếp một thao tác ghi DB vào luồng ghi của peer (không chờ kết quả)
+     */
+    private void persist(String peerID, Runnable write) {
+        if (db == null)
+            return;
+        try {
+            dbWriters[Math.floorMod(peerID.hashCode(), dbWriters.length)].execute(() -> {
+                try {
+                    write.run();
+                } catch (RuntimeException e) {
+                    System.err.println("[TRACKER] Lỗi ghi DB cho " + peerID + ": " + e.getMessage());
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            System.err.println("[TRACKER] " + e.getMessage() + ", bỏ qua ghi DB cho " + peerID);
+        }
     }
 
     public void start() {
         try {
-            serverSocket = new ServerSocket(port);
+            serverSocket = new ServerSocket(port, 1024);
             running = true;
 
             // ⭐ Hiển thị IP LAN để các máy khác kết nối
@@ -47,6 +195,8 @@ public class TrackerServer {
             System.out.println("        TRACKER SERVER v2 (MySQL)");
             System.out.println("═══════════════════════════════════════════════════════");
             System.out.println("  Port: " + port);
+            System.out.println("  Chế độ xử lý: " + executionMode + " (DB ghi nền, " + dbWriters.length
+                    + " luồng ghi, hàng đợi " + dbQueueCapacity + " mỗi luồng)");
             System.out.println("  IP LAN: " + lanIP);
             System.out.println("");
             System.out.println("  📡 Các máy khác trong mạng LAN kết nối đến:");
@@ -76,9 +226,20 @@ public class TrackerServer {
             if (serverSocket != null)
                 serverSocket.close();
             executor.shutdown();
-            db.close();
+
+            // Chờ các thao tác ghi nền hoàn tất trước khi đóng DB
+            for (ThreadPoolExecutor writer : dbWriters) {
+                writer.shutdown();
+            }
+            for (ThreadPoolExecutor writer : dbWriters) {
+                writer.awaitTermination(10, TimeUnit.SECONDS);
+            }
+            if (db != null)
+                db.close();
         } catch (IOException e) {
             e.printStackTrace();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
     }
 
@@ -87,8 +248,7 @@ public class TrackerServer {
      */
     private class ClientHandler implements Runnable {
         private Socket socket;
-        private ObjectInputStream in;
-        private ObjectOutputStream out;
+        private MessageChannel channel;
         private String peerID;
         private String peerIP;
         private int peerPort;
@@ -100,10 +260,10 @@ public class TrackerServer {
         @Override
         public void run() {
             try {
-                out = new ObjectOutputStream(socket.getOutputStream());
-                in = new ObjectInputStream(socket.getInputStream());
+                // Nhận diện giao thức (nhị phân hoặc Java serialization cũ)
+                channel = MessageChannel.accept(socket);
 
-                Message msg = (Message) in.readObject();
+                Message msg = channel.receive();
                 peerIP = socket.getInetAddress().getHostAddress();
                 peerPort = msg.getPeerPort();
                 peerID = peerIP + ":" + peerPort;
@@ -121,17 +281,20 @@ public class TrackerServer {
                         handlePublish(msg.getFileInfo());
                         break;
                     case UNPUBLISH:
-                        handleUnpublish(msg.getContent());
+                        handleUnpublish(msg);
                         break;
                     case SEARCH:
-                        handleSearch(msg.getContent());
+                        handleListing(msg, msg.getContent(), Message.Type.SEARCH_RESULT);
                         break;
                     case GET_ALL_FILES:
-                        handleGetAllFiles();
+                        handleListing(msg, "", Message.Type.FILE_LIST);
                         break;
                     case GET_FILE_SOURCES:
                         handleGetFileSources(msg.getContent());
                         break;
+                    case SET_SHARE_STATUS:
+                        handleSetShareStatus(msg.getContent(), msg.isShared());
+                        break;
                     default:
                         sendError("Unknown message type");
                 }
@@ -143,198 +306,219 @@ public class TrackerServer {
         }
 
         private void handleRegister() throws IOException {
-            // Lưu vào RAM cache
-            peerFiles.putIfAbsent(peerID, ConcurrentHashMap.newKeySet());
+            // Cập nhật index trong RAM
+            index.registerPeer(peerID, peerIP, peerPort);
 
-            // ⭐ LƯU VÀO DATABASE
-            int peerDbId = db.registerPeer(peerID, peerIP, peerPort);
+            // ⭐ LƯU VÀO DATABASE (ghi nền)
+            persist(peerID, () -> {
+                int peerDbId = db.registerPeer(peerID, peerIP, peerPort);
 
-            // Log activity
-            db.logActivity(peerID, "CONNECT", "Peer connected from " + peerIP);
+                // Log activity
+                db.logActivity(peerID, "CONNECT", "Peer connected from " + peerIP);
+                System.out.println("[TRACKER] Đã lưu peer " + peerID + " (DB ID: " + peerDbId + ")");
+            });
 
             Message response = new Message(Message.Type.REGISTER_OK);
             response.setContent("Đăng ký thành công! PeerID: " + peerID);
-            out.writeObject(response);
+            channel.send(response);
 
-            System.out.println("[TRACKER] ✅ Peer đăng ký: " + peerID + " (DB ID: " + peerDbId + ")");
+            System.out.println("[TRACKER] ✅ Peer đăng ký: " + peerID);
             printStatus();
         }
 
         private void handleUnregister() throws IOException {
-            // Xóa khỏi RAM cache
-            Set<FileInfo> files = peerFiles.remove(peerID);
-            if (files != null) {
-                for (FileInfo f : files) {
-                    List<FileInfo> list = fileIndex.get(f.getFileName());
-                    if (list != null) {
-                        list.removeIf(fi -> fi.getPeerIP().equals(f.getPeerIP())
-                                && fi.getPeerPort() == f.getPeerPort());
-                        if (list.isEmpty())
-                            fileIndex.remove(f.getFileName());
-                    }
-                }
-            }
+            // Xóa khỏi index trong RAM
+            index.unregisterPeer(peerID);
 
-            // ⭐ CẬP NHẬT DATABASE - Xóa tất cả files của peer
-            db.removeAllPeerFiles(peerID);
-            db.unregisterPeer(peerID);
-            db.logActivity(peerID, "DISCONNECT", "Peer disconnected");
+            // ⭐ CẬP NHẬT DATABASE - Xóa tất cả files của peer (ghi nền)
+            persist(peerID, () -> {
+                db.removeAllPeerFiles(peerID);
+                db.unregisterPeer(peerID);
+                db.logActivity(peerID, "DISCONNECT", "Peer disconnected");
+            });
 
             Message response = new Message(Message.Type.REGISTER_OK);
             response.setContent("Hủy đăng ký thành công!");
-            out.writeObject(response);
+            channel.send(response);
 
             System.out.println("[TRACKER] 🔴 Peer hủy đăng ký: " + peerID);
             printStatus();
         }
 
         private void handlePublish(FileInfo fileInfo) throws IOException {
-            // Lưu vào RAM cache
-            peerFiles.computeIfAbsent(peerID, k -> ConcurrentHashMap.newKeySet()).add(fileInfo);
-            fileIndex.computeIfAbsent(fileInfo.getFileName(), k -> Collections.synchronizedList(new ArrayList<>()))
-                    .add(fileInfo);
-
-            // ⭐ LƯU VÀO DATABASE
-            int peerDbId = db.getPeerDbId(peerID);
-            if (peerDbId == -1) {
-                // Peer chưa đăng ký, đăng ký trước
-                peerDbId = db.registerPeer(peerID, peerIP, peerPort);
-            }
-
             // Tính hash và chunks
             String fileHash = fileInfo.getFileHash();
-            int totalChunks = (int) Math.ceil((double) fileInfo.getFileSize() / (64 * 1024));
-
-            // Lưu file vào DB
-            int fileDbId = db.registerFile(
-                    fileInfo.getFileName(),
-                    fileInfo.getFileSize(),
-                    fileHash,
-                    totalChunks);
+            if (!FileInfo.isValidChunkSize(fileInfo.getChunkSize())) {
+                fileInfo.setChunkSize(0); // Kích thước không hợp lệ -> mặc định 64KB
+            }
+            // File đã có người publish: giữ kích thước chunk đã đăng ký để mọi nguồn chia giống nhau
+            int chunkSize = index.getChunkSize(fileInfo);
+            int totalChunks = FileInfo.chunkCount(fileInfo.getFileSize(), chunkSize);
+            fileInfo.setChunkSize(chunkSize);
 
             // Liên kết peer với file
-            List<Integer> allChunks = new ArrayList<>();
-            for (int i = 0; i < totalChunks; i++) {
-                allChunks.add(i);
-            }
-            db.linkPeerToFile(peerDbId, fileDbId, true, allChunks);
+            ChunkBitSet allChunks = ChunkBitSet.full(totalChunks);
+
+            // Cập nhật index trong RAM - peer khác tìm thấy ngay
+            index.publish(peerID, peerIP, peerPort, fileInfo, totalChunks, allChunks);
 
-            // Log activity
-            db.logActivity(peerID, "PUBLISH", "Published file: " + fileInfo.getFileName() +
-                    " (" + fileInfo.getFormattedSize() + ")");
+            // ⭐ LƯU VÀO DATABASE (ghi nền)
+            persist(peerID, () -> {
+                int peerDbId = db.getPeerDbId(peerID);
+                if (peerDbId == -1) {
+                    // Peer chưa đăng ký, đăng ký trước
+                    peerDbId = db.registerPeer(peerID, peerIP, peerPort);
+                }
+
+                // Lưu file vào DB
+                int fileDbId = db.registerFile(
+                        fileInfo.getFileName(),
+                        fileInfo.getFileSize(),
+                        fileHash,
+                        chunkSize,
+                        totalChunks);
+                db.linkPeerToFile(peerDbId, fileDbId, true, allChunks);
+                index.setFileDbId(fileHash, fileDbId);
+
+                // Log activity
+                db.logActivity(peerID, "PUBLISH", "Published file: " + fileInfo.getFileName() +
+                        " (" + fileInfo.getFormattedSize() + ")");
+                System.out.println("[TRACKER] Đã lưu file " + fileInfo.getFileName() + " (DB ID: " + fileDbId + ")");
+            });
 
             Message response = new Message(Message.Type.REGISTER_OK);
             response.setContent("Publish file thành công: " + fileInfo.getFileName());
-            out.writeObject(response);
+            channel.send(response);
 
-            System.out.println("[TRACKER] 📁 File mới: " + fileInfo.getFileName() +
-                    " (DB ID: " + fileDbId + ")");
+            System.out.println("[TRACKER] 📁 File mới: " + fileInfo.getFileName());
             printStatus();
         }
 
-        private void handleUnpublish(String fileName) throws IOException {
-            Set<FileInfo> files = peerFiles.get(peerID);
-            if (files != null) {
-                files.removeIf(f -> f.getFileName().equals(fileName));
+        /**
+         * Gỡ một file (content) hoặc một lô file (fileList - peer dọn các file không còn giữ)
+         */
+        private void handleUnpublish(Message msg) throws IOException {
+            List<String> fileNames = new ArrayList<>();
+            if (msg.getFileList() != null) {
+                for (FileInfo file : msg.getFileList()) {
+                    fileNames.add(file.getFileName());
+                }
             }
-            List<FileInfo> list = fileIndex.get(fileName);
-            if (list != null) {
-                list.removeIf(f -> (f.getPeerIP() + ":" + f.getPeerPort()).equals(peerID));
-                if (list.isEmpty())
-                    fileIndex.remove(fileName);
+            if (msg.getContent() != null && !fileNames.contains(msg.getContent()))
+                fileNames.add(msg.getContent());
+
+            for (String fileName : fileNames) {
+                index.unpublish(peerID, fileName);
             }
 
-            // ⭐ XÓA KHỎI DATABASE
-            db.unlinkPeerFromFile(peerID, fileName);
+            // ⭐ XÓA KHỎI DATABASE (ghi nền)
+            persist(peerID, () -> {
+                db.unlinkPeerFromFiles(peerID, fileNames);
 
-            // Log activity
-            db.logActivity(peerID, "UNPUBLISH", "Unpublished file: " + fileName);
+                // Log activity
+                db.logActivity(peerID, "UNPUBLISH", "Unpublished " + (fileNames.size() == 1
+                        ? "file: " + fileNames.get(0) : fileNames.size() + " files"));
+            });
 
             Message response = new Message(Message.Type.REGISTER_OK);
-            response.setContent("Unpublish thành công: " + fileName);
-            out.writeObject(response);
+            response.setContent("Unpublish thành công: " + (fileNames.size() == 1 ? fileNames.get(0)
+                    : fileNames.size() + " files"));
+            channel.send(response);
 
-            System.out.println("[TRACKER] 🗑️ Unpublish: " + fileName + " từ " + peerID);
+            System.out.println("[TRACKER] 🗑️ Unpublish: " + String.join(", ", fileNames) + " từ " + peerID);
             printStatus();
         }
 
-        private void handleSearch(String keyword) throws IOException {
-            // ⭐ TÌM KIẾM TỪ DATABASE (có thông tin seeds)
-            List<FileInfo> results = db.searchFiles(keyword);
-
-            // Nếu DB rỗng, fallback về RAM cache - ĐÃ BỎ ĐỂ ĐẢM BẢO TÍNH NHẤT QUÁN CỦA
-            // DATABASE (hidden file không được hiện)
-            /*
-             * if (results.isEmpty()) {
-             * for (Map.Entry<String, List<FileInfo>> entry : fileIndex.entrySet()) {
-             * if (entry.getKey().toLowerCase().contains(keyword.toLowerCase())) {
-             * results.addAll(entry.getValue());
-             * }
-             * }
-             * }
-             */
-
-            // Tính seed count
-            Map<String, Integer> seedCount = new HashMap<>();
-            for (FileInfo f : results) {
-                String hash = f.getFileHash();
-                seedCount.merge(hash, 1, Integer::sum);
-            }
-
-            // Cập nhật seed count
-            for (FileInfo f : results) {
-                f.setSeedCount(seedCount.getOrDefault(f.getFileHash(), 1));
-            }
+        /**
+         * Peer ẩn/hiện một file - có hiệu lực ngay với SEARCH và GET_FILE_SOURCES
+         */
+        private void handleSetShareStatus(String fileName, boolean isShared) throws IOException {
+            index.setShared(peerID, fileName, isShared);
+            persist(peerID, () -> db.updateShareStatus(peerID, fileName, isShared));
 
-            Message response = new Message(Message.Type.SEARCH_RESULT);
-            response.setFileList(results);
-            response.setContent("Tìm thấy " + results.size() + " kết quả");
-            out.writeObject(response);
+            Message response = new Message(Message.Type.REGISTER_OK);
+            response.setContent((isShared ? "Đã chia sẻ: " : "Đã ẩn: ") + fileName);
+            channel.send(response);
 
-            System.out.println("[TRACKER] 🔍 Tìm kiếm '" + keyword + "': " + results.size() + " kết quả");
+            System.out.println("[TRACKER] " + (isShared ? "👁️ Hiện" : "🙈 Ẩn") + " file: " + fileName + " của " + peerID);
         }
 
-        private void handleGetAllFiles() throws IOException {
-            // ⭐ LẤY TỪ DATABASE
-            List<FileInfo> allFiles = db.getAllFiles();
-
-            // Nếu DB rỗng, fallback về RAM cache - ĐÃ BỎ
-            /*
-             * if (allFiles.isEmpty()) {
-             * for (List<FileInfo> list : fileIndex.values()) {
-             * allFiles.addAll(list);
-             * }
-             * }
-             */
-
-            // Tính seed count
-            Map<String, Integer> seedCount = new HashMap<>();
-            for (FileInfo f : allFiles) {
-                String hash = f.getFileHash();
-                seedCount.merge(hash, 1, Integer::sum);
-            }
-            for (FileInfo f : allFiles) {
-                f.setSeedCount(seedCount.getOrDefault(f.getFileHash(), 1));
+        /**
+         * SEARCH / GET_ALL_FILES qua index trong RAM (đã lọc peer offline và file đang ẩn)
+         * - limit = 0: một message chứa tất cả (peer bản cũ)
+         * - limit > 0: một trang từ cursor/pageToken, sắp theo sortOrder
+         * - limit > 0 và streaming: gửi lần lượt mọi trang trên cùng kết nối, trang cuối có cursor = 0
+         * - aggregate: một dòng mỗi file hash (seedCount + vài nguồn mẫu) thay vì một dòng mỗi peer
+         */
+        private void handleListing(Message request, String keyword, Message.Type responseType) throws IOException {
+            SortOrder order = SortOrder.parse(request.getSortOrder());
+            int limit = request.getLimit();
+            boolean streaming = request.isStreaming() && limit > 0;
+            boolean aggregate = request.isAggregate();
+
+            // Chụp danh sách khớp một lần, các lô sau chỉ cắt tiếp từ ảnh chụp này
+            List<String> ordered = index.match(keyword, order);
+            int start = TrackerIndex.startOf(ordered, request.getCursor(), request.getPageToken());
+
+            int batches = 0;
+            int rows = 0;
+            SearchPage page;
+            do {
+                page = index.page(ordered, start, limit, aggregate);
+                sendPage(responseType, page, aggregate);
+                batches++;
+                rows += page.getResults().size();
+                start = page.getNextCursor();
+            } while (streaming && page.hasMore());
+
+            if (responseType == Message.Type.SEARCH_RESULT) {
+                System.out.println("[TRACKER] 🔍 Tìm kiếm '" + keyword + "': " + page.getTotal() + " file, trả "
+                        + rows + " kết quả trong " + batches + " lô");
+            } else {
+                System.out.println("[TRACKER] 📋 Gửi danh sách " + rows + "/" + page.getTotal() + " files trong "
+                        + batches + " lô");
             }
+        }
 
-            Message response = new Message(Message.Type.FILE_LIST);
-            response.setFileList(allFiles);
-            out.writeObject(response);
+        private void sendPage(Message.Type responseType, SearchPage page, boolean aggregate) throws IOException {
+            List<FileInfo> results = page.getResults();
 
-            System.out.println("[TRACKER] 📋 Gửi danh sách " + allFiles.size() + " files");
+            if (!aggregate) {
+                // Tính seed count (các dòng của một file luôn nằm cùng trang)
+                Map<String, Integer> seedCount = new HashMap<>();
+                for (FileInfo f : results) {
+                    String hash = f.getFileHash();
+                    seedCount.merge(hash, 1, Integer::sum);
+                }
+
+                // Cập nhật seed count
+                for (FileInfo f : results) {
+                    f.setSeedCount(seedCount.getOrDefault(f.getFileHash(), 1));
+                }
+            }
+
+            Message response = new Message(responseType);
+            response.setFileList(results);
+            if (responseType == Message.Type.SEARCH_RESULT) {
+                response.setContent("Tìm thấy " + page.getTotal() + " kết quả");
+            }
+            response.setTotalResults(page.getTotal());
+            response.setCursor(page.getNextCursor());
+            response.setPageToken(page.getNextToken());
+            channel.send(response);
         }
 
         /**
          * Xử lý yêu cầu lấy danh sách nguồn cho một file (Multi-source)
          */
         private void handleGetFileSources(String fileHash) throws IOException {
-            // ⭐ LẤY DANH SÁCH PEERS CÓ FILE TỪ DATABASE
-            List<FileInfo> sources = db.getPeersHavingFile(fileHash);
+            // ⭐ LẤY DANH SÁCH PEERS CÓ FILE TỪ INDEX TRONG RAM
+            List<FileInfo> sources = index.getSources(fileHash);
 
             Message response = new Message(Message.Type.FILE_SOURCES);
             response.setFileList(sources);
             response.setContent("Tìm thấy " + sources.size() + " nguồn");
-            out.writeObject(response);
+            channel.send(response);
 
             System.out.println("[TRACKER] 📡 Sources cho " + fileHash.substring(0, 8) +
                     "...: " + sources.size() + " peers");
@@ -342,15 +526,15 @@ public class TrackerServer {
 
         private void sendError(String error) throws IOException {
             Message response = new Message(Message.Type.ERROR, error);
-            out.writeObject(response);
+            channel.send(response);
         }
 
         private void closeConnection() {
+            if (channel != null) {
+                channel.close();
+                return;
+            }
             try {
-                if (in != null)
-                    in.close();
-                if (out != null)
-                    out.close();
                 if (socket != null)
                     socket.close();
             } catch (IOException e) {
@@ -360,9 +544,11 @@ public class TrackerServer {
 
     private void printStatus() {
         System.out.println("──────────────────────────────────────");
-        System.out.println("Peers online (RAM): " + peerFiles.size());
-        System.out.println("Total files (RAM): " + fileIndex.values().stream()
-                .mapToInt(List::size).sum());
+        System.out.println("Peers online (RAM): " + index.getOnlinePeerCount());
+        System.out.println("Total files (RAM): " + index.getSharedFileCount());
+        if (db != null)
+            System.out.println("DB pool: " + db.getPoolStats() + " | Hàng đợi ghi: " + getDbQueueDepth() + "/"
+                    + dbWriters.length * dbQueueCapacity);
         System.out.println("──────────────────────────────────────");
     }
 
@@ -378,6 +564,9 @@ public class TrackerServer {
         if (args.length > 0) {
             port = Integer.parseInt(args[0]);
         }
-        new TrackerServer(port).start();
+        // Tham số thứ 2 (tùy chọn): cached | virtual
+        ExecutionMode mode = args.length > 1 ? ExecutionMode.parse(args[1]) : ExecutionMode.fromSystemProperty();
+        new TrackerServer(port, mode, Integer.getInteger("tracker.dbConcurrency", DEFAULT_DB_CONCURRENCY),
+                Integer.getInteger("tracker.dbQueue", DEFAULT_DB_QUEUE)).start();
     }
 }
\ No newline at end of file
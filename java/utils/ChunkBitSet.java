@@ -0,0 +1,309 @@
+package utils;
+
+import java.io.ByteArrayOutputStream;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Tập chunk (đã có/đã tải) dạng bit, an toàn khi nhiều thread cùng set
+ * - 1 bit mỗi chunk thay vì một Integer: file 10 GB chia 64 KB chỉ tốn 20 KB
+ * - Chỉ có thao tác set (chunk đã có thì không mất), nên dùng CAS trên từng word, không khóa
+ * - encode()/decode(): chuỗi base64 ngắn để lưu DB, chọn giữa run-length (tiến độ tải thường
+ *   là vài đoạn liền) và bitmap thô (chunk rải rác), bản nào nhỏ hơn thì dùng
+ */
+public class ChunkBitSet {
+    private static final char FORMAT_BITMAP = 'B';
+    private static final char FORMAT_RUNS = 'R';
+
+    private final int size;
+    private final AtomicLongArray words;
+    private final AtomicInteger count = new AtomicInteger();
+
+    public ChunkBitSet(int size) {
+        if (size < 0)
+            throw new IllegalArgumentException("Số chunk âm: " + size);
+        this.size = size;
+        this.words = new AtomicLongArray((size + 63) >>> 6);
+    }
+
+    /**
+     * Tạo từ danh sách chỉ số chunk (dạng cũ) - đủ lớn để chứa cả chunk lớn nhất, bỏ qua chỉ số âm
+     */
+    public static ChunkBitSet of(Collection<Integer> chunks, int minSize) {
+        int size = minSize;
+        for (Integer chunk : chunks) {
+            if (chunk != null && chunk >= size)
+                size = chunk + 1;
+        }
+        ChunkBitSet bits = new ChunkBitSet(size);
+        for (Integer chunk : chunks) {
+            if (chunk != null && chunk >= 0)
+                bits.set(chunk);
+        }
+        return bits;
+    }
+
+    /**
+     * Tập có đủ mọi chunk (peer seed)
+     */
+    public static ChunkBitSet full(int size) {
+        ChunkBitSet bits = new ChunkBitSet(size);
+        int last = bits.words.length() - 1;
+        for (int w = 0; w <= last; w++) {
+            bits.words.set(w, -1L);
+        }
+        if ((size & 63) != 0)
+            bits.words.set(last, -1L >>> (64 - (size & 63)));
+        bits.count.set(size);
+        return bits;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean get(int chunk) {
+        checkIndex(chunk);
+        return (words.get(chunk >>> 6) & (1L << chunk)) != 0;
+    }
+
+    /**
+     * @return true nếu chunk chưa được set trước đó
+     */
+    public boolean set(int chunk) {
+        checkIndex(chunk);
+        int w = chunk >>> 6;
+        long mask = 1L << chunk;
+        while (true) {
+            long old = words.get(w);
+            if ((old & mask) != 0)
+                return false;
+            if (words.compareAndSet(w, old, old | mask)) {
+                count.incrementAndGet();
+                return true;
+            }
+        }
+    }
+
+    public int cardinality() {
+        return count.get();
+    }
+
+    public boolean isEmpty() {
+        return count.get() == 0;
+    }
+
+    public boolean isFull() {
+        return count.get() == size;
+    }
+
+    /**
+     * Chunk đã set đầu tiên từ vị trí from
+     *
+     * @return -1 nếu không còn
+     */
+    public int nextSetBit(int from) {
+        if (from < 0)
+            from = 0;
+        int w = from >>> 6;
+        if (from >= size)
+            return -1;
+        long word = words.get(w) & (-1L << from);
+        while (true) {
+            if (word != 0) {
+                int i = (w << 6) + Long.numberOfTrailingZeros(word);
+                return i < size ? i : -1;
+            }
+            if (++w >= words.length())
+                return -1;
+            word = words.get(w);
+        }
+    }
+
+    /**
+     * Chunk chưa set đầu tiên từ vị trí from
+     *
+     * @return size nếu mọi chunk từ from đều đã set
+     */
+    public int nextClearBit(int from) {
+        if (from < 0)
+            from = 0;
+        if (from >= size)
+            return size;
+        int w = from >>> 6;
+        long word = ~words.get(w) & (-1L << from);
+        while (true) {
+            if (word != 0) {
+                int i = (w << 6) + Long.numberOfTrailingZeros(word);
+                return Math.min(i, size);
+            }
+            if (++w >= words.length())
+                return size;
+            word = ~words.get(w);
+        }
+    }
+
+    public List<Integer> toList() {
+        List<Integer> chunks = new ArrayList<>(cardinality());
+        for (int i = nextSetBit(0); i >= 0; i = nextSetBit(i + 1)) {
+            chunks.add(i);
+        }
+        return chunks;
+    }
+
+    public BitSet toBitSet() {
+        BitSet bits = new BitSet(size);
+        for (int i = nextSetBit(0); i >= 0; i = nextSetBit(i + 1)) {
+            bits.set(i);
+        }
+        return bits;
+    }
+
+    public ChunkBitSet copy() {
+        ChunkBitSet copy = new ChunkBitSet(size);
+        for (int w = 0; w < words.length(); w++) {
+            long word = words.get(w);
+            copy.words.set(w, word);
+            copy.count.addAndGet(Long.bitCount(word));
+        }
+        return copy;
+    }
+
+    // ==================== MÃ HÓA ====================
+
+    /**
+     * Mã hóa gọn: base64 của [định dạng][size (varint)][dữ liệu]
+     * - Run-length: độ dài các đoạn xen kẽ chưa có/đã có (varint), bắt đầu bằng đoạn chưa có
+     * - Bitmap: từng byte của các word, little-endian
+     */
+    public String encode() {
+        ByteArrayOutputStream runs = new ByteArrayOutputStream();
+        runs.write(FORMAT_RUNS);
+        writeVarint(runs, size);
+        int pos = 0;
+        boolean set = false;
+        while (pos < size) {
+            int end = set ? nextClearBit(pos) : nextSetBit(pos);
+            if (end < 0)
+                end = size;
+            writeVarint(runs, end - pos);
+            pos = end;
+            set = !set;
+        }
+
+        int bitmapBytes = (size + 7) >>> 3;
+        ByteArrayOutputStream bitmap = new ByteArrayOutputStream();
+        bitmap.write(FORMAT_BITMAP);
+        writeVarint(bitmap, size);
+        if (runs.size() <= bitmap.size() + bitmapBytes)
+            return Base64.getEncoder().withoutPadding().encodeToString(runs.toByteArray());
+
+        for (int i = 0; i < bitmapBytes; i++) {
+            bitmap.write((int) (words.get(i >>> 3) >>> ((i & 7) << 3)));
+        }
+        return Base64.getEncoder().withoutPadding().encodeToString(bitmap.toByteArray());
+    }
+
+    /**
+     * Giải mã chuỗi của encode()
+     *
+     * @throws IllegalArgumentException nếu chuỗi không hợp lệ
+     */
+    public static ChunkBitSet decode(String encoded) {
+        byte[] data = Base64.getDecoder().decode(encoded.trim());
+        int[] pos = { 1 };
+        if (data.length == 0)
+            throw new IllegalArgumentException("Chuỗi chunk rỗng");
+        int size = readVarint(data, pos);
+        ChunkBitSet bits = new ChunkBitSet(size);
+
+        if (data[0] == FORMAT_RUNS) {
+            int chunk = 0;
+            boolean set = false;
+            while (pos[0] < data.length) {
+                int run = readVarint(data, pos);
+                if (run > size - chunk)
+                    throw new IllegalArgumentException("Đoạn chunk vượt quá " + size);
+                if (set) {
+                    for (int i = chunk; i < chunk + run; i++) {
+                        bits.set(i);
+                    }
+                }
+                chunk += run;
+                set = !set;
+            }
+        } else if (data[0] == FORMAT_BITMAP) {
+            if (data.length - pos[0] != (size + 7) >>> 3)
+                throw new IllegalArgumentException("Bitmap sai kích thước");
+            for (int i = 0; i < size; i++) {
+                if ((data[pos[0] + (i >>> 3)] & (1 << (i & 7))) != 0)
+                    bits.set(i);
+            }
+        } else {
+            throw new IllegalArgumentException("Định dạng chunk lạ: " + data[0]);
+        }
+        return bits;
+    }
+
+    private static void writeVarint(ByteArrayOutputStream out, int value) {
+        while ((value & ~0x7F) != 0) {
+            out.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    private static int readVarint(byte[] data, int[] pos) {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            if (pos[0] >= data.length)
+                throw new IllegalArgumentException("Varint bị cắt cụt");
+            byte b = data[pos[0]++];
+            value |= (b & 0x7F) << shift;
+            if (b >= 0) {
+                if (value < 0)
+                    throw new IllegalArgumentException("Varint âm");
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Varint quá dài");
+    }
+
+    private void checkIndex(int chunk) {
+        if (chunk < 0 || chunk >= size)
+            throw new IndexOutOfBoundsException("Chunk " + chunk + " ngoài [0, " + size + ")");
+    }
+
+    // ==================== SO SÁNH ====================
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o)
+            return true;
+        if (!(o instanceof ChunkBitSet))
+            return false;
+        ChunkBitSet other = (ChunkBitSet) o;
+        if (size != other.size)
+            return false;
+        for (int w = 0; w < words.length(); w++) {
+            if (words.get(w) != other.words.get(w))
+                return false;
+        }
+        return true;
+    }
+
+    @Override
+    public int hashCode() {
+        int h = size;
+        for (int w = 0; w < words.length(); w++) {
+            h = 31 * h + Long.hashCode(words.get(w));
+        }
+        return h;
+    }
+
+    @Override
+    public String toString() {
+        return "ChunkBitSet{" + cardinality() + "/" + size + "}";
+    }
+}